@@ -1,24 +1,63 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * At most maxGroups groups are kept in memory. When there are more, the
+ * partial aggregates of the groups in memory (see
+ * {@link Aggregator#partialIterator}) are written to NUM_PARTITIONS spill
+ * files by the hash of the group, and aggregation starts over with an empty
+ * table. At the end, the partial aggregates in each spill file are merged,
+ * and a file that still holds too many groups is partitioned again on the
+ * next bits of the hash. A file that still does not fit after MAX_LEVELS
+ * rounds of partitioning, which only happens when many groups share a hash,
+ * is sorted on the group instead and merged one group at a time.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of groups that are kept in memory */
+    public final static int MAX_GROUPS = 20000;
+    /** Number of bits of the group hash each round of partitioning uses */
+    public final static int PARTITION_BITS = 4;
+    /** Number of partitions the groups are split into when they overflow */
+    public final static int NUM_PARTITIONS = 1 << PARTITION_BITS;
+    /** Rounds of partitioning after which a partition is sorted instead */
+    public final static int MAX_LEVELS = 16 / PARTITION_BITS;
+
     private DbIterator child;
     private final int afield;
     private final int gfield;
     private Aggregator.Op aop;
+    private final int maxGroups;
 
-    private Aggregator aggregator;
     private DbIterator dbIterator;
     private TupleDesc tupleDesc;
 
+    // a spill file of partial aggregates and the number of times its
+    // groups were partitioned
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    private transient Deque<Partition> pending = null;
+    private int spilledPartitions = 0;
+    // the results of a partition aggregated by sorting it
+    private transient ExternalSort sorted = null;
+    private transient Iterator<Tuple> sortedResults = null;
+
     /**
      * Constructor.
      * 
@@ -38,22 +77,28 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, MAX_GROUPS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxGroups
+     *            The memory budget: at most this many groups are held in
+     *            memory, the partial aggregates of the others are spilled
+     *            to disk
+     * @see #Aggregate(DbIterator, int, int, Aggregator.Op)
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop, int maxGroups) {
 	// some code goes here
 	this.child = child;
         this.afield = afield;
         this.gfield = gfield;
         this.aop = aop;
+        this.maxGroups = maxGroups;
         // juedge if divided
         Type gfieldtype = gfield == -1 ? null : child.getTupleDesc().getFieldType(gfield);
 
-        // create aggregator
-        if(child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE){
-            this.aggregator = new StringAggregator(gfield, gfieldtype, afield, aop);
-        }
-        else{
-            this.aggregator = new IntegerAggregator(gfield, gfieldtype, afield, aop);
-        }
-
         // create TupleDesc
         List<Type> typeList = new ArrayList<>();
         List<String> nameList = new ArrayList<>();
@@ -126,15 +171,178 @@ public class Aggregate extends Operator {
 	return aop.toString();
     }
 
+    /** @return the number of spill files written since the last open */
+    public int numSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    private Type groupFieldType() {
+        return gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
+    }
+
+    // an aggregator for the child's tuples, or for partial aggregates
+    private Aggregator newAggregator(boolean partial) {
+        if (partial)
+            return new IntegerAggregator(0, groupFieldType(), 1, aop, true);
+        if (child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE)
+            return new StringAggregator(gfield, groupFieldType(), afield, aop);
+        return new IntegerAggregator(gfield, groupFieldType(), afield, aop);
+    }
+
+    // the partition of group at the specified level, from the next bits of
+    // its hash
+    private static int partition(Field group, int level) {
+        int h = group.hashCode() * 0x9E3779B9;
+        return (h >>> (32 - PARTITION_BITS * (level + 1))) % NUM_PARTITIONS;
+    }
+
+    private void spill(SpillFile f, Tuple t) throws DbException {
+        try {
+            f.add(t);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+    }
+
+    // write the partial aggregates of agg to parts, creating them first
+    private SpillFile[] spill(Aggregator agg, SpillFile[] parts, int level)
+            throws DbException, TransactionAbortedException {
+        DbIterator partials = agg.partialIterator();
+        if (parts == null) {
+            parts = new SpillFile[NUM_PARTITIONS];
+            try {
+                for (int i = 0; i < NUM_PARTITIONS; i++)
+                    parts[i] = new SpillFile(partials.getTupleDesc());
+            } catch (IOException e) {
+                throw new DbException("could not create spill file: " + e.getMessage());
+            }
+            spilledPartitions += NUM_PARTITIONS;
+        }
+        partials.open();
+        while (partials.hasNext()) {
+            Tuple t = partials.next();
+            spill(parts[partition(t.getField(0), level)], t);
+        }
+        partials.close();
+        return parts;
+    }
+
+    // the results of agg if nothing was spilled; otherwise spill agg too and
+    // queue the partitions for aggregating
+    private void finish(Aggregator agg, SpillFile[] parts, int level)
+            throws DbException, TransactionAbortedException {
+        if (parts == null) {
+            dbIterator = agg.iterator();
+            dbIterator.open();
+            return;
+        }
+        spill(agg, parts, level);
+        dbIterator = null;
+        for (SpillFile f : parts)
+            pending.push(new Partition(f, level + 1));
+    }
+
+    // aggregate the child, which may leave partitions to aggregate
+    private void aggregate() throws DbException, TransactionAbortedException {
+        pending = new ArrayDeque<Partition>();
+        spilledPartitions = 0;
+        Aggregator agg = newAggregator(false);
+        SpillFile[] parts = null;
+        while (child.hasNext()) {
+            agg.mergeTupleIntoGroup(child.next());
+            if (gfield != Aggregator.NO_GROUPING && agg.numGroups() >= maxGroups) {
+                parts = spill(agg, parts, 0);
+                agg = newAggregator(false);
+            }
+        }
+        finish(agg, parts, 0);
+    }
+
+    // merge the partial aggregates of a partition, which may leave more
+    // partitions to aggregate
+    private void aggregate(Partition p) throws DbException, TransactionAbortedException {
+        try {
+            if (p.level >= MAX_LEVELS) {
+                sortedResults = aggregateSorted(p.file);
+                return;
+            }
+            Aggregator agg = newAggregator(true);
+            SpillFile[] parts = null;
+            Iterator<Tuple> it = p.file.iterator();
+            while (it.hasNext()) {
+                agg.mergeTupleIntoGroup(it.next());
+                if (agg.numGroups() >= maxGroups) {
+                    parts = spill(agg, parts, p.level);
+                    agg = newAggregator(true);
+                }
+            }
+            finish(agg, parts, p.level);
+        } catch (IOException e) {
+            throw new DbException("could not read spill file: " + e.getMessage());
+        } finally {
+            p.file.close();
+        }
+    }
+
+    // the results of the partial aggregates in f, sorted on the group so
+    // that one group at a time is aggregated
+    private Iterator<Tuple> aggregateSorted(SpillFile f) throws DbException, IOException {
+        sorted = new ExternalSort(f.getTupleDesc(), new TupleComparator(0, true),
+                OrderBy.DEFAULT_MEMORY_PAGES);
+        Iterator<Tuple> it = f.iterator();
+        while (it.hasNext())
+            sorted.add(it.next());
+        final Iterator<Tuple> partials = sorted.iterator();
+
+        return new Iterator<Tuple>() {
+            private Tuple next = partials.hasNext() ? partials.next() : null;
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Tuple next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                Aggregator agg = newAggregator(true);
+                Field group = next.getField(0);
+                do {
+                    agg.mergeTupleIntoGroup(next);
+                    next = partials.hasNext() ? partials.next() : null;
+                } while (next != null && next.getField(0).equals(group));
+                try {
+                    DbIterator result = agg.iterator();
+                    result.open();
+                    return result.next();
+                } catch (DbException | TransactionAbortedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // drop the spill files and the sort of the last aggregation
+    private void closeSpillFiles() {
+        if (pending != null) {
+            for (Partition p : pending)
+                p.file.close();
+        }
+        pending = null;
+        if (sorted != null)
+            sorted.close();
+        sorted = null;
+        sortedResults = null;
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
 	child.open();
-        while(child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
-        }
-        dbIterator = aggregator.iterator();
-        dbIterator.open();
+        aggregate();
         super.open();
     }
 
@@ -147,16 +355,32 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
-	if(dbIterator.hasNext()){
-            return dbIterator.next();
+	while (true) {
+            if (dbIterator != null && dbIterator.hasNext())
+                return dbIterator.next();
+            if (sortedResults != null && sortedResults.hasNext())
+                return sortedResults.next();
+            if (pending == null || pending.isEmpty())
+                return null;
+            if (sorted != null) {
+                sorted.close();
+                sorted = null;
+                sortedResults = null;
+            }
+            aggregate(pending.pop());
         }
-        return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        if (spilledPartitions == 0) {
+            dbIterator.rewind();
+            return;
+        }
+        // the partitions are gone: aggregate all over again
+        closeSpillFiles();
         child.rewind();
-        dbIterator.rewind();
+        aggregate();
     }
 
 
@@ -181,7 +405,10 @@ public class Aggregate extends Operator {
 	// some code goes here
 	super.close();
         child.close();
-        dbIterator.close();
+        if (dbIterator != null)
+            dbIterator.close();
+        dbIterator = null;
+        closeSpillFiles();
     }
 
     @Override
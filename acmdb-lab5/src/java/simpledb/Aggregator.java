@@ -81,5 +81,18 @@ public interface Aggregator extends Serializable {
      * @see simpledb.TupleIterator for a possible helper
      */
     public DbIterator iterator();
+
+    /** @return the number of distinct groups merged so far */
+    public int numGroups();
+
+    /**
+     * Create a DbIterator over partial aggregates of the groups: tuples with
+     * the group value first (if grouping) that an {@link IntegerAggregator}
+     * with the same operator, grouping on field 0 and aggregating field 1,
+     * constructed to merge partial aggregates, turns into the same results
+     * as {@link #iterator}. Used to aggregate groups that do not fit in
+     * memory in several parts.
+     */
+    public DbIterator partialIterator();
     
 }
@@ -11,7 +11,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
@@ -441,6 +441,19 @@ public class BTreeLeafPage extends BTreePage {
 		return numSlots - getNumEmptySlots();
 	}
 
+	public int slotHeaderOffset() {
+		// the slots follow the parent and sibling pointers
+		return 3 * INDEX_SIZE;
+	}
+
+	public int slotCount() {
+		return numSlots;
+	}
+
+	public int slotSize() {
+		return td.getSize();
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BitmapHeapScan is an operator which reads the tuples of a heap file that
+ * match predicates on fields with {@link SecondaryIndex}es. Rather than
+ * fetching the tuples in the order of an index, as
+ * {@link SecondaryIndexScan} does, it first collects the RecordIds each
+ * index finds into a {@link RecordIdBitmap}, intersects (or unites) the
+ * bitmaps, and then reads every heap page holding a match once, in page
+ * order. The tuples come out in the order of the heap file.
+ */
+public class BitmapHeapScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean isOpen = false;
+    private final TransactionId tid;
+    private final int tableId;
+    private final SecondaryIndex[] indexes;
+    private final IndexPredicate[] preds;
+    private final boolean conjunctive;
+    private final String alias;
+    private final TupleDesc td;
+
+    private transient RecordIdBitmap bitmap = null;
+    private transient Iterator<Integer> pageIt = null;
+    private transient HeapPage page = null;
+    private transient BitSet slots = null;
+    private int slot = -1;
+    private transient Tuple next = null;
+    private int pagesRead = 0;
+
+    /**
+     * Creates a bitmap scan of the tuples of a heap file, as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param indexes
+     *            the indexes to look the tuples up in; all on the same table
+     * @param preds
+     *            the predicate to look up in each of indexes
+     * @param conjunctive
+     *            true if the tuples must match all the predicates, false if
+     *            they must match any of them
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields with name tableAlias.fieldName
+     * @throws IllegalArgumentException
+     *             if there are no indexes, they are on different tables, or
+     *             indexes and preds differ in length
+     */
+    public BitmapHeapScan(TransactionId tid, SecondaryIndex[] indexes, IndexPredicate[] preds,
+            boolean conjunctive, String tableAlias) {
+        if (indexes.length == 0 || indexes.length != preds.length)
+            throw new IllegalArgumentException("every index needs a predicate");
+        for (SecondaryIndex index : indexes) {
+            if (index.getTableId() != indexes[0].getTableId())
+                throw new IllegalArgumentException("the indexes are on different tables");
+        }
+        this.tid = tid;
+        this.tableId = indexes[0].getTableId();
+        this.indexes = indexes.clone();
+        this.preds = preds.clone();
+        this.conjunctive = conjunctive;
+        this.alias = tableAlias;
+
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableId);
+        Type[] types = new Type[tableTd.numFields()];
+        String[] names = new String[tableTd.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = tableTd.getFieldType(i);
+            names[i] = tableAlias + "." + tableTd.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the name in the catalog of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableId);
+    }
+
+    /** @return the alias of the table this operator scans */
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return the indexes the tuples are looked up in */
+    public SecondaryIndex[] getIndexes() {
+        return indexes.clone();
+    }
+
+    /** @return the predicate looked up in each of the indexes */
+    public IndexPredicate[] getIndexPredicates() {
+        return preds.clone();
+    }
+
+    /** @return true if the tuples match all the predicates, false if any */
+    public boolean isConjunctive() {
+        return conjunctive;
+    }
+
+    /** @return the RecordIds the scan reads, or null if it is not open */
+    public RecordIdBitmap getBitmap() {
+        return bitmap;
+    }
+
+    /** @return the number of heap pages read since the scan was opened */
+    public int numPagesRead() {
+        return pagesRead;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        bitmap = indexes[0].bitmap(tid, preds[0]);
+        for (int i = 1; i < indexes.length; i++) {
+            RecordIdBitmap other = indexes[i].bitmap(tid, preds[i]);
+            if (conjunctive)
+                bitmap.and(other);
+            else
+                bitmap.or(other);
+        }
+        isOpen = true;
+        rewind();
+    }
+
+    /**
+     * Returns the TupleDesc with field names from the indexed heap file,
+     * prefixed with the tableAlias string from the constructor.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // the tuple in the next set slot of the bitmap, reading each page the
+    // first time a slot on it is reached; null if there are no more
+    private Tuple readNext() throws DbException, TransactionAbortedException {
+        while (true) {
+            slot = slots == null ? -1 : slots.nextSetBit(slot + 1);
+            if (slot >= 0) {
+                // a slot emptied since the bitmap was built is skipped
+                Tuple t = page.getTuple(slot);
+                if (t != null)
+                    return t;
+                continue;
+            }
+            if (!pageIt.hasNext())
+                return null;
+            int pageNumber = pageIt.next();
+            page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableId, pageNumber), Permissions.READ_ONLY);
+            pagesRead++;
+            slots = bitmap.slots(pageNumber);
+        }
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (next == null)
+            next = readNext();
+        return next != null;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void close() {
+        isOpen = false;
+        bitmap = null;
+        pageIt = null;
+        page = null;
+        slots = null;
+        next = null;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        pageIt = bitmap.pageNumbers().iterator();
+        page = null;
+        slots = null;
+        slot = -1;
+        next = null;
+        pagesRead = 0;
+    }
+}
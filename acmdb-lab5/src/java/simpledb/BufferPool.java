@@ -3,6 +3,11 @@ package simpledb;
 import java.io.*;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.util.*;
 
@@ -28,50 +33,39 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
+    /** Most shards the page table of a BufferPool is split into. */
+    public static final int MAX_SHARDS = 16;
+    // fewest pages per shard when the number of shards is picked from the
+    // size of the pool
+    private static final int MIN_SHARD_PAGES = 8;
+
     private final int maxNumPages;
-    private ConcurrentHashMap<PageId, LinkNode> pages;
-    /**
-     * Creates a BufferPool that caches up to numPages pages.
-     *
-     * @param numPages maximum number of pages in this buffer pool.
-     */
-     
-    // class LinkNode
-     private class LinkNode{
-        PageId pageId;
-        Page page;
-        LinkNode prev;
-        LinkNode next;
-        public LinkNode(PageId pageId, Page page){
-            this.pageId = pageId;
-            this.page = page;
-        }
-     }
-     
-     LinkNode head;
-     LinkNode tail;
-     
-    private void addToHead(LinkNode n){
-        n.prev = head;
-        n.next = head.next;
-        head.next.prev = n;
-        head.next = n;
-    }
-    
-    private void remove(LinkNode node){
-        node.prev.next = node.next;
-        node.next.prev = node.prev;
-    }
-    
-    private void moveToHead(LinkNode node){
-        remove(node);
-        addToHead(node);
-    }
-    
-    private LinkNode removeLast(){
-        LinkNode node = tail.prev;
-        remove(node);
-        return node;
+    // The page table is split into shards by PageId hash. Each shard has
+    // its own latch (its monitor) and replacement state, so threads working
+    // on pages of different shards never contend on a lock, and a hit only
+    // takes the latch of its own shard.
+    private final Shard[] shards;
+    // pages cached in all shards, plus slots reserved for pages being added
+    private final AtomicInteger numCached = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // live transactions some of whose dirty pages were written to disk
+    // before they completed, and have to be undone from the log on abort
+    private final Set<TransactionId> stolenFrom = ConcurrentHashMap.newKeySet();
+    // A transaction changes its pages under its page locks only, not under
+    // a shard's latch. Its write latch is held for the whole of an
+    // insertTuple or deleteTuple call, and stealing one of its dirty pages
+    // takes the latch too, so that the page is logged and written as it is
+    // between two calls and never while another thread is changing it.
+    private final ConcurrentHashMap<TransactionId, ReentrantLock> writeLatches = new ConcurrentHashMap<>();
+
+    private static class Shard {
+        final HashMap<PageId, Page> pages = new HashMap<>();
+        final EvictionPolicy policy;
+
+        Shard(EvictionPolicy policy) {
+            this.policy = policy;
+        }
     }
      
     class PageLock{
@@ -94,134 +88,435 @@ public class BufferPool {
         }
     }
 
-    class LockManager {
-        ConcurrentHashMap<PageId, ConcurrentHashMap<TransactionId, PageLock>> lockMap = new ConcurrentHashMap<>();
-        
-        // get lock
-        public synchronized boolean acquiredLock(PageId pageId, TransactionId tid, int requiredType) {
-            // judge whther the current page is locked
-            if (lockMap.get(pageId) == null) {
-                // create lock
-                PageLock pageLock = new PageLock(tid, requiredType);
-                ConcurrentHashMap<TransactionId, PageLock> pageLocks = new ConcurrentHashMap<>();
-                pageLocks.put(tid, pageLock);
-                lockMap.put(pageId, pageLocks);
-                return true;
+    /**
+     * The lock state of one page: the transactions holding a lock on it and a
+     * FIFO queue of the requests waiting for it. Waiters wait on this object
+     * and are notified whenever a lock on the page is released or granted.
+     */
+    class PageLocks {
+        final Map<TransactionId, PageLock> holders = new HashMap<>();
+        final LinkedList<PageLock> waiters = new LinkedList<>();
+        // set once the entry has been dropped from the lock table
+        boolean removed = false;
+
+        // can tid get a lock of the given type without conflicting with the
+        // other holders?
+        boolean compatible(TransactionId tid, int type) {
+            for (PageLock lock : holders.values()) {
+                if (lock.getTid().equals(tid))
+                    continue;
+                if (type == PageLock.EXCLUSIVE || lock.getType() == PageLock.EXCLUSIVE)
+                    return false;
             }
-            
-            // get waiting queue
-            ConcurrentHashMap<TransactionId, PageLock> pageLocks = lockMap.get(pageId);
-
-            if (pageLocks.get(tid) == null) {
-                if (pageLocks.size() > 1) {
-                    if (requiredType == PageLock.SHARE) {
-                        PageLock pageLock = new PageLock(tid, PageLock.SHARE);
-                        pageLocks.put(tid, pageLock);
-                        lockMap.put(pageId, pageLocks);
-                        return true;
-                    }
-                    // case exlucsive lock
-                    else if (requiredType == PageLock.EXCLUSIVE) {
-                        return false;
-                    }
-                }
-                if (pageLocks.size() == 1) {
-                    // there is another transaction in the page
-                    PageLock curLock = null;
-                    for (PageLock lock : pageLocks.values()) {
-                        curLock = lock;
+            return true;
+        }
+
+        // Can request be granted now? It must be compatible with the holders
+        // and may only pass the waiters queued before it (all of them, if it
+        // is not queued) when they and it are all shared requests.
+        boolean grantable(PageLock request) {
+            if (!compatible(request.getTid(), request.getType()))
+                return false;
+            for (PageLock waiter : waiters) {
+                if (waiter == request)
+                    return true;
+                if (waiter.getType() == PageLock.EXCLUSIVE || request.getType() == PageLock.EXCLUSIVE)
+                    return false;
+            }
+            return true;
+        }
+
+        // the transactions request is waiting for: conflicting holders, and
+        // conflicting requests queued ahead of it
+        Set<TransactionId> blockers(PageLock request) {
+            Set<TransactionId> result = new HashSet<>();
+            for (PageLock lock : holders.values()) {
+                if (!lock.getTid().equals(request.getTid())
+                        && (request.getType() == PageLock.EXCLUSIVE || lock.getType() == PageLock.EXCLUSIVE))
+                    result.add(lock.getTid());
+            }
+            for (PageLock waiter : waiters) {
+                if (waiter == request)
+                    break;
+                if (!waiter.getTid().equals(request.getTid())
+                        && (request.getType() == PageLock.EXCLUSIVE || waiter.getType() == PageLock.EXCLUSIVE))
+                    result.add(waiter.getTid());
+            }
+            return result;
+        }
+
+        void grant(PageLock request) {
+            PageLock held = holders.get(request.getTid());
+            if (held == null)
+                holders.put(request.getTid(), new PageLock(request.getTid(), request.getType()));
+            else if (request.getType() == PageLock.EXCLUSIVE)
+                held.setType(PageLock.EXCLUSIVE);
+        }
+    }
+
+    /** How the lock manager picks the transaction to abort in a deadlock. */
+    public enum DeadlockPolicy {
+        /** abort the most recently started transaction of the cycle */
+        YOUNGEST,
+        /** abort the transaction of the cycle that holds the fewest locks */
+        FEWEST_LOCKS
+    }
+
+    /**
+     * Page-level strict two-phase locking. Each page has its own
+     * {@link PageLocks}, so transactions only contend on the pages they
+     * actually share, and a blocked transaction waits on that page until a
+     * lock on it is released instead of spinning. Shared-to-exclusive
+     * upgrades are queued ahead of the other waiters of the page. The pages
+     * each transaction holds locks on are tracked so that they can be
+     * released at commit or abort without scanning the whole lock table.
+     * <p>
+     * Blocked transactions are recorded in a waits-for graph, which is
+     * checked for a cycle every time a transaction blocks. When a deadlock
+     * is found, one transaction of the cycle is picked by the
+     * {@link DeadlockPolicy} and aborted right away; if it is not the
+     * transaction that found the cycle, its waiting thread is interrupted.
+     * The lock timeout is only a fallback for waits that are not deadlocks,
+     * e.g. on a transaction that never completes.
+     */
+    class LockManager {
+        final ConcurrentHashMap<PageId, PageLocks> lockTable = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<TransactionId, Set<PageId>> heldLocks = new ConcurrentHashMap<>();
+
+        // The waits-for graph and the threads of the waiting transactions.
+        // Guarded by the graph's monitor, which may be taken while holding
+        // the monitor of a PageLocks but never the other way around.
+        final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+        final Map<TransactionId, Thread> waitingThreads = new HashMap<>();
+        // waiting transactions chosen as deadlock victims by another thread
+        final Set<TransactionId> victims = new HashSet<>();
+
+        volatile DeadlockPolicy policy = DeadlockPolicy.YOUNGEST;
+        final AtomicLong deadlocks = new AtomicLong(0);
+        final AtomicLong timeouts = new AtomicLong(0);
+
+        /**
+         * Acquire a lock on pageId for tid, blocking while it conflicts with
+         * locks held by other transactions.
+         *
+         * @param timeout how long to wait, in milliseconds. The actual wait is
+         *        randomized between timeout and twice that, so transactions
+         *        that block each other do not all give up at the same time.
+         * @throws TransactionAbortedException if the lock could not be
+         *         acquired in time
+         */
+        public void acquireLock(PageId pageId, TransactionId tid, int requiredType, long timeout)
+                throws TransactionAbortedException {
+            while (true) {
+                PageLocks locks = lockTable.computeIfAbsent(pageId, k -> new PageLocks());
+                synchronized (locks) {
+                    if (locks.removed)
+                        continue;
+
+                    PageLock held = locks.holders.get(tid);
+                    if (held != null && (held.getType() == PageLock.EXCLUSIVE || requiredType == PageLock.SHARE))
+                        return;
+
+                    PageLock request = new PageLock(tid, requiredType);
+                    if (locks.grantable(request)) {
+                        locks.grant(request);
+                        heldLocks.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pageId);
+                        return;
                     }
-                    if (curLock.getType() == PageLock.SHARE) {
-                        // if the request is share lock
-                        if (requiredType == PageLock.SHARE) {
-                            PageLock pageLock = new PageLock(tid, PageLock.SHARE);
-                            pageLocks.put(tid, pageLock);
-                            lockMap.put(pageId, pageLocks);
-                            return true;
+
+                    // an upgrade must not wait behind requests that are in
+                    // turn waiting for tid's shared lock
+                    if (held != null)
+                        locks.waiters.addFirst(request);
+                    else
+                        locks.waiters.addLast(request);
+                    long deadline = System.currentTimeMillis() + timeout
+                            + ThreadLocalRandom.current().nextLong(timeout + 1);
+                    boolean victim = false;
+                    try {
+                        while (!locks.grantable(request)) {
+                            if (waitOrAbort(tid, locks.blockers(request))) {
+                                victim = true;
+                                break;
+                            }
+                            long remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                timeouts.incrementAndGet();
+                                throw new TransactionAbortedException();
+                            }
+                            try {
+                                locks.wait(remaining);
+                            } catch (InterruptedException e) {
+                                // chosen as a deadlock victim; checked by
+                                // waitOrAbort on the next iteration
+                            }
                         }
-                        // if the lock is occupied type
-                        else if (requiredType == PageLock.EXCLUSIVE) {
-                            return false;
+                        if (!victim) {
+                            locks.grant(request);
+                            heldLocks.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pageId);
                         }
+                    } finally {
+                        if (stopWaiting(tid))
+                            victim = true;
+                        locks.waiters.remove(request);
+                        if (locks.holders.isEmpty() && locks.waiters.isEmpty()) {
+                            locks.removed = true;
+                            lockTable.remove(pageId, locks);
+                        }
+                        // whether granted or given up, the waiters behind
+                        // this request may be able to proceed now
+                        locks.notifyAll();
                     }
-                    else if (curLock.getType() == PageLock.EXCLUSIVE) {
-                        return false;
-                    }
+                    if (victim)
+                        throw new TransactionAbortedException();
+                    return;
                 }
             }
+        }
+
+        /**
+         * Record that tid waits for blockers and look for a deadlock.
+         *
+         * @return true if tid must abort, because it closes a cycle and was
+         *         picked as the victim, or because another transaction has
+         *         picked it
+         */
+        private boolean waitOrAbort(TransactionId tid, Set<TransactionId> blockers) {
+            synchronized (waitsFor) {
+                if (victims.contains(tid))
+                    return true;
+                waitsFor.put(tid, blockers);
+                waitingThreads.put(tid, Thread.currentThread());
+
+                List<TransactionId> cycle = findCycle(tid);
+                if (cycle == null)
+                    return false;
+                deadlocks.incrementAndGet();
+
+                TransactionId victim = chooseVictim(cycle);
+                if (victim.equals(tid))
+                    return true;
+                victims.add(victim);
+                waitsFor.remove(victim);
+                waitingThreads.get(victim).interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Remove tid from the waits-for graph once it stops waiting.
+         *
+         * @return true if another transaction picked tid as a deadlock victim
+         */
+        private boolean stopWaiting(TransactionId tid) {
+            synchronized (waitsFor) {
+                waitsFor.remove(tid);
+                waitingThreads.remove(tid);
+                if (!victims.remove(tid))
+                    return false;
+            }
+            // clear the interrupt that was meant to wake us up
+            Thread.interrupted();
+            return true;
+        }
+
+        // depth-first search for a path from tid back to itself; returns the
+        // transactions on that path, or null if tid is not on a cycle
+        private List<TransactionId> findCycle(TransactionId tid) {
+            LinkedList<TransactionId> path = new LinkedList<>();
+            return findCycle(tid, tid, path, new HashSet<>()) ? path : null;
+        }
 
-            else if (pageLocks.get(tid) != null) {
-                PageLock pageLock = pageLocks.get(tid);
-                if (pageLock.getType() == PageLock.SHARE) {
-                    if (requiredType == PageLock.SHARE) {
+        private boolean findCycle(TransactionId start, TransactionId cur,
+                LinkedList<TransactionId> path, Set<TransactionId> visited) {
+            path.addLast(cur);
+            Set<TransactionId> next = waitsFor.get(cur);
+            if (next != null) {
+                for (TransactionId t : next) {
+                    if (t.equals(start))
+                        return true;
+                    if (visited.add(t) && findCycle(start, t, path, visited))
                         return true;
-                    }
-                    else if (requiredType == PageLock.EXCLUSIVE) {
-                        if (pageLocks.size() == 1) {
-                            pageLock.setType(PageLock.EXCLUSIVE);
-                            pageLocks.put(tid, pageLock);
-                            return true;
-                        }
-                        else if (pageLocks.size() > 1) {
-                            return false;
-                        }
-                    }
                 }
-                return pageLock.getType() == PageLock.EXCLUSIVE;
             }
+            path.removeLast();
             return false;
         }
-        
-        
-    public synchronized boolean releaseLock(TransactionId tid, PageId pageId) {
-            // 判断是否持有锁
-            if (isHoldLock(tid, pageId)) {
-                ConcurrentHashMap<TransactionId, PageLock> locks = lockMap.get(pageId);
-                locks.remove(tid);
-                if (locks.size() == 0) {
-                    lockMap.remove(pageId);
+
+        private TransactionId chooseVictim(List<TransactionId> cycle) {
+            TransactionId victim = null;
+            for (TransactionId t : cycle) {
+                if (victim == null) {
+                    victim = t;
+                } else if (policy == DeadlockPolicy.FEWEST_LOCKS) {
+                    int locks = getHeldPages(t).size();
+                    int victimLocks = getHeldPages(victim).size();
+                    if (locks < victimLocks || (locks == victimLocks && t.getId() > victim.getId()))
+                        victim = t;
+                } else if (t.getId() > victim.getId()) {
+                    victim = t;
                 }
-                return true;
             }
-            return false;
+            return victim;
         }
-        
-    public synchronized boolean isHoldLock(TransactionId tid, PageId pageId) {
-            ConcurrentHashMap<TransactionId, PageLock> locks = lockMap.get(pageId);
-            if (locks == null) {
-                return false;
-            }
-            PageLock pageLock = locks.get(tid);
-            if (pageLock == null) {
+
+        public boolean releaseLock(TransactionId tid, PageId pageId) {
+            Set<PageId> held = heldLocks.get(tid);
+            if (held != null)
+                held.remove(pageId);
+
+            PageLocks locks = lockTable.get(pageId);
+            if (locks == null)
                 return false;
+            synchronized (locks) {
+                if (locks.holders.remove(tid) == null)
+                    return false;
+                if (locks.holders.isEmpty() && locks.waiters.isEmpty()) {
+                    locks.removed = true;
+                    lockTable.remove(pageId, locks);
+                }
+                locks.notifyAll();
             }
             return true;
         }
 
-    public synchronized void completeTranslation(TransactionId tid) {
-            for (PageId pageId : lockMap.keySet()) {
+        /** @return true if tid could get a lock of the given type on pageId
+            right away, without waiting for other transactions */
+        public boolean canAcquire(PageId pageId, TransactionId tid, int type) {
+            PageLocks locks = lockTable.get(pageId);
+            if (locks == null)
+                return true;
+            synchronized (locks) {
+                PageLock held = locks.holders.get(tid);
+                if (held != null && (held.getType() == PageLock.EXCLUSIVE || type == PageLock.SHARE))
+                    return true;
+                return locks.grantable(new PageLock(tid, type));
+            }
+        }
+
+        public boolean isHoldLock(TransactionId tid, PageId pageId) {
+            Set<PageId> held = heldLocks.get(tid);
+            return held != null && held.contains(pageId);
+        }
+
+        /** @return the pages tid holds a lock on */
+        public Set<PageId> getHeldPages(TransactionId tid) {
+            Set<PageId> held = heldLocks.get(tid);
+            return held == null ? Collections.<PageId>emptySet() : held;
+        }
+
+        public void completeTranslation(TransactionId tid) {
+            // nobody waits for tid any more
+            synchronized (waitsFor) {
+                for (Set<TransactionId> blockers : waitsFor.values())
+                    blockers.remove(tid);
+            }
+            Set<PageId> held = heldLocks.remove(tid);
+            if (held == null)
+                return;
+            for (PageId pageId : held) {
                 releaseLock(tid, pageId);
             }
         }
-       }
+    }
        
        
     private LockManager lockManager;
 
+    /**
+     * How long getPage waits for a conflicting lock before aborting, in ms.
+     * Deadlocks are detected and broken without waiting for this timeout.
+     */
+    public static final long DEFAULT_LOCK_TIMEOUT = 2000;
+
 
 
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts the
+     * least recently used page when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
     public BufferPool(int numPages) {
         // some code goes here     
+        this(numPages, EvictionPolicy.Kind.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param eviction the policy choosing which page to evict when the
+     *            buffer pool is full
+     */
+    public BufferPool(int numPages, EvictionPolicy.Kind eviction) {
+        this(numPages, eviction, defaultShards(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in numShards
+     * shards. Each shard runs its own instance of the eviction policy; when
+     * the pool is full, a page is evicted from the shard of the page being
+     * added if possible, and from another shard otherwise.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param eviction the policy choosing which page to evict when the
+     *            buffer pool is full
+     * @param numShards the number of shards, a power of two
+     */
+    public BufferPool(int numPages, EvictionPolicy.Kind eviction, int numShards) {
+        if (numShards < 1 || Integer.bitCount(numShards) != 1)
+            throw new IllegalArgumentException("number of shards must be a power of two");
         this.maxNumPages = numPages;
-        pages = new ConcurrentHashMap<>();
-        head = new LinkNode(new HeapPageId(-1, -1), null);
-        tail = new LinkNode(new HeapPageId(-1, -1), null);
-        head.next = tail;
-        tail.prev = head;
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard(eviction.create(Math.max(1, numPages / numShards)));
         lockManager = new LockManager();
+    }
+
+    // as many shards as possible, up to MAX_SHARDS, that hold at least
+    // MIN_SHARD_PAGES pages each
+    private static int defaultShards(int numPages) {
+        int n = 1;
+        while (n < MAX_SHARDS && 2 * n * MIN_SHARD_PAGES <= numPages)
+            n <<= 1;
+        return n;
+    }
 
+    private int shardIndex(PageId pid) {
+        int h = pid.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (shards.length - 1);
+    }
+
+    private Shard shardOf(PageId pid) {
+        return shards[shardIndex(pid)];
+    }
+
+    /** @return the number of getPage calls that found the page cached */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return misses.sum();
     }
     
+    /** Set how the victim of a deadlock is chosen */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        lockManager.policy = policy;
+    }
+
+    /** @return the number of deadlocks detected (and broken by an abort) */
+    public long getDeadlockCount() {
+        return lockManager.deadlocks.get();
+    }
+
+    /** @return the number of transactions aborted because a lock wait timed out */
+    public long getLockTimeoutCount() {
+        return lockManager.timeouts.get();
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -255,33 +550,93 @@ public class BufferPool {
         throws TransactionAbortedException, DbException {
         // some code goes here     
         int lockType = perm == Permissions.READ_ONLY ? PageLock.SHARE : PageLock.EXCLUSIVE;
-        // calculate excess time
-        long startTime = System.currentTimeMillis();
-        boolean isAcquired = false;
-
-        while(!isAcquired){
-            isAcquired = lockManager.acquiredLock(pid, tid, lockType);
-            long now = System.currentTimeMillis();
-            if(now - startTime > 500){
-                throw new TransactionAbortedException();
+        lockManager.acquireLock(pid, tid, lockType, DEFAULT_LOCK_TIMEOUT);
+
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Page page = shard.pages.get(pid);
+            if (page != null) {
+                hits.increment();
+                shard.policy.pageAccessed(pid);
+                return page;
             }
         }
 
+        // read the page without holding the latch, so that hits on the
+        // shard do not wait for the disk
+        misses.increment();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return addPage(dbFile.readPage(pid), false);
+    }
 
-        if(!pages.containsKey(pid)){
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            if(pages.size() >= maxNumPages){
-                evictPage();
+    /**
+     * Add a page to the buffer pool, evicting another page first if the pool
+     * is full. If the page is already cached (e.g. because another
+     * transaction holding a shared lock read it at the same time), the
+     * cached copy is replaced when replace is set and kept otherwise.
+     *
+     * @return the page now cached under the page's id
+     */
+    private Page addPage(Page page, boolean replace) throws DbException {
+        PageId pid = page.getId();
+        Shard shard = shardOf(pid);
+        boolean reserved = false;
+        while (true) {
+            synchronized (shard) {
+                Page cached = shard.pages.get(pid);
+                if (cached != null) {
+                    if (reserved)
+                        numCached.decrementAndGet();
+                    if (replace) {
+                        shard.pages.put(pid, page);
+                        cached = page;
+                    }
+                    shard.policy.pageAccessed(pid);
+                    return cached;
+                }
+                if (reserved) {
+                    shard.pages.put(pid, page);
+                    shard.policy.pageAdded(pid);
+                    return page;
+                }
             }
-            LinkNode node = new LinkNode(pid, page);
-            pages.put(pid, node);
-            addToHead(node);
+            reserveSlot(shardIndex(pid));
+            reserved = true;
         }
+    }
+
+    // claim room for one more page, evicting pages until there is some
+    private void reserveSlot(int home) throws DbException {
+        while (true) {
+            int n = numCached.get();
+            if (n >= maxNumPages)
+                evictPage(home);
+            else if (numCached.compareAndSet(n, n + 1))
+                return;
+        }
+    }
 
-        moveToHead(pages.get(pid));
-        return pages.get(pid).page;
+    /**
+     * Acquire the same lock as {@link #getPage} would, but only return the
+     * page if it is already cached, without reading it from disk. Used by
+     * scans that read pages from somewhere else (e.g. a memory mapped file)
+     * and only need the buffer pool's copy when it may be newer than the
+     * one on disk.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the cached page, or null if the page is not in the buffer pool
+     */
+    public Page getCachedPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        int lockType = perm == Permissions.READ_ONLY ? PageLock.SHARE : PageLock.EXCLUSIVE;
+        lockManager.acquireLock(pid, tid, lockType, DEFAULT_LOCK_TIMEOUT);
 
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            return shard.pages.get(pid);
+        }
     }
 
     /**
@@ -317,25 +672,51 @@ public class BufferPool {
         transactionComplete(tid,true);
     }
 
+    /**
+     * Return true if getPage(tid, p, perm) would have to wait for a lock held
+     * (or asked for first) by another transaction. The answer may be out of
+     * date as soon as it is returned; callers use it to avoid pages other
+     * transactions are busy with, not for correctness.
+     */
+    public boolean wouldBlock(TransactionId tid, PageId p, Permissions perm) {
+        int lockType = perm == Permissions.READ_ONLY ? PageLock.SHARE : PageLock.EXCLUSIVE;
+        return !lockManager.canAcquire(p, tid, lockType);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here      
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.isHoldLock(tid, p);
+    }
+
+    /**
+     * Lock a whole table for tid, until tid completes. insertTuple and
+     * deleteTuple take the lock shared, so writers of a table run side by
+     * side; building a {@link SecondaryIndex} takes it exclusive, so that no
+     * tuple is written to the table while the index is filled. The lock
+     * lives in the lock table under page number -1 of the table, which no
+     * page has.
+     *
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        int lockType = perm == Permissions.READ_ONLY ? PageLock.SHARE : PageLock.EXCLUSIVE;
+        lockManager.acquireLock(new HeapPageId(tableId, -1), tid, lockType, DEFAULT_LOCK_TIMEOUT);
     }
     
     
-    public synchronized void restorePages(TransactionId tid){
-        for(LinkNode node : pages.values()){
-            PageId pageId = node.pageId;
-            Page page = node.page;
-            if(tid.equals(page.isDirty())){
-                int tableId = pageId.getTableId();
-                DbFile table = Database.getCatalog().getDatabaseFile(tableId);
-                Page pageFromDisk = table.readPage(pageId);
-                node.page = pageFromDisk;
-                pages.put(pageId, node);
-                moveToHead(node);
+    public void restorePages(TransactionId tid){
+        // only pages tid holds an (exclusive) lock on can be dirtied by it
+        for(PageId pageId : lockManager.getHeldPages(tid)){
+            Shard shard = shardOf(pageId);
+            synchronized (shard) {
+                Page page = shard.pages.get(pageId);
+                if(page != null && tid.equals(page.isDirty())){
+                    DbFile table = Database.getCatalog().getDatabaseFile(pageId.getTableId());
+                    shard.pages.put(pageId, table.readPage(pageId));
+                }
             }
         }
     }
@@ -358,45 +739,46 @@ public class BufferPool {
         }catch (IOException e){
             e.printStackTrace();
         }
+        // the committed state is what later transactions must roll back to
+        for(PageId pageId : lockManager.getHeldPages(tid)){
+            Shard shard = shardOf(pageId);
+            synchronized (shard) {
+                Page page = shard.pages.get(pageId);
+                if(page != null) page.setBeforeImage();
+            }
+        }
+        stolenFrom.remove(tid);
     }
     // roll back when fail to submit
     else{
+        // pages written to disk before the abort are restored from the log,
+        // unless the log has done so already
+        if(stolenFrom.remove(tid)){
+            Database.getLogFile().rollback(tid);
+        }
         restorePages(tid);
     }
     lockManager.completeTranslation(tid);
+    writeLatches.remove(tid);
 
     }
     
     
+    /**
+     * Tell the buffer pool that the log has rolled back the pages of tid
+     * written to disk (see {@link LogFile#logAbort}), so that completing
+     * the abort does not undo them a second time.
+     */
+    void rolledBack(TransactionId tid) {
+        stolenFrom.remove(tid);
+    }
+
     private void updateBufferPool(List<Page> pageList, TransactionId tid) throws DbException{
         for(Page page: pageList){
             page.markDirty(true, tid);
-            //evict page when cache is full
-            if(pages.size() > maxNumPages){
-                evictPage();
-            }
-            LinkNode node;
-            
-            if(pages.containsKey(page.getId())){
-               node = pages.get(page.getId());
-               node.page = page;
-            }
-            
-            else{
-                if(pages.size()>=maxNumPages) evictPage();
-                node = new LinkNode(page.getId(),page);
-                addToHead(node);
-            }
-            pages.put(page.getId(),node);
-            
-            
-        }   
-    
-    
+            addPage(page, true);
+        }
     }
-    
-    
-    
 
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
@@ -417,8 +799,18 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        updateBufferPool(dbFile.insertTuple(tid,t),tid);
+        lockTable(tid, tableId, Permissions.READ_ONLY);
+        ReentrantLock latch = writeLatch(tid);
+        latch.lock();
+        try {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+            updateBufferPool(dbFile.insertTuple(tid,t),tid);
+            // t now has its RecordId, which the secondary indexes point to
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+                updateBufferPool(index.insertTuple(tid, t), tid);
+        } finally {
+            latch.unlock();
+        }
         
      
     }
@@ -442,8 +834,32 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile dbFile= Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        updateBufferPool(dbFile.deleteTuple(tid,t), tid);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        lockTable(tid, tableId, Permissions.READ_ONLY);
+        ReentrantLock latch = writeLatch(tid);
+        latch.lock();
+        try {
+            DbFile dbFile= Database.getCatalog().getDatabaseFile(tableId);
+            // the secondary indexes find their entries by the RecordId of t,
+            // so they go first
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+                updateBufferPool(index.deleteTuple(tid, t), tid);
+            updateBufferPool(dbFile.deleteTuple(tid,t), tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private ReentrantLock writeLatch(TransactionId tid) {
+        return writeLatches.computeIfAbsent(tid, k -> new ReentrantLock());
+    }
+
+    // true if another thread is in the middle of changing pages of tid. A
+    // thread may steal its own transaction's pages: it is not changing any
+    // of them while it looks for a page to evict.
+    private boolean isBeingWritten(TransactionId tid) {
+        ReentrantLock latch = writeLatches.get(tid);
+        return latch != null && latch.isLocked() && !latch.isHeldByCurrentThread();
     }
     
     
@@ -451,14 +867,21 @@ public class BufferPool {
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * NB: Be careful using this routine -- it writes dirty data of live
+     *     transactions to disk, which then has to be undone from the log if
+     *     they abort.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(PageId pageId: pages.keySet()){
-            flushPage(pageId);
+        for(Shard shard : shards){
+            List<PageId> pageIds;
+            synchronized (shard) {
+                pageIds = new ArrayList<>(shard.pages.keySet());
+            }
+            for(PageId pageId: pageIds){
+                flushPage(shard, pageId, true);
+            }
         }
 
     }
@@ -471,12 +894,15 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if(pages.containsKey(pid)){
-            remove(pages.get(pid));
-            pages.remove(pid);
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            if(shard.pages.remove(pid) != null){
+                shard.policy.pageRemoved(pid);
+                numCached.decrementAndGet();
+            }
         }
         
     }
@@ -485,26 +911,86 @@ public class BufferPool {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page flush_page = pages.get(pid).page;
-        if(flush_page.isDirty() != null){
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(flush_page);
-            flush_page.markDirty(false, null);
+        flushPage(shardOf(pid), pid, true);
+    }
+
+    // Flush a page of shard if it is cached and dirty. The page's update is
+    // logged and the log forced before the page is written, so that a page
+    // written before its transaction commits can be undone. The log is
+    // forced without the shard's latch, so that hits on the shard do not
+    // wait for the disk; the caller must not hold it either. The write
+    // latch of the page's transaction is held from logging the page until
+    // it is written; if wait is false and another thread holds it, the
+    // page is left dirty and false is returned.
+    private boolean flushPage(Shard shard, PageId pid, boolean wait) throws IOException {
+        while (true) {
+            Page flush_page;
+            TransactionId dirtier;
+            synchronized (shard) {
+                flush_page = shard.pages.get(pid);
+                if (flush_page == null || (dirtier = flush_page.isDirty()) == null)
+                    return true;
+            }
+            ReentrantLock latch = writeLatch(dirtier);
+            if (wait)
+                latch.lock();
+            else if (!latch.tryLock())
+                return false;
+            try {
+                LogFile log = Database.getLogFile();
+                log.logWrite(dirtier, flush_page.getBeforeImage(), flush_page);
+                log.force();
+                synchronized (shard) {
+                    // unless the page was written, replaced or dirtied by
+                    // another transaction meanwhile
+                    if (shard.pages.get(pid) == flush_page && dirtier.equals(flush_page.isDirty())) {
+                        stolenFrom.add(dirtier);
+                        writePage(flush_page);
+                        return true;
+                    }
+                }
+            } finally {
+                latch.unlock();
+            }
         }
     }
 
+    private void writePage(Page page) throws IOException {
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        page.markDirty(false, null);
+        Database.getLogFile().pageWritten(page.getId());
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for(LinkNode node : pages.values()){
-            PageId pageId = node.pageId;
-            Page page = node.page;
-            if(tid.equals(page.isDirty())){
-                flushPage(pageId);
+        // log all the updates first, so the log is forced only once
+        LogFile log = Database.getLogFile();
+        List<PageId> dirty = new ArrayList<>();
+        for(PageId pageId : lockManager.getHeldPages(tid)){
+            Shard shard = shardOf(pageId);
+            synchronized (shard) {
+                Page page = shard.pages.get(pageId);
+                if(page != null && tid.equals(page.isDirty())){
+                    log.logWrite(tid, page.getBeforeImage(), page);
+                    dirty.add(pageId);
+                }
+            }
+        }
+        if(dirty.isEmpty()) return;
+        log.force();
+        for(PageId pageId : dirty){
+            Shard shard = shardOf(pageId);
+            synchronized (shard) {
+                Page page = shard.pages.get(pageId);
+                if(page != null && tid.equals(page.isDirty())){
+                    writePage(page);
+                }
             }
         }
     }
@@ -512,32 +998,58 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The page is chosen by the eviction policy, preferring clean pages. A
+     * dirty page may be evicted too (STEAL): its update is logged before it
+     * is written, and undone from the log if its transaction aborts. The
+     * shard home is tried first, then the others in turn.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage(int home) throws DbException {
         // some code goes here
         // not necessary for lab1
-        for (int i = 0; i < maxNumPages; i++) {
-        // evict the last node
-        LinkNode node = removeLast();
-        Page evictPage = node.page;
-        if(evictPage.isDirty() != null){
-            addToHead(node);
-        }
-        // flush all pages
-        else{
-            // update pages
+        // look for a clean page in every shard before writing a dirty one
+        for (int i = 0; i < 2 * shards.length; i++) {
+            Shard shard = shards[(home + i) & (shards.length - 1)];
+            boolean steal = i >= shards.length;
+            PageId victim;
+            synchronized (shard) {
+                // a page whose transaction is changing it in another
+                // thread is never stolen
+                victim = shard.policy.victim(pid -> {
+                    TransactionId dirtier = shard.pages.get(pid).isDirty();
+                    return dirtier == null || (steal && !isBeingWritten(dirtier));
+                });
+                if (victim == null)
+                    continue;
+                if (shard.pages.get(victim).isDirty() == null) {
+                    shard.pages.remove(victim);
+                    shard.policy.pageEvicted(victim);
+                    numCached.decrementAndGet();
+                    return;
+                }
+                // a dirty victim is written without the latch, and stays
+                // cached, and tracked by the policy as it is, until it is
+                // clean
+            }
             try{
-                flushPage(node.pageId);
+                if (!flushPage(shard, victim, false))
+                    return;
             }catch (IOException e){
-                e.printStackTrace();
+                throw new DbException("could not write evicted page " + victim + ": " + e);
+            }
+            synchronized (shard) {
+                Page page = shard.pages.get(victim);
+                if (page != null && page.isDirty() == null) {
+                    shard.pages.remove(victim);
+                    shard.policy.pageEvicted(victim);
+                    numCached.decrementAndGet();
+                }
             }
-            pages.remove(node.pageId);
-            return ;
+            // if the page was dirtied again or dropped meanwhile, or its
+            // transaction started changing it, the caller sees whether
+            // there is room and evicts again if not
+            return;
         }
-    }
-
-    throw new DbException("All Page Are Dirty Page");
-
+        throw new DbException("no page can be evicted");
     }
 
 }
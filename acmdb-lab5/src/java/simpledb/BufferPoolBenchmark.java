@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures BufferPool.getPage throughput with 1 to 32 threads. Every thread
+ * runs read-only transactions that read random pages of a table that fits
+ * in the buffer pool, so nearly every request is a hit and the benchmark
+ * shows how well concurrent hits scale. Each thread count is run against a
+ * pool with a single shard and against the default sharded pool. Run with
+ * <pre>
+ *     java -classpath dist/simpledb.jar simpledb.BufferPoolBenchmark [seconds]
+ * </pre>
+ */
+public class BufferPoolBenchmark {
+
+    private static final int POOL_PAGES = 1024;
+    private static final int TABLE_PAGES = 512;
+    private static final int PAGES_PER_TRANSACTION = 100;
+
+    // getPage calls per second with the specified number of threads
+    private static double run(final HeapFile hf, int threads, int shards, final long millis)
+            throws Exception {
+        final BufferPool pool = shards == 0 ? Database.resetBufferPool(POOL_PAGES)
+                : Database.resetBufferPool(POOL_PAGES, EvictionPolicy.Kind.LRU, shards);
+
+        // warm up the pool so that the measured requests are hits
+        TransactionId warm = new TransactionId();
+        for (int i = 0; i < hf.numPages(); i++)
+            pool.getPage(warm, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        pool.transactionComplete(warm);
+
+        final AtomicLong requests = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(exec.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    Random r = new Random();
+                    int numPages = hf.numPages();
+                    start.await();
+                    long end = System.currentTimeMillis() + millis;
+                    long n = 0;
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        for (int i = 0; i < PAGES_PER_TRANSACTION; i++)
+                            pool.getPage(tid, new HeapPageId(hf.getId(), r.nextInt(numPages)),
+                                    Permissions.READ_ONLY);
+                        pool.transactionComplete(tid);
+                        n += PAGES_PER_TRANSACTION;
+                    }
+                    requests.addAndGet(n);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures)
+            f.get();
+        exec.shutdown();
+        return requests.get() * 1000.0 / millis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = 1000L * (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (2 * Type.INT_TYPE.getLen() * 8 + 1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < TABLE_PAGES * tuplesPerPage; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, -i)));
+        File f = File.createTempFile("poolbench", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        HeapFile hf = Utility.openHeapFile(2, f);
+
+        System.out.println(hf.numPages() + " pages, " + POOL_PAGES + " buffer pool pages");
+        System.out.println("threads      1 shard    sharded   (getPage calls/s)");
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            double single = run(hf, threads, 1, millis);
+            double sharded = run(hf, threads, 0, millis);
+            System.out.printf("%7d %12.0f %10.0f%n", threads, single, sharded);
+        }
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares loading a table with {@link Insert}, which goes through
+ * {@link BufferPool#insertTuple} for every tuple, with {@link BulkLoader},
+ * for a heap file and for a B+ tree keyed on a random column. Both report
+ * tuples per second. Run with
+ * <pre>
+ *     java -classpath dist/simpledb.jar simpledb.BulkLoadBenchmark [tuples]
+ * </pre>
+ */
+public class BulkLoadBenchmark {
+
+    private static final int COLUMNS = 2;
+
+    private static File emptyFile() throws IOException {
+        File f = File.createTempFile("bulkbench", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    // tuples per second inserting all of source's tuples into f in one transaction
+    private static double insert(DbFile f, int source) throws Exception {
+        Database.getCatalog().addTable(f, UUID.randomUUID().toString());
+        long start = System.nanoTime();
+        Transaction t = new Transaction();
+        t.start();
+        Insert insert = new Insert(t.getId(), new SeqScan(t.getId(), source, ""), f.getId());
+        insert.open();
+        int n = ((IntField) insert.next().getField(0)).getValue();
+        insert.close();
+        t.commit();
+        return n * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static double bulkLoad(HeapFile f, int source) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        BulkLoader loader = new BulkLoader();
+        loader.load(f, UUID.randomUUID().toString(), new SeqScan(t.getId(), source, ""));
+        t.commit();
+        return loader.getTuplesPerSecond();
+    }
+
+    private static double bulkLoad(BTreeFile f, int source) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        BulkLoader loader = new BulkLoader();
+        loader.load(f, UUID.randomUUID().toString(), new SeqScan(t.getId(), source, ""));
+        t.commit();
+        return loader.getTuplesPerSecond();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        Random r = new Random(0);
+        for (int i = 0; i < tuples; i++)
+            rows.add(new ArrayList<Integer>(Arrays.asList(r.nextInt(), r.nextInt())));
+        File sourceFile = emptyFile();
+        HeapFileEncoder.convert(rows, sourceFile, BufferPool.getPageSize(), COLUMNS);
+        int source = Utility.openHeapFile(COLUMNS, sourceFile).getId();
+        TupleDesc td = Utility.getTupleDesc(COLUMNS);
+
+        System.out.println(tuples + " tuples      insert    bulk load   (tuples/s)");
+        System.out.printf("heap file   %10.0f %12.0f%n",
+                insert(new HeapFile(emptyFile(), td), source),
+                bulkLoad(new HeapFile(emptyFile(), td), source));
+        System.out.printf("B+ tree     %10.0f %12.0f%n",
+                insert(new BTreeFile(emptyFile(), 1, td), source),
+                bulkLoad(new BTreeFile(emptyFile(), 1, td), source));
+        Database.getCatalog().clear();
+    }
+}
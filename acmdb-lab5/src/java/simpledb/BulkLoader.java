@@ -0,0 +1,302 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * BulkLoader fills a new, empty table with the tuples of a child operator
+ * much faster than {@link Insert}: rather than inserting the tuples one by
+ * one through {@link BufferPool#insertTuple}, which locks a page (and maybe
+ * evicts one) for every tuple, it builds whole pages in memory and writes
+ * them straight to the file.
+ * <p>
+ * A B+ tree is built bottom-up: the tuples are sorted on the key with an
+ * {@link ExternalSort}, and the leaves and then every level of internal
+ * pages are written out in key order. Since the number of tuples is known
+ * once they are sorted, the shape of the tree and so the number of every
+ * page is fixed before anything is written, and each page is written once,
+ * with its parent and sibling pointers already set.
+ * <p>
+ * The loaded pages are neither locked nor logged; they are forced to disk
+ * before a load returns, and the table is added to the {@link Catalog}. The
+ * table should not be used by anybody else until the load returns.
+ */
+public class BulkLoader {
+
+    /** Default number of pages of memory for sorting the tuples of a B+ tree */
+    public static final int DEFAULT_SORT_PAGES = 256;
+
+    private final int sortPages;
+
+    private long tuplesLoaded = 0;
+    private long nanos = 0;
+
+    public BulkLoader() {
+        this(DEFAULT_SORT_PAGES);
+    }
+
+    /**
+     * @param sortPages the number of pages of memory the sort for a B+ tree
+     *            may use before it spills runs to disk; at least 3
+     */
+    public BulkLoader(int sortPages) {
+        if (sortPages < 3)
+            throw new IllegalArgumentException("a bulk load needs at least 3 pages to sort");
+        this.sortPages = sortPages;
+    }
+
+    /** @return the number of tuples loaded by the last load */
+    public long getTuplesLoaded() {
+        return tuplesLoaded;
+    }
+
+    /** @return the number of tuples per second the last load loaded */
+    public double getTuplesPerSecond() {
+        return nanos == 0 ? 0 : tuplesLoaded * 1e9 / nanos;
+    }
+
+    // check that child fits f, and add f to the catalog so that its pages
+    // can find their TupleDesc
+    private static void addTable(DbFile f, boolean empty, String name, String pkeyField,
+            DbIterator child) throws DbException {
+        if (!empty)
+            throw new DbException("can only bulk load an empty table, " + name + " is not");
+        if (!child.getTupleDesc().equals(f.getTupleDesc()))
+            throw new DbException("the tuples to load do not match the schema of " + name);
+        Database.getCatalog().addTable(f, name, pkeyField);
+    }
+
+    // a copy of t with the TupleDesc of the table
+    private static Tuple copy(TupleDesc td, Tuple t) {
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            copy.setField(i, t.getField(i));
+        return copy;
+    }
+
+    /**
+     * Load the tuples of child into a heap file, filling every page but the
+     * last, and add it to the catalog.
+     *
+     * @param f the heap file to load; it must have no pages
+     * @param name the name to add the table to the catalog under
+     * @param child the tuples to load; it is opened and closed by the load
+     * @throws DbException if f is not empty, or child's tuples do not match
+     *             its TupleDesc
+     */
+    public void load(HeapFile f, String name, DbIterator child)
+            throws DbException, TransactionAbortedException, IOException {
+        long start = System.nanoTime();
+        addTable(f, f.numPages() == 0, name, "", child);
+        TupleDesc td = f.getTupleDesc();
+
+        long n = 0;
+        int pageNo = 0;
+        HeapPage page = null;
+        child.open();
+        while (child.hasNext()) {
+            if (page == null)
+                page = new HeapPage(new HeapPageId(f.getId(), pageNo), HeapPage.createEmptyPageData());
+            page.insertTuple(copy(td, child.next()));
+            n++;
+            if (page.getNumEmptySlots() == 0) {
+                f.writePage(page);
+                pageNo++;
+                page = null;
+            }
+        }
+        child.close();
+        if (page != null)
+            f.writePage(page);
+        f.force();
+
+        tuplesLoaded = n;
+        nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Load the tuples of child into a B+ tree, built bottom-up from the
+     * tuples sorted on the key field of f, and add it to the catalog.
+     *
+     * @param f the B+ tree to load; its file must be empty
+     * @param name the name to add the table to the catalog under
+     * @param child the tuples to load; it is opened and closed by the load
+     * @throws DbException if f is not empty, or child's tuples do not match
+     *             its TupleDesc
+     */
+    public void load(BTreeFile f, String name, DbIterator child)
+            throws DbException, TransactionAbortedException, IOException {
+        long start = System.nanoTime();
+        TupleDesc td = f.getTupleDesc();
+        addTable(f, f.getFile().length() == 0, name, td.getFieldName(f.keyField()), child);
+
+        ExternalSort sort = new ExternalSort(td,
+                new BTreeFileEncoder.TupleComparator(f.keyField()), sortPages);
+        int n;
+        try {
+            child.open();
+            while (child.hasNext())
+                sort.add(copy(td, child.next()));
+            child.close();
+            n = sort.numTuples();
+            // an empty file is an empty tree, whose root is created on demand
+            if (n > 0)
+                new TreeBuilder(f, n).build(sort.iterator());
+        } finally {
+            sort.close();
+        }
+        f.force();
+
+        tuplesLoaded = n;
+        nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Writes the pages of a B+ tree holding a known number of tuples. Level
+     * 0 are the leaves, the root is the only page of the top level. The
+     * pages of a level are numbered consecutively after those of the level
+     * below, and the items (tuples or child pages) of a level are spread
+     * over its pages as evenly as possible, so no page is less than half
+     * full.
+     */
+    private static class TreeBuilder {
+        private final BTreeFile f;
+        private final int tableid;
+        private final int keyField;
+        private final Type keyType;
+        private final Type[] types;
+        private final int pageSize = BufferPool.getPageSize();
+
+        // for each level: the number of items, the number of pages and the
+        // number of the first page
+        private final ArrayList<Integer> items = new ArrayList<Integer>();
+        private final ArrayList<Integer> pages = new ArrayList<Integer>();
+        private final ArrayList<Integer> first = new ArrayList<Integer>();
+
+        // for each internal level: the entries of the page being filled, its
+        // index in the level, the smallest key below it and its last child
+        private final ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
+        private int[] filling;
+        private Field[] lowKey;
+        private BTreePageId[] lastChild;
+
+        TreeBuilder(BTreeFile f, int numTuples) {
+            this.f = f;
+            this.tableid = f.getId();
+            this.keyField = f.keyField();
+            TupleDesc td = f.getTupleDesc();
+            this.keyType = td.getFieldType(keyField);
+            this.types = new Type[td.numFields()];
+            for (int i = 0; i < types.length; i++)
+                types[i] = td.getFieldType(i);
+
+            // pointerbytes: left sibling pointer, right sibling pointer, parent pointer
+            int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+            int nrecords = (pageSize * 8 - leafpointerbytes * 8) / (td.getSize() * 8 + 1);
+            int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+            // pointerbytes: one extra child pointer, parent pointer, child page category
+            int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+            int nentries = (pageSize * 8 - internalpointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+
+            int n = numTuples;
+            int perPage = nrecords;
+            int next = 1;
+            while (true) {
+                int p = (n + perPage - 1) / perPage;
+                items.add(n);
+                pages.add(p);
+                first.add(next);
+                next += p;
+                if (p == 1)
+                    break;
+                n = p;
+                perPage = nentries + 1;
+            }
+
+            int levels = pages.size();
+            filling = new int[levels];
+            lowKey = new Field[levels];
+            lastChild = new BTreePageId[levels];
+            for (int i = 0; i < levels; i++)
+                entries.add(new ArrayList<BTreeEntry>());
+        }
+
+        // the number of items on page p of a level
+        private int size(int level, int p) {
+            int base = items.get(level) / pages.get(level);
+            return p < items.get(level) % pages.get(level) ? base + 1 : base;
+        }
+
+        // the index of the page of a level holding item i
+        private int pageOf(int level, int i) {
+            int base = items.get(level) / pages.get(level);
+            int rem = items.get(level) % pages.get(level);
+            if (i < rem * (base + 1))
+                return i / (base + 1);
+            return rem + (i - rem * (base + 1)) / base;
+        }
+
+        private BTreePageId pageId(int level, int p) {
+            return new BTreePageId(tableid, first.get(level) + p,
+                    level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+        }
+
+        private BTreePageId parentId(int level, int p) {
+            if (level == pages.size() - 1)
+                return BTreeRootPtrPage.getId(tableid);
+            return pageId(level + 1, pageOf(level + 1, p));
+        }
+
+        void build(Iterator<Tuple> sorted) throws DbException, IOException {
+            int top = pages.size() - 1;
+            f.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+                    BTreeFileEncoder.convertToRootPtrPage(first.get(top),
+                            top == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL, 0)));
+
+            int leaves = pages.get(0);
+            for (int p = 0; p < leaves; p++) {
+                ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+                for (int i = size(0, p); i > 0; i--)
+                    tuples.add(sorted.next());
+                BTreePageId pid = pageId(0, p);
+                BTreeLeafPage leaf = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(
+                        tuples, pageSize, types.length, types, keyField), keyField);
+                leaf.setParentId(parentId(0, p));
+                leaf.setLeftSiblingId(p > 0 ? pageId(0, p - 1) : null);
+                leaf.setRightSiblingId(p < leaves - 1 ? pageId(0, p + 1) : null);
+                f.writePage(leaf);
+                if (top > 0)
+                    addChild(1, pid, tuples.get(0).getField(keyField));
+            }
+        }
+
+        // add a child page, whose smallest key is key, to the page being
+        // filled on an internal level, and write the page out once it is full
+        private void addChild(int level, BTreePageId child, Field key) throws DbException, IOException {
+            ArrayList<BTreeEntry> pageEntries = entries.get(level);
+            if (lastChild[level] == null)
+                lowKey[level] = key;
+            else
+                pageEntries.add(new BTreeEntry(key, lastChild[level], child));
+            lastChild[level] = child;
+            int p = filling[level];
+            if (pageEntries.size() + 1 < size(level, p))
+                return;
+
+            BTreePageId pid = pageId(level, p);
+            int childCategory = level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+            BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(
+                    pageEntries, pageSize, keyType, childCategory), keyField);
+            page.setParentId(parentId(level, p));
+            f.writePage(page);
+
+            Field low = lowKey[level];
+            entries.set(level, new ArrayList<BTreeEntry>());
+            lastChild[level] = null;
+            filling[level]++;
+            if (level < pages.size() - 1)
+                addChild(level + 1, pid, low);
+        }
+    }
+}
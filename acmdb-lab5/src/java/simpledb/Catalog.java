@@ -33,6 +33,8 @@ public class Catalog {
     }
     
     private List<Table> tables;
+    // the secondary indexes on each table, by table id
+    private final Map<Integer, List<SecondaryIndex>> indexes = new ConcurrentHashMap<Integer, List<SecondaryIndex>>();
     
     /**
      * Constructor.
@@ -157,10 +159,57 @@ public class Catalog {
 
     }
     
+    /**
+     * Register a secondary index on a table. The B+ tree of the index must
+     * already be in the catalog, under the name of the index.
+     * @param index the index to add
+     */
+    public void addIndex(SecondaryIndex index) {
+        List<SecondaryIndex> onTable = new ArrayList<SecondaryIndex>(getIndexes(index.getTableId()));
+        onTable.add(index);
+        indexes.put(index.getTableId(), Collections.unmodifiableList(onTable));
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table, which may be none.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> onTable = indexes.get(tableid);
+        return onTable == null ? Collections.<SecondaryIndex>emptyList() : onTable;
+    }
+
+    /**
+     * Remove the table with the specified id from the catalog, if it is present.
+     * Its secondary indexes are removed with it.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        List<SecondaryIndex> onTable = indexes.remove(tableid);
+        if (onTable != null) {
+            for (SecondaryIndex index : onTable)
+                removeTable(index.getFile().getId());
+        }
+        Iterator<Table> iter = this.tables.iterator();
+        while(iter.hasNext()){
+            Table table = iter.next();
+            if(table.file.getId() == tableid){
+                iter.remove();
+                table.file.close();
+            }
+        }
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here    
+        for(Table table : this.tables){
+            table.file.close();
+        }
         this.tables.clear();
+        this.indexes.clear();
     }
     
     /**
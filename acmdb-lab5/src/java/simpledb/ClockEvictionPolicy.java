@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK (second chance) replacement. Cached pages sit in a ring of slots,
+ * each with a reference bit that is set on every hit. To find a victim the
+ * clock hand sweeps the ring, clearing set bits, and evicts the first
+ * evictable page whose bit is already clear. A hit only sets a bit, instead
+ * of relinking a list node as LRU does.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    // ring of slots; null marks a free slot
+    private final ArrayList<PageId> slots = new ArrayList<PageId>();
+    private final ArrayList<Boolean> referenced = new ArrayList<Boolean>();
+    private final HashMap<PageId, Integer> slotOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private int hand = 0;
+
+    public void pageAdded(PageId pid) {
+        int slot;
+        if (freeSlots.isEmpty()) {
+            slot = slots.size();
+            slots.add(pid);
+            referenced.add(Boolean.TRUE);
+        } else {
+            slot = freeSlots.pop();
+            slots.set(slot, pid);
+            referenced.set(slot, Boolean.TRUE);
+        }
+        slotOf.put(pid, slot);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null)
+            referenced.set(slot, Boolean.TRUE);
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots.set(slot, null);
+            freeSlots.push(slot);
+        }
+    }
+
+    public PageId victim(java.util.function.Predicate<PageId> evictable) {
+        // two full turns clear every bit, so a third cannot find anything new
+        for (int i = 0; i < 2 * slots.size(); i++) {
+            if (hand >= slots.size())
+                hand = 0;
+            int slot = hand++;
+            PageId pid = slots.get(slot);
+            if (pid == null)
+                continue;
+            if (referenced.get(slot)) {
+                referenced.set(slot, Boolean.FALSE);
+            } else if (evictable.test(pid)) {
+                // the victim keeps its slot, with its bit clear, until it
+                // is evicted
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public void pageEvicted(PageId pid) {
+        pageRemoved(pid);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures commit throughput with 1 to 16 threads. Every thread runs
+ * transactions that insert one tuple into a table of its own and commit, so
+ * the threads never wait for each other's locks and the cost of a commit is
+ * dominated by forcing the log. Each thread count is run with a force per
+ * commit and with group commit, reporting the 99th percentile commit latency
+ * too; checkpoints can be taken in the background meanwhile, to check that
+ * they do not stall commits. Run with
+ * <pre>
+ *     java -classpath dist/simpledb.jar simpledb.CommitBenchmark [seconds [window in us [checkpoint interval in ms]]]
+ * </pre>
+ */
+public class CommitBenchmark {
+
+    // commits per second with the specified number of threads; the commit
+    // latencies in microseconds are added to latencies
+    private static double run(final HeapFile[] tables, int threads, final long millis,
+            final List<Long> latencies) throws Exception {
+        final AtomicLong commits = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final HeapFile table = tables[t];
+            futures.add(exec.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    TupleDesc td = table.getTupleDesc();
+                    start.await();
+                    long end = System.currentTimeMillis() + millis;
+                    long n = 0;
+                    List<Long> mine = new ArrayList<Long>();
+                    while (System.currentTimeMillis() < end) {
+                        long begin = System.nanoTime();
+                        Transaction tx = new Transaction();
+                        tx.start();
+                        Tuple tuple = new Tuple(td);
+                        tuple.setField(0, new IntField((int) n));
+                        tuple.setField(1, new IntField((int) -n));
+                        Database.getBufferPool().insertTuple(tx.getId(), table.getId(), tuple);
+                        tx.commit();
+                        mine.add((System.nanoTime() - begin) / 1000);
+                        n++;
+                    }
+                    commits.addAndGet(n);
+                    synchronized (latencies) {
+                        latencies.addAll(mine);
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures)
+            f.get();
+        exec.shutdown();
+        return commits.get() * 1000.0 / millis;
+    }
+
+    private static long p99(List<Long> latencies) {
+        if (latencies.isEmpty())
+            return 0;
+        Collections.sort(latencies);
+        return latencies.get((int) (latencies.size() * 0.99));
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = 1000L * (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+        long window = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        long checkpointMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+        HeapFile[] tables = new HeapFile[16];
+        for (int i = 0; i < tables.length; i++) {
+            File f = File.createTempFile("commitbench", ".dat");
+            f.deleteOnExit();
+            HeapFileEncoder.convert(new ArrayList<ArrayList<Integer>>(), f, BufferPool.getPageSize(), 2);
+            tables[i] = Utility.openHeapFile(2, f);
+        }
+
+        LogFile log = Database.getLogFile();
+        log.setCheckpointInterval(checkpointMillis);
+        System.out.println("group commit window " + window + " us, checkpoint interval " + checkpointMillis + " ms");
+        System.out.println("threads       force/commit         group commit   (commits/s, commits per fsync, p99 us)");
+        for (int threads = 1; threads <= tables.length; threads *= 2) {
+            log.setGroupCommit(false, 0, 1);
+            long commits = log.getCommitCount(), forces = log.getForceCount();
+            List<Long> syncLatencies = new ArrayList<Long>();
+            double sync = run(tables, threads, millis, syncLatencies);
+            double syncRatio = (log.getCommitCount() - commits) / (double) Math.max(1, log.getForceCount() - forces);
+
+            log.setGroupCommit(true, window, threads);
+            commits = log.getCommitCount();
+            forces = log.getForceCount();
+            List<Long> groupLatencies = new ArrayList<Long>();
+            double group = run(tables, threads, millis, groupLatencies);
+            double groupRatio = (log.getCommitCount() - commits) / (double) Math.max(1, log.getForceCount() - forces);
+            System.out.printf("%7d %9.0f %5.2f %6d %9.0f %5.2f %6d%n", threads, sync, syncRatio,
+                    p99(syncLatencies), group, groupRatio, p99(groupLatencies));
+        }
+        log.setCheckpointInterval(0);
+        log.setGroupCommit(false, 0, 1);
+        Database.getCatalog().clear();
+    }
+}
@@ -55,11 +55,32 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, EvictionPolicy.Kind.LRU);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that evicts pages with the specified policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy.Kind eviction) {
+        return setBufferPool(new BufferPool(pages, eviction));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that evicts pages with the specified policy and splits its page table
+     * into numShards shards, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy.Kind eviction, int numShards) {
+        return setBufferPool(new BufferPool(pages, eviction, numShards));
+    }
+
+    private static BufferPool setBufferPool(BufferPool pool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +96,14 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        // close the files of the tables of the old instance and stop its
+        // log flusher and checkpointer
+        Database old = _instance.getAndSet(new Database());
+        old._catalog.clear();
+        if (old._logfile != null) {
+            old._logfile.setCheckpointInterval(0);
+            old._logfile.setGroupCommit(false, 0, 1);
+        }
     }
 
 }
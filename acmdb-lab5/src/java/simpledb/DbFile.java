@@ -88,4 +88,12 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Release any resources, such as open file handles, held by this file.
+     * Called when the file is dropped from the catalog; a file that is used
+     * again afterwards reacquires them on demand.
+     */
+    public default void close() {
+    }
 }
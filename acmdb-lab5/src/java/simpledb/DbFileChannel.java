@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * DbFileChannel keeps a {@link FileChannel} open on the file backing a
+ * {@link DbFile}, so that pages can be read and written with positional I/O
+ * instead of opening and closing the file for every page.
+ * <p>
+ * Positional reads and writes do not move a shared file pointer, so any
+ * number of threads may use the same DbFileChannel concurrently. The channel
+ * is opened lazily, and reopened if it was closed (by {@link #close}, or by
+ * the JDK when a thread doing I/O on it was interrupted).
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    private final File file;
+    private FileChannel channel = null;
+
+    /**
+     * @param f the file to read and write; it is created when first accessed
+     *            if it does not exist yet
+     */
+    public DbFileChannel(File f) {
+        this.file = f;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        return channel;
+    }
+
+    /**
+     * Read up to buf.length bytes starting at position into buf.
+     *
+     * @return the number of bytes read, which is less than buf.length only
+     *         at the end of the file, or -1 if position is at or past the end
+     *         of the file
+     */
+    public int read(byte[] buf, long position) throws IOException {
+        FileChannel fc = channel();
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        int total = 0;
+        while (bb.hasRemaining()) {
+            int n = fc.read(bb, position + total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total == 0 && buf.length > 0 ? -1 : total;
+    }
+
+    /** Write all of data to the file, starting at position. */
+    public void write(byte[] data, long position) throws IOException {
+        FileChannel fc = channel();
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        while (bb.hasRemaining())
+            fc.write(bb, position + bb.position());
+    }
+
+    /**
+     * Write data at the end of the file.
+     *
+     * @return the position data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = channel().size();
+        write(data, position);
+        return position;
+    }
+
+    /** Force everything written so far to the disk. */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    /**
+     * Map the whole file read-only into memory. The mapping stays valid after
+     * the channel is closed; it sees later writes to the mapped range, but
+     * not pages appended after it was made. Only the first
+     * Integer.MAX_VALUE bytes of larger files are mapped.
+     */
+    public MappedByteBuffer map() throws IOException {
+        FileChannel fc = channel();
+        return fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fc.size(), Integer.MAX_VALUE));
+    }
+
+    /** @return true if the channel is open, i.e. holds a file descriptor */
+    public synchronized boolean isOpen() {
+        return channel != null && channel.isOpen();
+    }
+
+    /** Close the channel; it is reopened if the file is accessed again. */
+    public synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+/**
+ * An EvictionPolicy decides which page the {@link BufferPool} evicts when it
+ * is full. The buffer pool tells the policy about every page it caches,
+ * every hit and every page it drops, and asks it for a victim when it needs
+ * room.
+ * <p>
+ * Implementations need not be thread safe; the buffer pool serializes calls.
+ */
+public interface EvictionPolicy {
+
+    /** The policies a BufferPool can be created with. */
+    public enum Kind {
+        /** Least recently used page; a long scan flushes the whole pool */
+        LRU,
+        /** Second chance approximation of LRU, with O(1) bookkeeping per hit */
+        CLOCK,
+        /** 2Q: pages must be referenced twice to enter the main LRU queue */
+        TWO_Q,
+        /** LRU-2: evicts the page whose second to last reference is oldest */
+        LRU_K;
+
+        /**
+         * @param numPages the number of pages of the buffer pool
+         * @return a new policy of this kind for a pool of numPages pages
+         */
+        public EvictionPolicy create(int numPages) {
+            switch (this) {
+            case CLOCK:
+                return new ClockEvictionPolicy();
+            case TWO_Q:
+                return new TwoQEvictionPolicy(numPages);
+            case LRU_K:
+                return new LruKEvictionPolicy(2, numPages);
+            default:
+                return new LruEvictionPolicy();
+            }
+        }
+    }
+
+    /** A page that was not cached has been added to the buffer pool. */
+    void pageAdded(PageId pid);
+
+    /** A cached page has been requested again. */
+    void pageAccessed(PageId pid);
+
+    /** A cached page has been dropped from the buffer pool without eviction. */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose a page to evict, but keep tracking it as it is until
+     * {@link #pageEvicted} is called. The buffer pool uses this for a dirty
+     * victim, which stays cached until it has been written, and may not be
+     * evicted after all if the write fails or the page is dirtied again.
+     *
+     * @param evictable tells which cached pages may be evicted; pages it
+     *            rejects (e.g. dirty pages) must stay tracked by the policy
+     * @return the page to evict, or null if no cached page is evictable
+     */
+    PageId victim(java.util.function.Predicate<PageId> evictable);
+
+    /** A page chosen by {@link #victim} has been evicted; forget about it. */
+    void pageEvicted(PageId pid);
+
+    /**
+     * Choose a page to evict and forget about it.
+     *
+     * @see #victim
+     */
+    default PageId evict(java.util.function.Predicate<PageId> evictable) {
+        PageId victim = victim(evictable);
+        if (victim != null)
+            pageEvicted(victim);
+        return victim;
+    }
+}
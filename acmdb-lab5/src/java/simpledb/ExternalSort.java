@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts more tuples than fit in memory. Tuples are collected in
+ * memory until they fill the memory budget, then sorted and written out as
+ * a run to a {@link SpillFile}; the runs are merged when the sorted tuples
+ * are read back. When there are more runs than can be merged at once with
+ * the budget (one page per run, one for the output), groups of runs are
+ * first merged into longer runs.
+ * <p>
+ * If all the tuples fit in the budget nothing is written to disk. The sort
+ * is stable.
+ */
+public class ExternalSort {
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int memoryPages;
+    private final int runTuples;
+
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private final LinkedList<SpillFile> runs = new LinkedList<SpillFile>();
+    private int numTuples = 0;
+
+    /**
+     * @param td the TupleDesc of the tuples that will be added
+     * @param comparator the order to sort in
+     * @param memoryPages the number of pages of tuples to keep in memory; at
+     *            least 3, so that two runs can be merged
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int memoryPages) {
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("an external sort needs at least 3 pages of memory");
+        this.td = td;
+        this.comparator = comparator;
+        this.memoryPages = memoryPages;
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        this.runTuples = memoryPages * tuplesPerPage;
+    }
+
+    /** @return the number of tuples added */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /** @return the number of runs written to disk so far */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    public void add(Tuple t) throws DbException, IOException {
+        buffer.add(t);
+        numTuples++;
+        if (buffer.size() >= runTuples)
+            spill();
+    }
+
+    // sort the buffered tuples and write them out as a run
+    private void spill() throws DbException, IOException {
+        Collections.sort(buffer, comparator);
+        SpillFile run = new SpillFile(td);
+        runs.add(run);
+        for (Tuple t : buffer)
+            run.add(t);
+        buffer = new ArrayList<Tuple>();
+    }
+
+    /**
+     * @return an iterator over all the tuples added, in sorted order. No
+     *         more tuples may be added after this call, but it may be
+     *         called again to read the tuples once more.
+     */
+    public Iterator<Tuple> iterator() throws DbException, IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            return buffer.iterator();
+        }
+        if (!buffer.isEmpty())
+            spill();
+
+        // merge consecutive groups of runs, keeping them in order, until
+        // the rest can be merged in one pass
+        int fanIn = memoryPages - 1;
+        while (runs.size() > fanIn) {
+            List<SpillFile> merged = new ArrayList<SpillFile>();
+            while (!runs.isEmpty()) {
+                List<SpillFile> group = new ArrayList<SpillFile>();
+                while (group.size() < fanIn && !runs.isEmpty())
+                    group.add(runs.removeFirst());
+                SpillFile run = new SpillFile(td);
+                merged.add(run);
+                Iterator<Tuple> it = merge(group);
+                while (it.hasNext())
+                    run.add(it.next());
+                for (SpillFile done : group)
+                    done.close();
+            }
+            runs.addAll(merged);
+        }
+        return merge(runs);
+    }
+
+    // the head of a run that is being merged
+    private static class RunHead {
+        final int run;
+        final Iterator<Tuple> it;
+        Tuple tuple;
+
+        RunHead(int run, Iterator<Tuple> it) {
+            this.run = run;
+            this.it = it;
+            this.tuple = it.next();
+        }
+    }
+
+    private Iterator<Tuple> merge(List<SpillFile> group) throws IOException {
+        // ties go to the earlier run, which keeps the sort stable
+        final PriorityQueue<RunHead> heads = new PriorityQueue<RunHead>(group.size(),
+                new Comparator<RunHead>() {
+                    public int compare(RunHead a, RunHead b) {
+                        int cmp = comparator.compare(a.tuple, b.tuple);
+                        return cmp != 0 ? cmp : Integer.compare(a.run, b.run);
+                    }
+                });
+        for (int i = 0; i < group.size(); i++) {
+            Iterator<Tuple> it = group.get(i).iterator();
+            if (it.hasNext())
+                heads.add(new RunHead(i, it));
+        }
+
+        return new Iterator<Tuple>() {
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            public Tuple next() {
+                RunHead head = heads.poll();
+                if (head == null)
+                    throw new NoSuchElementException();
+                Tuple t = head.tuple;
+                if (head.it.hasNext()) {
+                    head.tuple = head.it.next();
+                    heads.add(head);
+                }
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Delete the runs written to disk and drop the buffered tuples. */
+    public void close() {
+        for (SpillFile run : runs)
+            run.close();
+        runs.clear();
+        buffer = new ArrayList<Tuple>();
+        numTuples = 0;
+    }
+}
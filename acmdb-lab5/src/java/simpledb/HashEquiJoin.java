@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -16,7 +17,38 @@ public class HashEquiJoin extends Operator {
     transient private Tuple t2 = null;
     
     final Map<Object, List<Tuple>> map = new HashMap<>();
+    /** Default number of build (child1) tuples that are kept in memory */
     public final static int MAP_SIZE = 20000;
+    /** Number of partitions the inputs are split into once child1 does not fit in memory */
+    public final static int NUM_PARTITIONS = 16;
+
+    private final int maxBuildTuples;
+
+    // When both join columns are ints, child1 is kept in an IntHashTable
+    // instead of map: the rows of one key are chained through nextRow,
+    // starting at firstRow[entry id], so building and probing do not allocate
+    // per tuple.
+    private transient IntHashTable intTable = null;
+    private transient Tuple[] rows;
+    private transient int[] nextRow;
+    private transient int[] firstRow;
+    private int numRows = 0;
+    private int chain = -1;
+
+    // Once child1 overflows maxBuildTuples, both inputs are hash partitioned
+    // into spill files and joined partition by partition (Grace hash join).
+    // Partition 0 stays in memory for as long as it fits, and child2 tuples
+    // that fall into it are joined while child2 is being partitioned (hybrid
+    // hash join).
+    private boolean spilled = false;
+    private boolean resident = false;
+    private boolean partitioning = false;
+    private int inMemory = 0;
+    private int curPart = 0;
+    private transient SpillFile[] buildParts = null;
+    private transient SpillFile[] probeParts = null;
+    private transient Iterator<Tuple> buildIt = null;
+    private transient Iterator<Tuple> probeIt = null;
 
 
     /**
@@ -31,11 +63,33 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join; the hash
+     *            table is built on this side
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param maxBuildTuples
+     *            The memory budget: at most this many child1 tuples are held
+     *            in memory, the rest is spilled to disk
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int maxBuildTuples) {
         // some code goes here
+        if (maxBuildTuples <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
         this.predicate = p;
         this.child1 = child1;
         this.child2 = child2;
         this.mergeTd = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.maxBuildTuples = maxBuildTuples;
 
     }
 
@@ -60,20 +114,157 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return this.child2.getTupleDesc().getFieldName(this.predicate.getField2());
     }
-    
-    // add new function
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+
+    /** @return true if the last open/rewind had to spill child1 to disk */
+    public boolean isSpilled() {
+        return this.spilled;
+    }
+
+    // Pick a partition from the high bits of a scrambled hash code, so the
+    // keys of one partition still spread over all buckets of the HashMap.
+    private static int partition(Field f) {
+        int h = f.hashCode() * 0x9E3779B9;
+        return (h >>> 16) % NUM_PARTITIONS;
+    }
+
+    private void addToMap(Tuple t) {
+        if (intTable == null) {
+            map.computeIfAbsent(t.getField(predicate.getField1()), k -> new ArrayList<>()).add(t);
+            return;
+        }
+        int groups = intTable.size();
+        int id = intTable.getOrAdd(((IntField) t.getField(predicate.getField1())).getValue());
+        if (id == firstRow.length)
+            firstRow = Arrays.copyOf(firstRow, firstRow.length * 2);
+        if (numRows == rows.length) {
+            rows = Arrays.copyOf(rows, rows.length * 2);
+            nextRow = Arrays.copyOf(nextRow, nextRow.length * 2);
+        }
+        rows[numRows] = t;
+        nextRow[numRows] = id == groups ? -1 : firstRow[id];
+        firstRow[id] = numRows++;
+    }
+
+    private void clearMap() {
         map.clear();
+        if (intTable != null) {
+            intTable.clear();
+            Arrays.fill(rows, 0, numRows, null);
+            numRows = 0;
+        }
+        chain = -1;
+    }
+
+    // every tuple held in memory, in no particular order
+    private List<Tuple> tuplesInMap() {
+        List<Tuple> all = new ArrayList<>();
+        if (intTable == null) {
+            for (List<Tuple> l : map.values())
+                all.addAll(l);
+        } else {
+            for (int i = 0; i < numRows; i++)
+                all.add(rows[i]);
+        }
+        return all;
+    }
+
+    // point listIt or chain at the build tuples that match t2
+    private void probe(Tuple t2) {
+        Field f = t2.getField(predicate.getField2());
+        if (intTable == null) {
+            List<Tuple> l = map.get(f);
+            listIt = l == null ? null : l.iterator();
+        } else {
+            int id = intTable.get(((IntField) f).getValue());
+            chain = id < 0 ? -1 : firstRow[id];
+        }
+    }
+
+    // read all of child1; it ends up in the map or, if too large, in buildParts
+    private void build() throws DbException, TransactionAbortedException {
+        clearMap();
+        inMemory = 0;
         while (child1.hasNext()) {
             t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(predicate.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            if (!spilled) {
+                if (inMemory < maxBuildTuples) {
+                    addToMap(t1);
+                    inMemory++;
+                    continue;
+                }
+                startSpilling();
+            }
+            int p = partition(t1.getField(predicate.getField1()));
+            if (p == 0 && resident) {
+                if (inMemory < maxBuildTuples) {
+                    addToMap(t1);
+                    inMemory++;
+                    continue;
+                }
+                // partition 0 does not fit either: spill it as well
+                for (Tuple t : tuplesInMap())
+                    spill(buildParts[0], t);
+                clearMap();
+                inMemory = 0;
+                resident = false;
+            }
+            spill(buildParts[p], t1);
         }
-        return cnt > 0;
+        partitioning = spilled;
+        curPart = resident ? 0 : -1;
+    }
 
+    // move every in-memory tuple that is not in partition 0 to its spill file
+    private void startSpilling() throws DbException {
+        buildParts = new SpillFile[NUM_PARTITIONS];
+        probeParts = new SpillFile[NUM_PARTITIONS];
+        try {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                buildParts[i] = new SpillFile(child1.getTupleDesc());
+                probeParts[i] = new SpillFile(child2.getTupleDesc());
+            }
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+        spilled = true;
+        resident = true;
+
+        List<Tuple> all = tuplesInMap();
+        clearMap();
+        inMemory = 0;
+        for (Tuple t : all) {
+            int p = partition(t.getField(predicate.getField1()));
+            if (p == 0) {
+                addToMap(t);
+                inMemory++;
+            } else {
+                spill(buildParts[p], t);
+            }
+        }
+    }
+
+    private void spill(SpillFile f, Tuple t) throws DbException {
+        try {
+            f.add(t);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+    }
+
+    private void closeSpillFiles() {
+        if (buildParts != null) {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                buildParts[i].close();
+                probeParts[i].close();
+            }
+        }
+        buildParts = null;
+        probeParts = null;
+        buildIt = null;
+        probeIt = null;
+        spilled = false;
+        resident = false;
+        partitioning = false;
     }
 
     
@@ -82,7 +273,17 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         child1.open();
         child2.open();
-        loadMap();
+        if (child1.getTupleDesc().getFieldType(predicate.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(predicate.getField2()) == Type.INT_TYPE) {
+            intTable = new IntHashTable();
+            rows = new Tuple[16];
+            nextRow = new int[16];
+            firstRow = new int[16];
+            numRows = 0;
+        } else {
+            intTable = null;
+        }
+        build();
         super.open();
 
         
@@ -96,21 +297,34 @@ public class HashEquiJoin extends Operator {
         this.t1=null;
         this.t2=null;
         this.listIt=null;
-        this.map.clear();
+        clearMap();
+        this.intTable = null;
+        this.rows = null;
+        this.nextRow = null;
+        this.firstRow = null;
+        closeSpillFiles();
 
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        closeSpillFiles();
         child1.rewind();
         child2.rewind();
-
+        this.listIt = null;
+        this.t2 = null;
+        build();
     }
 
     transient Iterator<Tuple> listIt = null;
     
     private Tuple processList() {
-        t1 = listIt.next();
+        if (listIt != null && listIt.hasNext()) {
+            t1 = listIt.next();
+        } else {
+            t1 = rows[chain];
+            chain = nextRow[chain];
+        }
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -146,33 +360,71 @@ public class HashEquiJoin extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (true) {
+            if ((listIt != null && listIt.hasNext()) || chain >= 0) {
+                return processList();
+            }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+            t2 = nextProbeTuple();
+            if (t2 == null)
+                return null;
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
-            List<Tuple> l = map.get(t2.getField(predicate.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
+            probe(t2);
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    // the next child2 tuple to look up in the map, or null when the join is done
+    private Tuple nextProbeTuple() throws TransactionAbortedException, DbException {
+        if (!spilled)
+            return child2.hasNext() ? child2.next() : null;
+
+        if (partitioning) {
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                int p = partition(t.getField(predicate.getField2()));
+                if (p == 0 && resident)
+                    return t;
+                if (buildParts[p].numTuples() > 0)
+                    spill(probeParts[p], t);
+            }
+            partitioning = false;
         }
 
-        return null;
+        while (probeIt == null || !probeIt.hasNext()) {
+            if (!loadNextChunk())
+                return null;
+        }
+        return probeIt.next();
+    }
 
+    // Load the next maxBuildTuples build tuples of the current partition, or
+    // move on to the next partition. A partition that is still too large is
+    // joined chunk by chunk, rescanning its probe side once per chunk.
+    private boolean loadNextChunk() throws DbException {
+        clearMap();
+        try {
+            if (buildIt == null || !buildIt.hasNext()) {
+                do {
+                    curPart++;
+                } while (curPart < NUM_PARTITIONS && (buildParts[curPart].numTuples() == 0
+                        || probeParts[curPart].numTuples() == 0));
+                if (curPart >= NUM_PARTITIONS) {
+                    buildIt = null;
+                    probeIt = null;
+                    return false;
+                }
+                buildIt = buildParts[curPart].iterator();
+            }
+            int cnt = 0;
+            while (buildIt.hasNext() && cnt++ < maxBuildTuples)
+                addToMap(buildIt.next());
+            probeIt = probeParts[curPart].iterator();
+        } catch (IOException e) {
+            throw new DbException("could not read spill file: " + e.getMessage());
+        }
+        return true;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -24,12 +25,26 @@ public class HeapFile implements DbFile {
      */
     private final File file;
     private final TupleDesc tupleDesc;
+    private final DbFileChannel channel;
+    // when set, sequential scans read pages from mapping instead of going
+    // through readPage and the buffer pool
+    private volatile boolean memoryMapped = false;
+    // read-only mapping of the whole file; null until first needed
+    private ByteBuffer mapping = null;
+    // Free space map: the pages that may have an empty slot, for the first
+    // freeSpaceMapped pages of the file. Built from the page headers on
+    // disk the first time a tuple is inserted, and kept up to date by
+    // inserts and deletes, and by the pages read and written. It is only
+    // a hint: a page is still checked under its lock before a tuple goes in.
+    private final BitSet freeSpace = new BitSet();
+    private int freeSpaceMapped = 0; // protected by freeSpace
     
      
     public HeapFile(File f, TupleDesc td) {
         // some code goes here    
         this.file = f;
         this.tupleDesc = td;
+        this.channel = new DbFileChannel(f);
 
     }
 
@@ -76,29 +91,21 @@ public class HeapFile implements DbFile {
         int pageNum = pid.pageNumber();
         
         int pageSize = Database.getBufferPool().getPageSize();
-        long offset = pageNum * pageSize;
+        long offset = (long) pageNum * pageSize;
         
         HeapPage page = null;
-        RandomAccessFile rfile = null;
         
         try{
-            rfile = new RandomAccessFile(file, "r");
             byte[] data = new byte[pageSize];
-            rfile.seek(offset);
-            rfile.read(data);
+            channel.read(data, offset);
             HeapPageId hpid = new HeapPageId(tableId, pageNum);
-            page = new HeapPage(hpid, data);
+            page = new HeapPage(hpid, data, tupleDesc);
+            // e.g. the page of a transaction that aborted, read back
+            setFreeSpace(pageNum, page.getNumEmptySlots() != 0);
 
         } 
         catch (IOException e){
             e.printStackTrace();
-        }finally{
-            try{
-                rfile.close();
-            }catch(IOException e){
-                e.printStackTrace();
-            }
-        
         }
         return page;
     }
@@ -112,10 +119,9 @@ public class HeapFile implements DbFile {
         
         if(pageNumber > numPages()) throw new IllegalArgumentException();
         
-        RandomAccessFile f = new RandomAccessFile(file, "rw");
-        f.seek(pageNumber*pageSize);
-        f.write(page.getPageData());
-        f.close();
+        channel.write(page.getPageData(), (long) pageNumber * pageSize);
+        // e.g. a page restored by rollback
+        setFreeSpace(pageNumber, ((HeapPage) page).getNumEmptySlots() != 0);
 
     }
 
@@ -135,41 +141,159 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
 
     ArrayList<Page> list = new ArrayList<>();
+    BufferPool pool = Database.getBufferPool();
 
-    for (int pageNo = 0; pageNo < numPages(); pageNo++) {
+    // only look at pages the free space map says have room
+    for (int pageNo = nextFreePage(0); pageNo >= 0; pageNo = nextFreePage(pageNo + 1)) {
         HeapPageId pageId = new HeapPageId(getId(), pageNo);
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+        // a page tid already locked may hold its earlier updates, which the
+        // buffer pool only finds through tid's locks at commit or abort
+        boolean locked = pool.holdsLock(tid, pageId);
+        // rather than queue up behind another inserter, use another page
+        if (!locked && pool.wouldBlock(tid, pageId, Permissions.READ_WRITE))
+            continue;
+        HeapPage page = (HeapPage) pool.getPage(tid, pageId, Permissions.READ_WRITE);
         if(page.getNumEmptySlots() != 0){
             page.insertTuple(t);
+            setFreeSpace(pageNo, page.getNumEmptySlots() != 0);
             list.add(page);
             return list;
         }
-        else{
-            Database.getBufferPool().unsafeReleasePage(tid, pageId);
+        setFreeSpace(pageNo, false);
+        if(!locked){
+            pool.unsafeReleasePage(tid, pageId);
         }
     }
 
-    BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(file, true));
     // create a new empty page
     byte[] emptyPage = HeapPage.createEmptyPageData();
-    output.write(emptyPage);
-    output.close();
+    long offset = channel.append(emptyPage);
+    if (memoryMapped)
+        remap();
 
     // create new page
-    HeapPageId pageId = new HeapPageId(getId(), numPages() - 1);
-    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+    HeapPageId pageId = new HeapPageId(getId(), (int) (offset / BufferPool.getPageSize()));
+    HeapPage page = (HeapPage) pool.getPage(tid, pageId, Permissions.READ_WRITE);
     page.insertTuple(t);
+    setFreeSpace(pageId.pageNumber(), page.getNumEmptySlots() != 0);
     list.add(page);
     return list;
 
     }
 
+    /**
+     * @return the first page at or after from that may have an empty slot,
+     *         or -1 if there is none. Pages the free space map does not
+     *         cover yet, e.g. all of them before the first insert, are added
+     *         to it by reading their headers from disk.
+     */
+    private int nextFreePage(int from) throws IOException {
+        synchronized (freeSpace) {
+            int numPages = numPages();
+            if (freeSpaceMapped < numPages) {
+                int numSlots = (BufferPool.getPageSize() * 8) / (tupleDesc.getSize() * 8 + 1);
+                byte[] header = new byte[(numSlots + 7) / 8];
+                for (int pageNo = freeSpaceMapped; pageNo < numPages; pageNo++) {
+                    if (channel.read(header, (long) pageNo * BufferPool.getPageSize()) < header.length)
+                        break;
+                    freeSpace.set(pageNo, hasEmptySlot(header, numSlots));
+                    freeSpaceMapped = pageNo + 1;
+                }
+            }
+            return freeSpace.nextSetBit(from);
+        }
+    }
+
+    private static boolean hasEmptySlot(byte[] header, int numSlots) {
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (((header[slot / 8] >> (slot % 8)) & 1) == 0)
+                return true;
+        }
+        return false;
+    }
+
+    private void setFreeSpace(int pageNo, boolean hasSpace) {
+        synchronized (freeSpace) {
+            // pages past the mapped ones are read from disk when needed
+            if (pageNo < freeSpaceMapped)
+                freeSpace.set(pageNo, hasSpace);
+        }
+    }
+
+    /** Force the pages written to this file to the disk. */
+    void force() throws IOException {
+        channel.force();
+    }
+
+    /** @return true if the file is open, until {@link #close} */
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // see DbFile.java for javadocs
+    public void close() {
+        synchronized (this) {
+            mapping = null;
+        }
+        channel.close();
+    }
+
+    /**
+     * Turn the memory mapped read path on or off. When it is on, iterators
+     * over this file decode pages straight from a read-only mapping of the
+     * file rather than reading them into the buffer pool, which saves the
+     * copy into a fresh byte array for every page and keeps a scan from
+     * evicting the rest of the buffer pool. Iterators still take the same
+     * page locks, and still return the buffer pool's copy of a page when
+     * there is one, so pages dirtied by the scanning transaction are seen.
+     * <p>
+     * Meant for large, read-mostly tables; the mapping has to be rebuilt
+     * whenever the file grows.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            synchronized (this) {
+                mapping = null;
+            }
+        }
+    }
+
+    /** @return true if the memory mapped read path is on */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    private synchronized void remap() throws IOException {
+        mapping = channel.map();
+    }
+
+    /**
+     * @return a buffer holding the image of the specified page taken from
+     *         the memory mapping, remapping the file if the page lies past
+     *         the end of the current mapping; or null if the page is not in
+     *         the file
+     */
+    private synchronized ByteBuffer mappedPage(int pageNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        long end = (long) (pageNo + 1) * pageSize;
+        if (mapping == null || end > mapping.capacity())
+            remap();
+        if (end > mapping.capacity())
+            return null;
+        ByteBuffer page = mapping.duplicate();
+        page.position(pageNo * pageSize);
+        page.limit((int) end);
+        return page.slice();
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here  
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        setFreeSpace(page.getId().pageNumber(), true);
         ArrayList<Page> modified = new ArrayList<>();
         modified.add(page);
         return modified;
@@ -201,6 +325,19 @@ public class HeapFile implements DbFile {
 
          public Iterator<Tuple> getPageTuples(HeapPageId hpid) throws DbException, TransactionAbortedException{
              BufferPool pool = Database.getBufferPool();
+             if (heapFile.isMemoryMapped()) {
+                 // a cached page may be dirty and must win over the file
+                 Page cached = pool.getCachedPage(transactionId, hpid, Permissions.READ_ONLY);
+                 if (cached != null)
+                     return ((HeapPage) cached).iterator();
+                 try {
+                     ByteBuffer data = heapFile.mappedPage(hpid.pageNumber());
+                     if (data != null)
+                         return HeapPage.iterator(hpid, data);
+                 } catch (IOException e) {
+                     throw new DbException("could not map " + heapFile.getFile() + ": " + e.getMessage());
+                 }
+             }
              HeapPage page = (HeapPage) pool.getPage(transactionId, hpid, Permissions.READ_ONLY);
              return page.iterator();
          
@@ -218,13 +355,13 @@ public class HeapFile implements DbFile {
          public boolean hasNext() throws DbException, TransactionAbortedException{
              if(this.tupleIter == null) return false;
              if(this.tupleIter.hasNext()) return true;
-             else{
-                 this.curPageNo++;
-                 if(curPageNo >= numPages) return false;
+             // skip empty pages, e.g. ones an aborted transaction added
+             while (++this.curPageNo < numPages) {
                  this.tupleIter = this.getPageTuples(new HeapPageId(this.heapFile.getId(), curPageNo));
                  if(this.tupleIter == null) return false;
-                 return this.tupleIter.hasNext();
+                 if(this.tupleIter.hasNext()) return true;
              }
+             return false;
              
          }
           // pay attetion to the order of two judge conditions in line 189
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -11,7 +12,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
@@ -42,8 +43,18 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage of a file whose tuples have the specified TupleDesc,
+     * e.g. a private file that is not in the catalog.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -101,7 +112,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,oldDataRef,td);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -316,6 +327,18 @@ public class HeapPage implements Page {
         else return null;   
     }
 
+    public int slotHeaderOffset() {
+        return 0;
+    }
+
+    public int slotCount() {
+        return numSlots;
+    }
+
+    public int slotSize() {
+        return td.getSize();
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -329,6 +352,16 @@ public class HeapPage implements Page {
         return num;
     }
 
+    /**
+     * @return the tuple in slot i of this page, or null if the slot is empty
+     * @throws NoSuchElementException if the page has no slot i
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots)
+            throw new NoSuchElementException("no slot " + i + " on page " + pid.pageNumber());
+        return isSlotUsed(i) ? tuples[i] : null;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -369,5 +402,66 @@ public class HeapPage implements Page {
         return filledSlots.iterator();
     }
 
+    /**
+     * Decode the tuples of a page straight from a buffer holding its on-disk
+     * image, without building a HeapPage (and copying the page data) first.
+     * Tuples are decoded lazily as the iterator advances, and have the same
+     * RecordIds as the tuples of the equivalent HeapPage.
+     *
+     * @param id the id of the page held in data
+     * @param data a buffer whose BufferPool.getPageSize() bytes starting at
+     *            position 0 are the page image; it is not modified
+     * @return an iterator over all tuples on the page, in slot order
+     */
+    public static Iterator<Tuple> iterator(HeapPageId id, ByteBuffer data) {
+        return new BufferTupleIterator(id, data);
+    }
+
+    private static class BufferTupleIterator implements Iterator<Tuple> {
+        private final HeapPageId pid;
+        private final TupleDesc td;
+        private final ByteBuffer data;
+        private final int numSlots;
+        private final int headerSize;
+        // next slot to look at
+        private int slot = 0;
+
+        BufferTupleIterator(HeapPageId pid, ByteBuffer data) {
+            this.pid = pid;
+            this.td = Database.getCatalog().getTupleDesc(pid.getTableId());
+            this.data = data.duplicate();
+            this.numSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+            this.headerSize = (numSlots + 7) / 8;
+            advance();
+        }
+
+        // move slot to the next used slot, or to numSlots
+        private void advance() {
+            while (slot < numSlots && ((data.get(slot / 8) >> (slot % 8)) & 1) == 0)
+                slot++;
+        }
+
+        public boolean hasNext() {
+            return slot < numSlots;
+        }
+
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, slot));
+            data.position(headerSize + slot * td.getSize());
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(data));
+            slot++;
+            advance();
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
 }
 
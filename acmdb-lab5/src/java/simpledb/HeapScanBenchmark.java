@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares cold sequential scans of a HeapFile through the buffer pool
+ * (readPage into a fresh byte array for every page) with scans through the
+ * memory mapped read path (see {@link HeapFile#setMemoryMapped}).
+ * <p>
+ * The table is several times larger than {@link BufferPool#DEFAULT_PAGES},
+ * so the buffer pool path has to evict pages while it scans. Run with
+ * <pre>
+ *     java -classpath dist/simpledb.jar simpledb.HeapScanBenchmark [pages] [passes]
+ * </pre>
+ */
+public class HeapScanBenchmark {
+
+    private static final int COLUMNS = 4;
+
+    private static int scan(HeapFile hf) throws DbException, TransactionAbortedException, IOException {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    // average milliseconds per scan over passes cold scans
+    private static double time(HeapFile hf, boolean mapped, int passes)
+            throws DbException, TransactionAbortedException, IOException {
+        hf.setMemoryMapped(mapped);
+        long total = 0;
+        for (int i = 0; i < passes; i++) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            long start = System.nanoTime();
+            scan(hf);
+            total += System.nanoTime() - start;
+        }
+        return total / 1e6 / passes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 20 * BufferPool.DEFAULT_PAGES;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (COLUMNS * Type.INT_TYPE.getLen() * 8 + 1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        Random r = new Random(0);
+        for (int i = 0; i < pages * tuplesPerPage; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            for (int j = 0; j < COLUMNS; j++)
+                tuple.add(r.nextInt());
+            tuples.add(tuple);
+        }
+
+        File f = File.createTempFile("scanbench", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), COLUMNS);
+        HeapFile hf = Utility.openHeapFile(COLUMNS, f);
+        System.out.println(hf.numPages() + " pages, " + tuples.size() + " tuples, "
+                + BufferPool.DEFAULT_PAGES + " buffer pool pages");
+
+        // warm up the JIT and the OS page cache for both paths
+        time(hf, false, 2);
+        time(hf, true, 2);
+
+        double pooled = time(hf, false, passes);
+        double mapped = time(hf, true, passes);
+        System.out.printf("buffer pool scan:   %8.2f ms%n", pooled);
+        System.out.printf("memory mapped scan: %8.2f ms%n", mapped);
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,271 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator implements an equality join whose inner
+ * side is a B+ tree keyed on the join field: instead of reading the inner
+ * child, it looks up the key of every outer tuple in the index.
+ * <p>
+ * The inner child must be a scan of a {@link BTreeFile} keyed on the join
+ * field, possibly under {@link Filter}s (see {@link #canProbe}); the filters
+ * and the index predicate of a {@link BTreeScan} are applied to the tuples
+ * found by each probe. An outer key equal to the previous one reuses its
+ * matches, and a key that falls inside the leaf page the previous probe
+ * started on is looked up from that leaf without descending from the root,
+ * so outer input sorted on the join field reads every leaf at most once.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate predicate;
+    private DbIterator child1;
+    private DbIterator child2;
+    private TupleDesc mergeTd;
+
+    private BTreeFile file;
+    private TransactionId tid;
+    // the predicates of the inner child, on the fields of the B+ tree
+    private ArrayList<Predicate> innerPredicates;
+
+    private transient Tuple outer = null;
+    private transient Field lastKey = null;
+    // the inner tuples matching lastKey
+    private transient ArrayList<Tuple> matches = new ArrayList<Tuple>();
+    private int matchPos = 0;
+    // the leaf page the last probe started on
+    private transient BTreePageId lastLeaf = null;
+    private int probes = 0;
+    private int descents = 0;
+
+    /**
+     * Constructor. Accepts the children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be an
+     *            equality predicate
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join; must be a
+     *            scan of a B+ tree keyed on the join field, see
+     *            {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("IndexNestedLoopJoin only supports equality predicates");
+        if (!canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException("the inner child is not a B+ tree keyed on "
+                    + child2.getTupleDesc().getFieldName(p.getField2()));
+        this.predicate = p;
+        this.child1 = child1;
+        setInner(child2);
+    }
+
+    // the scan under the filters of inner, or inner if it is not a filter
+    private static DbIterator baseScan(DbIterator inner) {
+        while (inner instanceof Filter)
+            inner = ((Filter) inner).getChildren()[0];
+        return inner;
+    }
+
+    private static DbFile scannedFile(DbIterator scan) {
+        String table;
+        if (scan instanceof SeqScan)
+            table = ((SeqScan) scan).getTableName();
+        else if (scan instanceof BTreeScan)
+            table = ((BTreeScan) scan).getTableName();
+        else
+            return null;
+        return Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(table));
+    }
+
+    /**
+     * @return true if inner is a scan of a B+ tree keyed on field, possibly
+     *         under filters, so that an IndexNestedLoopJoin can probe it
+     */
+    public static boolean canProbe(DbIterator inner, int field) {
+        DbFile f = scannedFile(baseScan(inner));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    private void setInner(DbIterator child2) {
+        this.child2 = child2;
+        this.mergeTd = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.innerPredicates = new ArrayList<Predicate>();
+        DbIterator inner = child2;
+        while (inner instanceof Filter) {
+            innerPredicates.add(((Filter) inner).getPredicate());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        this.file = (BTreeFile) scannedFile(inner);
+        if (inner instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) inner;
+            this.tid = scan.getTransactionId();
+            IndexPredicate ipred = scan.getIndexPredicate();
+            if (ipred != null)
+                innerPredicates.add(new Predicate(file.keyField(), ipred.getOp(), ipred.getField()));
+            if (ipred != null && ipred.getUpperOp() != null)
+                innerPredicates.add(new Predicate(file.keyField(), ipred.getUpperOp(), ipred.getUpperField()));
+        } else {
+            this.tid = ((SeqScan) inner).getTransactionId();
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.predicate;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.mergeTd;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.predicate.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.predicate.getField2());
+    }
+
+    /** @return the number of index lookups since the last open */
+    public int numProbes() {
+        return probes;
+    }
+
+    /** @return the number of index lookups since the last open that started at the root */
+    public int numDescents() {
+        return descents;
+    }
+
+    private void reset() {
+        outer = null;
+        lastKey = null;
+        matches = new ArrayList<Tuple>();
+        matchPos = 0;
+        lastLeaf = null;
+        probes = 0;
+        descents = 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        Tuple t = new Tuple(mergeTd);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    private BTreeLeafPage leaf(BTreePageId pid) throws DbException, TransactionAbortedException {
+        return (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+    }
+
+    // true if page is the left-most leaf that may hold key: its first key
+    // is smaller than key, and its last key is not
+    private static boolean startsAt(BTreeLeafPage page, int keyField, Field key) {
+        Iterator<Tuple> first = page.iterator();
+        Iterator<Tuple> last = page.reverseIterator();
+        return first.hasNext()
+                && first.next().getField(keyField).compare(Predicate.Op.LESS_THAN, key)
+                && last.next().getField(keyField).compare(Predicate.Op.GREATER_THAN_OR_EQ, key);
+    }
+
+    // collect the inner tuples whose key equals key into matches
+    private void probe(Field key) throws DbException, TransactionAbortedException {
+        matches = new ArrayList<Tuple>();
+        probes++;
+        int keyField = file.keyField();
+        BTreeLeafPage page = lastLeaf == null ? null : leaf(lastLeaf);
+        if (page == null || !startsAt(page, keyField, key)) {
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                    tid, BTreeRootPtrPage.getId(file.getId()), Permissions.READ_ONLY);
+            BTreePageId root = rootPtr.getRootId();
+            if (root == null)
+                return;
+            page = file.findLeafPage(tid, root, Permissions.READ_ONLY, key);
+            descents++;
+        }
+        lastLeaf = page.getId();
+
+        while (page != null) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                Field k = t.getField(keyField);
+                if (k.compare(Predicate.Op.GREATER_THAN, key))
+                    return;
+                if (k.compare(Predicate.Op.EQUALS, key) && matchesInner(t))
+                    matches.add(t);
+            }
+            BTreePageId next = page.getRightSiblingId();
+            page = next == null ? null : leaf(next);
+        }
+    }
+
+    private boolean matchesInner(Tuple t) {
+        for (Predicate p : innerPredicates) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples come in the order of the outer child, and for each
+     * outer tuple in the order of the index; as with {@link Join}, the output
+     * is the concatenation of the matching outer and inner tuples.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null && matchPos < matches.size())
+                return mergeTuples(outer, matches.get(matchPos++));
+            if (!child1.hasNext())
+                return null;
+            outer = child1.next();
+            Field key = outer.getField(predicate.getField1());
+            if (lastKey == null || !key.equals(lastKey)) {
+                probe(key);
+                lastKey = key;
+            }
+            matchPos = 0;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        setInner(children[1]);
+    }
+
+}
@@ -3,7 +3,8 @@ package simpledb;
 import java.io.Serializable;
 
 /**
- * IndexPredicate compares a field which has index on it against a given value
+ * IndexPredicate compares a field which has index on it against a given value,
+ * or, for a range, against a lower and an upper bound
  * @see simpledb.IndexDbIterator
  */
 public class IndexPredicate implements Serializable {
@@ -11,7 +12,9 @@ public class IndexPredicate implements Serializable {
     private static final long serialVersionUID = 1L;
     private final Predicate.Op op;
     private final Field fieldValue;
-    
+    // the upper bound of a range, or null
+    private final Predicate.Op upperOp;
+    private final Field upperValue;
     
 	
     /**
@@ -27,6 +30,29 @@ public class IndexPredicate implements Serializable {
         // some code goes here
         this.op = op;
         this.fieldValue = fvalue;
+        this.upperOp = null;
+        this.upperValue = null;
+    }
+
+    /**
+     * Constructor for a range: the field must compare with lowerOp against
+     * lower, and with upperOp against upper.
+     *
+     * @param lowerOp Predicate.Op.GREATER_THAN or Predicate.Op.GREATER_THAN_OR_EQ
+     * @param lower The lower bound of the range
+     * @param upperOp Predicate.Op.LESS_THAN or Predicate.Op.LESS_THAN_OR_EQ
+     * @param upper The upper bound of the range
+     * @throws IllegalArgumentException if the operators do not bound a range
+     */
+    public IndexPredicate(Predicate.Op lowerOp, Field lower, Predicate.Op upperOp, Field upper) {
+        if (lowerOp != Predicate.Op.GREATER_THAN && lowerOp != Predicate.Op.GREATER_THAN_OR_EQ)
+            throw new IllegalArgumentException(lowerOp + " is not a lower bound");
+        if (upperOp != Predicate.Op.LESS_THAN && upperOp != Predicate.Op.LESS_THAN_OR_EQ)
+            throw new IllegalArgumentException(upperOp + " is not an upper bound");
+        this.op = lowerOp;
+        this.fieldValue = lower;
+        this.upperOp = upperOp;
+        this.upperValue = upper;
     }
 
     public Field getField() {
@@ -39,6 +65,38 @@ public class IndexPredicate implements Serializable {
         return this.op;
     }
 
+    /** @return the operator of the upper bound of a range, or null */
+    public Predicate.Op getUpperOp() {
+        return this.upperOp;
+    }
+
+    /** @return the upper bound of a range, or null */
+    public Field getUpperField() {
+        return this.upperValue;
+    }
+
+    /**
+     * @return true if f is past the upper bound of this predicate, so that no
+     *         larger value can match it either
+     */
+    public boolean isPastUpperBound(Field f) {
+        if (upperOp != null)
+            return !f.compare(upperOp, upperValue);
+        switch (op) {
+        case EQUALS:
+            return f.compare(Predicate.Op.GREATER_THAN, fieldValue);
+        case LESS_THAN: case LESS_THAN_OR_EQ:
+            return !f.compare(op, fieldValue);
+        default:
+            return false;
+        }
+    }
+
+    /** @return true if f satisfies this predicate */
+    public boolean matches(Field f) {
+        return f.compare(op, fieldValue) && (upperOp == null || f.compare(upperOp, upperValue));
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -47,7 +105,14 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         // some code goes here
         if(ipd == null) return false;
-        return (op.equals(ipd.op) && fieldValue.equals(ipd.fieldValue));
+        return (op.equals(ipd.op) && fieldValue.equals(ipd.fieldValue)
+                && (upperOp == null ? ipd.upperOp == null
+                        : upperOp.equals(ipd.upperOp) && upperValue.equals(ipd.upperValue)));
+    }
+
+    public String toString() {
+        String s = op.toString() + fieldValue;
+        return upperOp == null ? s : s + "," + upperOp + upperValue;
     }
 
 }
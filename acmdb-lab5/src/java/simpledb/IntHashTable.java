@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * IntHashTable is an open-addressing hash table specialized for int keys, used
+ * by operators that hash on a {@link Type#INT_TYPE} column.
+ * <p>
+ * Instead of storing values, it assigns every distinct key a dense entry id
+ * (0, 1, 2, ... in insertion order) that stays stable while the table grows.
+ * Callers keep their per-key state in their own arrays indexed by entry id,
+ * e.g. primitive accumulators for aggregation or the head of a chain of rows
+ * for a hash join, so neither lookups nor inserts box keys or values.
+ */
+public class IntHashTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // slots hold entry id + 1; 0 marks an empty slot
+    private int[] slots;
+    private int mask;
+    // keys by entry id
+    private int[] keys;
+    private int size = 0;
+
+    public IntHashTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected the number of distinct keys the table should hold
+     *            without rehashing
+     */
+    public IntHashTable(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expected)
+            capacity <<= 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        keys = new int[capacity * 3 / 4];
+    }
+
+    // Scramble the key so that consecutive keys do not fill consecutive
+    // slots, which would make linear probing degrade badly.
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the number of distinct keys in the table */
+    public int size() {
+        return size;
+    }
+
+    /** @return the key of the specified entry */
+    public int key(int id) {
+        return keys[id];
+    }
+
+    /**
+     * @return the entry id of key, or -1 if key is not in the table
+     */
+    public int get(int key) {
+        int i = hash(key) & mask;
+        int s;
+        while ((s = slots[i]) != 0) {
+            if (keys[s - 1] == key)
+                return s - 1;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the entry id of key; key is added with the next free entry id
+     *         (equal to the old {@link #size()}) if it is not in the table yet
+     */
+    public int getOrAdd(int key) {
+        int i = hash(key) & mask;
+        int s;
+        while ((s = slots[i]) != 0) {
+            if (keys[s - 1] == key)
+                return s - 1;
+            i = (i + 1) & mask;
+        }
+        if (size == keys.length) {
+            grow();
+            return getOrAdd(key);
+        }
+        keys[size] = key;
+        slots[i] = ++size;
+        return size - 1;
+    }
+
+    /** Remove every key; entry ids are handed out from 0 again. */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    private void grow() {
+        int capacity = slots.length << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        keys = Arrays.copyOf(keys, capacity * 3 / 4);
+        for (int id = 0; id < size; id++) {
+            int i = hash(keys[id]) & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+    }
+}
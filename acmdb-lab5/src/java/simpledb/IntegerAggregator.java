@@ -14,90 +14,92 @@ public class IntegerAggregator implements Aggregator {
     private int aggfield;
     private Op what;
     private AggHandler aggHandler;
+    // the tuples merged are partial aggregates, see partialIterator
+    private final boolean partial;
+    // the tuples merged carry a sum at aggfield and a count after it
+    private final boolean pairs;
+
+    // Every group gets a dense id, and the handlers keep their accumulators
+    // in int arrays indexed by that id. INT_TYPE group values are looked up in
+    // an IntHashTable so that merging a tuple does not box anything; other
+    // group values (and the single group when there is no grouping) go
+    // through groupIds/groupVals.
+    private final IntHashTable intGroups;
+    private final Map<Field, Integer> groupIds;
+    private final List<Field> groupVals;
     
     private abstract class AggHandler{
-        Map<Field, Integer> aggResult;
-        abstract void handle(Field gbField, IntField aggField);
-        public AggHandler(){
-            aggResult = new HashMap<>();
+        int[] aggResult = new int[16];
+        // called with isNew set the first time a group is seen; count is the
+        // number of values value stands for (more than 1 for partial
+        // aggregates)
+        abstract void handle(int group, boolean isNew, int value, int count);
+        void ensureCapacity(int groups) {
+            if (groups > aggResult.length)
+                aggResult = Arrays.copyOf(aggResult, Math.max(groups, aggResult.length * 2));
         }
-        public Map<Field, Integer> getAggResult() {
-            return aggResult;
+        int getAggResult(int group) {
+            return aggResult[group];
         }
     }
     
     
     private class CountHandler extends AggHandler{
         @Override
-        void handle(Field gbField, IntField aggField) {
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField, aggResult.get(gbField) + 1);
-            }
-            else{
-                aggResult.put(gbField, 1);
-            }
+        void handle(int group, boolean isNew, int value, int count) {
+            aggResult[group] = isNew ? count : aggResult[group] + count;
         }
     }
     
     
     private class SumHandler extends AggHandler{
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField, aggResult.get(gbField) + value);
-            }
-            else{
-                aggResult.put(gbField, value);
-            }
+        void handle(int group, boolean isNew, int value, int count) {
+            aggResult[group] = isNew ? value : aggResult[group] + value;
         }
     }
     
     
     private class MaxHandler extends AggHandler{
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField,Math.max(aggResult.get(gbField), value));
-            }
-            else{
-                aggResult.put(gbField, value);
-            }
+        void handle(int group, boolean isNew, int value, int count) {
+            aggResult[group] = isNew ? value : Math.max(aggResult[group], value);
         }
     }
     
     
     private class MinHandler extends AggHandler{
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField,Math.min(aggResult.get(gbField), value));
-            }
-            else{
-                aggResult.put(gbField, value);
-            }
+        void handle(int group, boolean isNew, int value, int count) {
+            aggResult[group] = isNew ? value : Math.min(aggResult[group], value);
         }
     }
     
     
+    // AVG, SUM_COUNT and SC_AVG
     private class AvgHandler extends AggHandler{
-        Map<Field, Integer> sum = new HashMap<>();
-        Map<Field, Integer> count = new HashMap<>();
+        // aggResult holds the running sum
+        int[] count = new int[16];
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-
-            if(sum.containsKey(gbField) && count.containsKey(gbField)){
-                sum.put(gbField, sum.get(gbField) + value);
-                count.put(gbField, count.get(gbField) + 1);
-            }
-            else{
-                sum.put(gbField, value);
-                count.put(gbField, 1);
-            }
-            aggResult.put(gbField, sum.get(gbField) / count.get(gbField));
+        void ensureCapacity(int groups) {
+            super.ensureCapacity(groups);
+            if (groups > count.length)
+                count = Arrays.copyOf(count, aggResult.length);
+        }
+        @Override
+        void handle(int group, boolean isNew, int value, int count) {
+            aggResult[group] = isNew ? value : aggResult[group] + value;
+            this.count[group] = isNew ? count : this.count[group] + count;
+        }
+        @Override
+        int getAggResult(int group) {
+            return what == Op.SUM_COUNT ? aggResult[group] : aggResult[group] / count[group];
+        }
+        int getSum(int group) {
+            return aggResult[group];
+        }
+        int getCount(int group) {
+            return count[group];
         }
     }
    
@@ -119,11 +121,37 @@ public class IntegerAggregator implements Aggregator {
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, false);
+    }
+
+    /**
+     * Aggregate constructor
+     *
+     * @param partial
+     *            true if the tuples to merge are partial aggregates, as
+     *            returned by the partialIterator of aggregators with the same
+     *            operator, rather than input tuples. For SC_AVG the input
+     *            tuples are SUM_COUNT results: a sum at afield followed by a
+     *            count.
+     * @see #IntegerAggregator(int, Type, int, Op)
+     */
+    public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, boolean partial) {
         // some code goes here
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.aggfield = afield;
         this.what = what;
+        this.partial = partial;
+        this.pairs = what == Op.SC_AVG || (partial && (what == Op.AVG || what == Op.SUM_COUNT));
+        if (gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE) {
+            this.intGroups = new IntHashTable();
+            this.groupIds = null;
+            this.groupVals = null;
+        } else {
+            this.intGroups = null;
+            this.groupIds = new HashMap<>();
+            this.groupVals = new ArrayList<>();
+        }
 
         switch (what){
             case MIN:
@@ -133,6 +161,8 @@ public class IntegerAggregator implements Aggregator {
                 aggHandler = new MaxHandler();
                 break;
             case AVG:
+            case SUM_COUNT:
+            case SC_AVG:
                 aggHandler = new AvgHandler();
                 break;
             case SUM:
@@ -156,9 +186,37 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        IntField afield = (IntField) tup.getField(this.aggfield);
-        Field gbfield = this.gbfield == NO_GROUPING ? null : tup.getField(this.gbfield);
-        aggHandler.handle(gbfield, afield);
+        int value = ((IntField) tup.getField(this.aggfield)).getValue();
+        int count = 1;
+        if (pairs)
+            count = ((IntField) tup.getField(this.aggfield + 1)).getValue();
+        else if (partial && what == Op.COUNT)
+            count = value;
+        int group;
+        boolean isNew;
+        if (intGroups != null) {
+            int groups = intGroups.size();
+            group = intGroups.getOrAdd(((IntField) tup.getField(this.gbfield)).getValue());
+            isNew = group == groups;
+        } else {
+            Field gbfield = this.gbfield == NO_GROUPING ? null : tup.getField(this.gbfield);
+            Integer id = groupIds.get(gbfield);
+            isNew = id == null;
+            if (isNew) {
+                id = groupVals.size();
+                groupIds.put(gbfield, id);
+                groupVals.add(gbfield);
+            }
+            group = id;
+        }
+        if (isNew)
+            aggHandler.ensureCapacity(group + 1);
+        aggHandler.handle(group, isNew, value, count);
+    }
+
+    /** @return the number of groups seen so far */
+    public int numGroups() {
+        return intGroups != null ? intGroups.size() : groupVals.size();
     }
 
     /**
@@ -167,46 +225,73 @@ public class IntegerAggregator implements Aggregator {
      * @return a DbIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
+     *         the constructor; SUM_COUNT adds a countVal after it.
      */
     public DbIterator iterator() {
         // some code goes here
-        Map<Field, Integer> aggResult = aggHandler.getAggResult();
+        return iterator(what == Op.SUM_COUNT);
+    }
+
+    /**
+     * Create an iterator over the partial aggregates of the groups, which an
+     * aggregator with the same operator constructed with partial set merges
+     * into the same results. For AVG, SUM_COUNT and SC_AVG these are the sum
+     * and the count of every group, for the other operators they are the
+     * results themselves.
+     */
+    public DbIterator partialIterator() {
+        return iterator(aggHandler instanceof AvgHandler);
+    }
+
+    // the results, or the sums and counts if sumCount is set
+    private DbIterator iterator(boolean sumCount) {
+        int groups = numGroups();
         // 构建 tuple 需要
-        Type[] types;
-        String[] names;
-        TupleDesc tupleDesc;
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        if (gbfield != NO_GROUPING) {
+            types.add(gbfieldtype);
+            names.add("groupVal");
+        }
+        types.add(Type.INT_TYPE);
+        names.add("aggregateVal");
+        if (sumCount) {
+            types.add(Type.INT_TYPE);
+            names.add("countVal");
+        }
+        TupleDesc tupleDesc = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
         // 储存结果
         List<Tuple> tuples = new ArrayList<>();
         // 如果没有分组
         if(gbfield == NO_GROUPING){
-            types = new Type[]{Type.INT_TYPE};
-            names = new String[]{"aggregateVal"};
-            tupleDesc = new TupleDesc(types, names);
-            // 获取结果字段
-            IntField resultField = new IntField(aggResult.get(null));
             // 组合成行（临时行，不需要存储，只需要设置字段值）
             Tuple tuple = new Tuple(tupleDesc);
-            tuple.setField(0, resultField);
+            if (sumCount) {
+                AvgHandler handler = (AvgHandler) aggHandler;
+                tuple.setField(0, new IntField(groups == 0 ? 0 : handler.getSum(0)));
+                tuple.setField(1, new IntField(groups == 0 ? 0 : handler.getCount(0)));
+            } else {
+                tuple.setField(0, new IntField(groups == 0 ? 0 : aggHandler.getAggResult(0)));
+            }
             tuples.add(tuple);
         }
         else{
-            types = new Type[]{gbfieldtype, Type.INT_TYPE};
-            names = new String[]{"groupVal", "aggregateVal"};
-            tupleDesc = new TupleDesc(types, names);
-            for(Field field: aggResult.keySet()){
+            for(int group = 0; group < groups; group++){
                 Tuple tuple = new Tuple(tupleDesc);
-                if(gbfieldtype == Type.INT_TYPE){
-                    IntField intField = (IntField) field;
-                    tuple.setField(0, intField);
+                if(intGroups != null){
+                    tuple.setField(0, new IntField(intGroups.key(group)));
                 }
                 else{
-                    StringField stringField = (StringField) field;
-                    tuple.setField(0, stringField);
+                    tuple.setField(0, groupVals.get(group));
                 }
 
-                IntField resultField = new IntField(aggResult.get(field));
-                tuple.setField(1, resultField);
+                if (sumCount) {
+                    AvgHandler handler = (AvgHandler) aggHandler;
+                    tuple.setField(1, new IntField(handler.getSum(group)));
+                    tuple.setField(2, new IntField(handler.getCount(group)));
+                } else {
+                    tuple.setField(1, new IntField(aggHandler.getAggResult(group)));
+                }
                 tuples.add(tuple);
             }
         }
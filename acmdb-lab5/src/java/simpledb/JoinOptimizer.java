@@ -13,6 +13,32 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    // the stats passed to orderJoins, by table name
+    private Map<String, TableStats> stats = null;
+
+    /** The physical join algorithms the optimizer can choose between. */
+    public enum JoinAlgorithm {
+        /** {@link Join}: rescans the inner child once per outer tuple */
+        NESTED_LOOP,
+        /** {@link HashEquiJoin}: builds a hash table on the outer child */
+        HASH,
+        /** {@link SortMergeJoin}: sorts both children and merges them */
+        SORT_MERGE,
+        /** {@link IndexNestedLoopJoin}: looks up every outer tuple in the inner B+ tree */
+        INDEX_NESTED_LOOP;
+
+        public String toString() {
+            if (this == NESTED_LOOP)
+                return "nested-loop";
+            if (this == HASH)
+                return "hash";
+            if (this == SORT_MERGE)
+                return "sort-merge";
+            if (this == INDEX_NESTED_LOOP)
+                return "index nested-loop";
+            throw new IllegalStateException("impossible to reach here");
+        }
+    }
 
     /**
      * Constructor
@@ -68,7 +94,25 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        JoinAlgorithm algorithm = lj.algorithm == null ? JoinAlgorithm.NESTED_LOOP : lj.algorithm;
+        switch (algorithm) {
+            case HASH:
+                j = new HashEquiJoin(p, plan1, plan2);
+                break;
+            case SORT_MERGE:
+                j = new SortMergeJoin(p, plan1, plan2);
+                break;
+            case INDEX_NESTED_LOOP:
+                // the inner side may have been joined with other tables
+                // since the join was costed; it can no longer be probed
+                if (IndexNestedLoopJoin.canProbe(plan2, t2id))
+                    j = new IndexNestedLoopJoin(p, plan1, plan2);
+                else
+                    j = new HashEquiJoin(p, plan1, plan2);
+                break;
+            default:
+                j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -82,6 +126,10 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
+     * <p>
+     * This returns the cost of the cheapest algorithm applicable to j, as
+     * picked by {@link #chooseJoinAlgorithm}, taking the right-hand side of
+     * j to be a base table.
      * 
      * 
      * @param j
@@ -102,18 +150,139 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as the cost of the cheapest algorithm
+     * applicable to j.
+     * 
+     * @param innerIsTable
+     *            true if the right-hand side of j is a base table, false if
+     *            it is the result of other joins, which an
+     *            IndexNestedLoopJoin cannot probe
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return (double)(cost1 + card1 * cost2 + card1 * card2);
-            
+            JoinAlgorithm algorithm = chooseJoinAlgorithm(j, card1, card2,
+                    cost1, cost2, innerIsTable);
+            return estimateJoinCost(j, algorithm, card1, card2, cost1, cost2,
+                    innerIsTable);
+        }
+    }
+
+    /**
+     * Estimate the cost of evaluating a join with a specific algorithm.
+     * 
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param algorithm
+     *            The physical join algorithm to cost
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the table on the left-hand
+     *            side of the query
+     * @param cost2
+     *            Estimated cost of one full scan of the table on the right-hand
+     *            side of the query
+     * @param innerIsTable
+     *            true if the right-hand side of j is a base table, false if
+     *            it is the result of other joins
+     * @return An estimate of the cost of this query, or
+     *         Double.MAX_VALUE if the algorithm cannot evaluate j
+     */
+    public double estimateJoinCost(LogicalJoinNode j, JoinAlgorithm algorithm,
+            int card1, int card2, double cost1, double cost2,
+            boolean innerIsTable) {
+        switch (algorithm) {
+            case HASH: {
+                if (j.p != Predicate.Op.EQUALS)
+                    return Double.MAX_VALUE;
+                // one pass over each input if the outer side fits in memory;
+                // otherwise both sides are also written out to and read back
+                // from partition files once
+                double passes = card1 <= HashEquiJoin.MAP_SIZE ? 1.0 : 3.0;
+                return passes * (cost1 + cost2) + card1 + card2;
+            }
+            case SORT_MERGE: {
+                if (j.p != Predicate.Op.EQUALS)
+                    return Double.MAX_VALUE;
+                // sort both sides in memory, then merge them in one pass
+                return cost1 + cost2 + sortCost(card1) + sortCost(card2)
+                        + card1 + card2;
+            }
+            case INDEX_NESTED_LOOP: {
+                TableStats ts = j.p == Predicate.Op.EQUALS && innerIsTable ? indexStats(j) : null;
+                if (ts == null)
+                    return Double.MAX_VALUE;
+                // every outer tuple reads the path from the root to the leaf
+                // holding its key; the inner side is never scanned
+                double probe = ts.estimateIndexScanCost(1.0 / Math.max(1, ts.totalTuples()));
+                return cost1 + card1 * probe + card1;
+            }
+            default:
+                return cost1 + (double) card1 * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * @return the stats of the inner table of j if it is a B+ tree keyed on
+     *         the join field, or null if an IndexNestedLoopJoin cannot probe it
+     */
+    private TableStats indexStats(LogicalJoinNode j) {
+        Integer id = p == null || j.t2Alias == null ? null : p.getTableId(j.t2Alias);
+        if (id == null)
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(id);
+        if (!(f instanceof BTreeFile))
+            return null;
+        String key = f.getTupleDesc().getFieldName(((BTreeFile) f).keyField());
+        if (key == null || !key.equals(j.f2PureName))
+            return null;
+        String name = Database.getCatalog().getTableName(id);
+        TableStats ts = stats == null ? null : stats.get(name);
+        return ts != null ? ts : TableStats.getTableStats(name);
+    }
+
+    private static double sortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * Pick the cheapest physical algorithm for a join, given the estimated
+     * cardinalities and scan costs of its children. Ties are broken in
+     * declaration order of {@link JoinAlgorithm}.
+     * 
+     * @param innerIsTable
+     *            true if the right-hand side of j is a base table, false if
+     *            it is the result of other joins
+     * @return the algorithm that {@link #instantiateJoin} should use for j
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, boolean innerIsTable) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return JoinAlgorithm.NESTED_LOOP;
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOP;
+        double bestCost = Double.MAX_VALUE;
+        for (JoinAlgorithm algorithm : JoinAlgorithm.values()) {
+            double cost = estimateJoinCost(j, algorithm, card1, card2,
+                    cost1, cost2, innerIsTable);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = algorithm;
+            }
         }
+        return best;
     }
 
     /**
@@ -232,9 +401,13 @@ public class JoinOptimizer {
             throws ParsingException {
         //Not necessary for labs 1--3
         // some code goes here
+        this.stats = stats;
         CostCard bestCostCard = new CostCard();
         PlanCache planCache = new PlanCache();
         int size = joins.size();
+        // a query over a single table has nothing to order
+        if (size == 0)
+            return joins;
         
         for(int i = 1; i <= size; i++){
             Set<Set<LogicalJoinNode>> subSets = enumerateSubsets(joins, i);
@@ -328,6 +501,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is the result of the joins in prevBest
+        boolean t1Joined = false, t2Joined = false;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -358,6 +533,7 @@ public class JoinOptimizer {
 
             // estimate cost of right subtree
             if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
+                t1Joined = true;
                 t1cost = prevBestCost; // left side just has cost of whatever
                                        // left
                 // subtree is
@@ -374,6 +550,7 @@ public class JoinOptimizer {
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
+                t2Joined = true;
                 t2cost = prevBestCost; // left side just has cost of whatever
                                        // left
                 // subtree is
@@ -392,14 +569,21 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        JoinAlgorithm algorithm1 = chooseJoinAlgorithm(j, t1card, t2card,
+                t1cost, t2cost, !t2Joined);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                !t2Joined);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        JoinAlgorithm algorithm2 = chooseJoinAlgorithm(j2, t2card, t1card,
+                t2cost, t1cost, !t1Joined);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                !t1Joined);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            algorithm1 = algorithm2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
@@ -407,6 +591,10 @@ public class JoinOptimizer {
         if (cost1 >= bestCostSoFar)
             return null;
 
+        // joinToRemove is shared by every subset, so record the chosen
+        // algorithm on a copy of it
+        j = j.withAlgorithm(algorithm1);
+
         CostCard cc = new CostCard();
 
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
@@ -512,8 +700,8 @@ public class JoinOptimizer {
             // Double c = pc.getCost(pathSoFar);
             neither = true;
 
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
+            root = new DefaultMutableTreeNode("Join " + j + " [" + j.algorithm
+                    + "] (Cost =" + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
@@ -3,7 +3,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +35,13 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+The BufferPool logs the update of a page (with logWrite) while holding
+the latch of the page's shard, so a LogFile operation must not touch
+pages of the BufferPool (e.g. flush or discard them) while it holds the
+lock on the LogFile itself; it must do that under the BufferPool lock
+only.  Checkpoints need neither: they do not flush pages (see
+logCheckpoint), so they only take the lock on the LogFile.
 */
 
 /**
@@ -45,30 +55,51 @@ last written checkpoint, or -1 if there are no checkpoints
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer log
+sequence number (LSN) and a long integer transaction id.  LSNs
+increase with every record appended to the log and are kept when the
+log is truncated.
 
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, SLOT_UPDATE,
+CLR, BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE and SLOT_UPDATE records describe the change of one page,
+written and read by PageUpdate.  Both start with a byte tag giving the
+type of the page, its table id and page number, and the key field for
+B+ tree internal and leaf pages.  UPDATE records hold the full before
+and after images of the page; SLOT_UPDATE records hold only the slots
+of the page the update changed, with their contents before and after
+it.  See LogFile.print() for an example.
+
+<li> CLR (compensation log) records are written when the updates of a
+transaction are rolled back, by an abort or by recovery.  They hold
+the integer type (UPDATE or SLOT_UPDATE) of the page update that
+follows, which takes the page back to its state before the
+transaction.  CLRs are redone by recovery but never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty page table: the pages whose updates were logged but not
+yet written to disk, with the LSN and offset of the first such record
+(the recLSN).  The format of the record is an integer count of the
+number of transactions, as well as a long integer transaction id and a
+long integer first record offset for each active transaction, then an
+integer count of dirty pages, and an integer table id, an integer page
+number, a long integer recLSN and a long integer record offset for
+each dirty page.
 
 </ul>
 
+<p> Records are not written to the file one field at a time: they are
+serialized into an in memory log buffer, which is written to the file
+with a single write when the log is forced, when the buffer fills up
+and before the log is read back.
+
 */
 
 public class LogFile {
@@ -82,10 +113,23 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_UPDATE_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // page type tags of page images
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_INTERNAL_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_HEADER_PAGE = 5;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // type, LSN and tid at the start and start offset at the end of a record
+    final static int RECORD_OVERHEAD = INT_SIZE + 3 * LONG_SIZE;
+
+    static final int BUFFER_SIZE = 1 << 16;
 
     long currentOffset = -1;//protected by this
 //    int pageSize;
@@ -93,6 +137,66 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // Dirty page table: pages whose updates are logged but may not be on
+    // disk yet, mapped to the LSN and offset of the first such record.
+    // Added to under this; the BufferPool removes pages once written.
+    private final Map<PageId, long[]> dirtyPages = new java.util.concurrent.ConcurrentHashMap<PageId, long[]>();
+    // size of a dirty page table entry in a checkpoint record
+    static final int DIRTY_PAGE_SIZE = 2 * INT_SIZE + 2 * LONG_SIZE;
+
+    // Background checkpoints, see setCheckpointInterval.
+    private volatile Thread checkpointer = null;
+    private volatile long checkpointMillis = 0;
+    private final java.util.concurrent.atomic.AtomicLong checkpoints = new java.util.concurrent.atomic.AtomicLong();
+    // held for the whole of a truncation, so that only one runs at a time
+    private final Object truncateLock = new Object();
+
+    // records not yet written to the file; they start at file offset
+    // flushedOffset, so currentOffset is flushedOffset + buffer.position()
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE); //protected by this
+    private long flushedOffset = -1; //protected by this
+    private long lastLsn = 0; // LSN of the last record appended //protected by this
+
+    // Group commit. Rather than forcing the log itself, a committing
+    // transaction (or a buffer pool flush obeying the WAL rule) asks the
+    // flusher thread to force every record appended so far and waits;
+    // the flusher forces once for all the requests that came in during
+    // its batch window. See setGroupCommit.
+    private final Object forceLock = new Object();
+    private long forcedLsn = 0; // records up to this LSN are on disk //protected by forceLock
+    private long requested = 0; // highest LSN waited for //protected by forceLock
+    private int waiting = 0; // threads waiting for a force //protected by forceLock
+    // The error of a failed force. Records that were not forced before it
+    // may or may not be on disk, and a later force that succeeds does not
+    // tell, so every force from then on fails with it. //protected by forceLock
+    private IOException forceFailure = null;
+    private volatile Thread flusher = null;
+    private volatile long groupCommitWindowMicros = 0;
+    private volatile int groupCommitMaxBatch = 1;
+    private final java.util.concurrent.atomic.AtomicLong commits = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong forces = new java.util.concurrent.atomic.AtomicLong();
+
+    // statistics of the last call to recover()
+    private volatile long recoveryMillis = -1;
+    private volatile int recoveryRedone = 0;
+    private volatile int recoveryUndone = 0;
+    private volatile int recoveryLosers = 0;
+
+    // Test hook run after every update record is appended to the log
+    // buffer, before it is forced; crash tests use it to halt the JVM.
+    static volatile Runnable afterLogWrite = null;
+
+    // Test hook run while logTruncate copies the log without holding the
+    // lock on it.
+    static volatile Runnable duringTruncate = null;
+
+    // Test hook that stands in for forcing the log file to disk, so that
+    // tests can make a force fail.
+    interface Forcer {
+        void force(FileChannel channel) throws IOException;
+    }
+    static volatile Forcer forcer = null;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -127,18 +231,75 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
             raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            writeCheckpointOffset(NO_CHECKPOINT_ID);
+            buffer.clear();
+            flushedOffset = LONG_SIZE;
+            currentOffset = LONG_SIZE;
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** @return the LSN of the last record appended to the log */
+    public synchronized long getLastLsn() {
+        return lastLsn;
+    }
+
+    // make sure the log buffer has room for n more bytes
+    private void ensureSpace(int n) throws IOException {
+        if (buffer.remaining() >= n)
+            return;
+        flushBuffer();
+        if (buffer.capacity() < n)
+            buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(n) << 1);
+    }
+
+    // write the log buffer to the end of the file
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        FileChannel channel = raf.getChannel();
+        while (buffer.hasRemaining())
+            flushedOffset += channel.write(buffer, flushedOffset);
+        buffer.clear();
+    }
+
+    private void writeCheckpointOffset(long offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(LONG_SIZE);
+        b.putLong(offset).flip();
+        FileChannel channel = raf.getChannel();
+        while (b.hasRemaining())
+            channel.write(b, b.position());
+    }
+
+    // Start a record at the end of the log, with room for a body of at
+    // most bodySize bytes, and return its offset.
+    private long startRecord(int type, long lsn, long tid, int bodySize) throws IOException {
+        ensureSpace(RECORD_OVERHEAD + bodySize);
+        long start = currentOffset;
+        buffer.putInt(type);
+        buffer.putLong(lsn);
+        buffer.putLong(tid);
+        return start;
+    }
+
+    private void endRecord(long start) {
+        buffer.putLong(start);
+        currentOffset = flushedOffset + buffer.position();
+    }
+
+    // append a record without a body and return its LSN
+    private long appendRecord(int type, long tid) throws IOException {
+        preAppend();
+        long lsn = ++lastLsn;
+        endRecord(startRecord(type, lsn, tid, 0));
+        return lsn;
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -149,19 +310,15 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+            Database.getBufferPool().rolledBack(tid);
+
             synchronized(this) {
-                preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendRecord(ABORT_RECORD, tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -173,17 +330,22 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+            lsn = appendRecord(COMMIT_RECORD, tid.getId());
+            tidToFirstLogRecord.remove(tid.getId());
+            commits.incrementAndGet();
+            if (flusher == null) {
+                forceNow();
+                return;
+            }
+        }
+        // wait outside the monitor, so that other transactions can append
+        // their commit records to the same batch
+        awaitForce(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,108 +353,71 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        Only the changed slots are logged if the page has a slot layout
+        and nothing else changed (see PageUpdate).
+        @return the LSN of the record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
-           record type
+           record type (UPDATE or SLOT_UPDATE)
+           LSN
            transaction id
-           before page data (see writePageData)
-           after page data
+           page update (see PageUpdate.write)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageUpdate update = PageUpdate.of(before, after);
+        long lsn = appendUpdate(update.recordType(), tid.getId(), update);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        Runnable hook = afterLogWrite;
+        if (hook != null)
+            hook.run();
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    // append an UPDATE, SLOT_UPDATE or CLR record, adding its page to the
+    // dirty page table, and return its LSN
+    private long appendUpdate(int type, long tid, PageUpdate update) throws IOException {
+        preAppend();
+        long lsn = ++lastLsn;
+        long start = writeUpdate(type, lsn, tid, update);
+        endRecord(start);
+        dirtyPages.putIfAbsent(update.pid, new long[]{lsn, start});
+        return lsn;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Tell the log that a page was written to disk, so its logged
+        updates need not be redone by recovery from before the next
+        checkpoint.  Called by the BufferPool after writing a page.
+        @param pid The page written
+    */
+    public void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    private long writeUpdate(int type, long lsn, long tid, PageUpdate update) throws IOException {
+        if (type != CLR_RECORD) {
+            long start = startRecord(type, lsn, tid, update.size());
+            update.write(buffer);
+            return start;
         }
-        return newPage;
+        long start = startRecord(type, lsn, tid, INT_SIZE + update.size());
+        buffer.putInt(update.recordType());
+        update.write(buffer);
+        return start;
+    }
 
+    // read the body of an UPDATE, SLOT_UPDATE or CLR record
+    private static PageUpdate readUpdate(int type, DataInput in) throws IOException {
+        if (type == CLR_RECORD)
+            type = in.readInt();
+        return PageUpdate.read(type, in);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +432,288 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = startRecord(BEGIN_RECORD, ++lastLsn, tid.getId(), 0);
+        tidToFirstLogRecord.put(tid.getId(), start);
+        endRecord(start);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: rather than flushing the buffer pool, it
+        records the active transactions and the dirty page table, so it
+        only holds the lock on the log while the record is appended and
+        forced.  Recovery redoes the updates of the pages in the table
+        from their recLSN, and everything after the checkpoint.  The log
+        is truncated afterwards.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            // a page written meanwhile may still be listed, which just
+            // costs recovery a needless redo
+            List<Map.Entry<PageId, long[]>> dirty = new ArrayList<Map.Entry<PageId, long[]>>(dirtyPages.entrySet());
+            long startCpOffset = startRecord(CHECKPOINT_RECORD, ++lastLsn, -1, //no tid , but leave space for convenience
+                    2 * INT_SIZE + keys.size() * 2 * LONG_SIZE + dirty.size() * DIRTY_PAGE_SIZE);
+
+            //write list of outstanding transactions
+            buffer.putInt(keys.size());
+            for (Long key : keys) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                buffer.putLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                buffer.putLong(tidToFirstLogRecord.get(key));
+            }
+            //and the dirty page table
+            buffer.putInt(dirty.size());
+            for (Map.Entry<PageId, long[]> e : dirty) {
+                buffer.putInt(e.getKey().getTableId());
+                buffer.putInt(e.getKey().pageNumber());
+                buffer.putLong(e.getValue()[0]);
+                buffer.putLong(e.getValue()[1]);
+            }
+            endRecord(startCpOffset);
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            forceNow();
+            writeCheckpointOffset(startCpOffset);
+            checkpoints.incrementAndGet();
+            //Debug.log("CP OFFSET = " + currentOffset);
+        }
+
+        logTruncate();
+    }
+
+    /** Start taking a checkpoint (which also truncates the log) every
+        millis milliseconds in a background thread, or stop if millis is
+        0.  No checkpoint is taken until the log is known not to be
+        needed for recovery (see the constructor).
+        @param millis The interval between checkpoints
+    */
+    public void setCheckpointInterval(long millis) {
+        Thread old;
+        synchronized (forceLock) {
+            checkpointMillis = millis;
+            old = checkpointer;
+            checkpointer = null;
+            if (millis > 0) {
+                checkpointer = new Thread("checkpointer") {
+                    public void run() {
+                        runCheckpointer(this);
+                    }
+                };
+                checkpointer.setDaemon(true);
+                checkpointer.start();
+            }
+        }
+        if (old != null) {
+            old.interrupt();
+            if (old != Thread.currentThread()) {
+                try {
+                    old.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+            }
+        }
+    }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+    private void runCheckpointer(Thread self) {
+        while (checkpointer == self) {
+            try {
+                Thread.sleep(checkpointMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (checkpointer != self)
+                break;
+            try {
+                boolean undecided;
+                synchronized (this) {
+                    undecided = recoveryUndecided;
+                }
+                if (!undecided)
+                    logCheckpoint();
+            } catch (java.nio.channels.ClosedChannelException e) {
+                // the log was truncated or shut down under us; retry later
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+    }
 
-        logTruncate();
+    /** @return the number of checkpoints taken */
+    public long getCheckpointCount() {
+        return checkpoints.get();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        consumption.
+        <p>
+        The records still needed are copied to a new file next to the log,
+        which is forced and then atomically renamed over the log, so a
+        crash leaves either the old log or the new one.  The records are
+        copied without holding the lock on the log, so that appends go on
+        meanwhile; only the records appended during the copy are copied
+        with the lock held, before the files are swapped.
+    */
+    public void logTruncate() throws IOException {
+        synchronized (truncateLock) {
+            long cpLoc;
+            long minLogRecord;
+            long copyEnd;
+            synchronized (this) {
+                preAppend();
+                flushBuffer();
+                raf.seek(0);
+                cpLoc = raf.readLong();
+                minLogRecord = cpLoc == NO_CHECKPOINT_ID ? LONG_SIZE : cpLoc;
+
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    raf.seek(cpLoc);
+                    int cpType = raf.readInt();
+                    @SuppressWarnings("unused")
+                    long cpLsn = raf.readLong();
+                    @SuppressWarnings("unused")
+                    long cpTid = raf.readLong();
+
+                    if (cpType != CHECKPOINT_RECORD) {
+                        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    }
 
-        long minLogRecord = cpLoc;
+                    int numOutstanding = raf.readInt();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+                    for (int i = 0; i < numOutstanding; i++) {
+                        @SuppressWarnings("unused")
+                        long tid = raf.readLong();
+                        long firstLogRecord = raf.readLong();
+                        if (firstLogRecord < minLogRecord) {
+                            minLogRecord = firstLogRecord;
+                        }
+                    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    // recovery redoes the dirty pages from their recLSN
+                    int numDirty = raf.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        raf.skipBytes(2 * INT_SIZE + LONG_SIZE);
+                        minLogRecord = Math.min(minLogRecord, raf.readLong());
+                    }
+                }
+                copyEnd = currentOffset;
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+            // we can truncate everything before minLogRecord; every record
+            // after it moves shift bytes towards the start of the file
+            long shift = minLogRecord - LONG_SIZE;
+            File newFile = new File(logFile.getAbsoluteFile().getParentFile(),
+                    "logtmp" + System.currentTimeMillis());
+            boolean swapped = false;
+            try (RandomAccessFile in = new RandomAccessFile(logFile, "r");
+                 FileOutputStream fileOut = new FileOutputStream(newFile)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+                out.writeLong(cpLoc == NO_CHECKPOINT_ID ? NO_CHECKPOINT_ID : cpLoc - shift);
+                long copied = copyRecords(in, minLogRecord, copyEnd, shift, out);
+                Runnable hook = duringTruncate;
+                if (hook != null)
+                    hook.run();
+
+                synchronized (this) {
+                    flushBuffer();
+                    // have to rewrite log records since offsets are
+                    // different after truncation
+                    long end = copyRecords(in, copied, currentOffset, shift, out);
+                    out.flush();
+                    fileOut.getChannel().force(true);
+                    Debug.log("TRUNCATING LOG;  WAS " + currentOffset + " BYTES ; NEW START : " + minLogRecord
+                            + " NEW LENGTH: " + (end - minLogRecord));
+
+                    raf.close();
+                    java.nio.file.Files.move(newFile.toPath(), logFile.toPath(),
+                            java.nio.file.StandardCopyOption.ATOMIC_MOVE,
+                            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    swapped = true;
+                    raf = new RandomAccessFile(logFile, "rw");
+                    flushedOffset = end - shift;
+                    currentOffset = flushedOffset;
+                    // the active transactions and the dirty page table
+                    // point into the new file too
+                    for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet())
+                        e.setValue(e.getValue() - shift);
+                    for (long[] rec : dirtyPages.values())
+                        rec[1] -= shift;
                 }
+            } finally {
+                if (!swapped)
+                    newFile.delete();
             }
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+    // Copy the records of the log in from offset from up to offset to into
+    // out, moving them and the offsets in them shift bytes towards the
+    // start of the file. A record torn by a crash is dropped, and ends the
+    // copy. Returns the offset in the log the copy stopped at.
+    private static long copyRecords(RandomAccessFile in, long from, long to, long shift,
+            DataOutputStream out) throws IOException {
+        // read the old records through a buffer, not a field at a time
+        DataInputStream log = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(in.getChannel().position(from)), BUFFER_SIZE));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        long offset = from;
+        while (offset < to) {
+            bytes.reset();
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+                int type = log.readInt();
+                record.writeInt(type);
+                record.writeLong(log.readLong()); // LSN
+                record.writeLong(log.readLong()); // tid
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                case SLOT_UPDATE_RECORD:
+                case CLR_RECORD:
+                    PageUpdate update = readUpdate(type, log);
+                    ByteBuffer body = ByteBuffer.allocate(update.size());
+                    update.write(body);
+                    if (type == CLR_RECORD)
+                        record.writeInt(update.recordType());
+                    record.write(body.array());
                     break;
                 case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                    int numXactions = log.readInt();
+                    record.writeInt(numXactions);
+                    for (int i = 0; i < numXactions; i++) {
+                        record.writeLong(log.readLong());
+                        record.writeLong(log.readLong() - shift);
+                    }
+                    int numDirty = log.readInt();
+                    record.writeInt(numDirty);
+                    for (int i = 0; i < numDirty; i++) {
+                        record.writeInt(log.readInt());
+                        record.writeInt(log.readInt());
+                        record.writeLong(log.readLong());
+                        record.writeLong(log.readLong() - shift);
                     }
                     break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                default:
                     break;
                 }
 
                 //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
+                log.readLong();
+                record.writeLong(offset - shift);
             } catch (EOFException e) {
                 break;
             }
+            bytes.writeTo(out);
+            offset += bytes.size();
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        return offset;
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -464,21 +727,110 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            // the transaction's updates, latest first
+            List<PageUpdate> updates = new ArrayList<PageUpdate>();
             synchronized(this) {
                 preAppend();
+                flushBuffer();
                 // some code goes here
+                // Walk the log backwards from its end to the transaction's
+                // BEGIN record, collecting its updates in the order to
+                // undo them.
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                long stop = first == null ? LONG_SIZE : first;
+                long end = currentOffset;
+                while (end - LONG_SIZE >= stop) {
+                    raf.seek(end - LONG_SIZE);
+                    long start = raf.readLong();
+                    raf.seek(start);
+                    int type = raf.readInt();
+                    raf.readLong(); // LSN
+                    long recordTid = raf.readLong();
+                    if (recordTid == tid.getId()) {
+                        if (type == UPDATE_RECORD || type == SLOT_UPDATE_RECORD) {
+                            updates.add(PageUpdate.read(type, raf));
+                        } else if (type == BEGIN_RECORD) {
+                            break;
+                        }
+                    }
+                    end = start;
+                }
+            }
+
+            // committed updates were flushed when their transactions
+            // committed and records hold absolute contents, so undoing
+            // starts from the pages on disk
+            Map<PageId, byte[]> onDisk = new HashMap<PageId, byte[]>();
+            Map<PageId, byte[]> pages = new HashMap<PageId, byte[]>();
+            Map<PageId, PageUpdate> lastUpdates = new HashMap<PageId, PageUpdate>();
+            for (PageUpdate update : updates) {
+                if (!pages.containsKey(update.pid)) {
+                    byte[] data = update.readFromDisk();
+                    onDisk.put(update.pid, data);
+                    pages.put(update.pid, data.clone());
+                }
+                pages.put(update.pid, update.undo(pages.get(update.pid)));
+                lastUpdates.put(update.pid, update);
             }
+            compensate(Collections.singleton(tid.getId()), onDisk, pages, lastUpdates, false);
         }
     }
 
+    // Log a CLR for each page in pages, taking it from its data in onDisk
+    // to its undone data, then (if logAborts) an ABORT record for each of
+    // tids; force the log, and install the pages. The caller holds the
+    // BufferPool lock but not the lock on this.
+    private void compensate(Collection<Long> tids, Map<PageId, byte[]> onDisk,
+            Map<PageId, byte[]> pages, Map<PageId, PageUpdate> updates, boolean logAborts)
+            throws IOException {
+        // build the pages outside the monitor, they may need the catalog
+        List<Page> undone = new ArrayList<Page>();
+        List<PageUpdate> clrs = new ArrayList<PageUpdate>();
+        for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+            PageUpdate update = updates.get(e.getKey());
+            Page page = update.newPage(e.getValue());
+            undone.add(page);
+            clrs.add(PageUpdate.of(update.newPage(onDisk.get(e.getKey())), page));
+        }
+        // a CLR names the transaction whose update it undoes; when several
+        // transactions are rolled back together it is logged for the first
+        // one, which is fine since CLRs are only ever redone
+        long clrTid = tids.isEmpty() ? -1 : tids.iterator().next();
+        synchronized (this) {
+            for (PageUpdate clr : clrs)
+                appendUpdate(CLR_RECORD, clrTid, clr);
+            if (logAborts) {
+                for (Long tid : tids)
+                    appendRecord(ABORT_RECORD, tid);
+            }
+        }
+        force();
+        for (Page p : undone)
+            installPage(p);
+    }
+
+    // Replace the on-disk copy of a page with p and drop the cached copy.
+    // The caller holds the BufferPool lock but not the lock on this.
+    private void installPage(Page p) throws IOException {
+        PageId pid = p.getId();
+        Database.getBufferPool().discardPage(pid);
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        pageWritten(pid);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        setCheckpointInterval(0);
+        setGroupCommit(false, 0, 1);
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                flushBuffer();
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +840,498 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery follows ARIES, in three passes:
+        <ul>
+        <li> Analysis scans the log from the last checkpoint to find the
+        transactions that never completed (the losers), starting from
+        the transactions the checkpoint record lists as active.
+        <li> Redo repeats history: it starts from the smallest recLSN in
+        the dirty page table of the checkpoint, and applies the updates
+        and CLRs from there to the pages again, in log order, whatever
+        transaction they belong to.  Before the checkpoint, a record is
+        only redone if its page is in the dirty page table and it is not
+        older than the recLSN of that page; the other pages were on disk
+        when the checkpoint was taken.  Log records hold absolute
+        page or slot contents, so redoing an update that already reached
+        the disk does no harm.
+        <li> Undo rolls back the updates of the losers, latest first,
+        including the ones before the checkpoint, logs CLRs for the pages
+        it changes and an ABORT record for every loser.
+        </ul>
+        The time recovery took and the work it did are available from
+        getLastRecoveryMillis and friends.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            long begin = System.nanoTime();
+            // update and CLR records from the first record to redo or
+            // undo, in log order
+            List<LoggedUpdate> updates = new ArrayList<LoggedUpdate>();
+            Map<Long, Long> losers = new HashMap<Long, Long>();
+            // the dirty page table of the checkpoint: page -> recLSN offset
+            Map<Long, Long> dirty = new HashMap<Long, Long>();
+            long redoStart = LONG_SIZE;
             synchronized (this) {
                 recoveryUndecided = false;
+                flushBuffer();
                 // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    writeCheckpointOffset(NO_CHECKPOINT_ID);
+                }
+
+                // analysis: transactions active at the checkpoint, and the
+                // records after it
+                raf.seek(0);
+                long cp = raf.readLong();
+                long scanStart = LONG_SIZE;
+                if (cp != NO_CHECKPOINT_ID) {
+                    redoStart = cp;
+                    scanStart = cp;
+                    raf.seek(cp + INT_SIZE + 2 * LONG_SIZE);
+                    int numOutstanding = raf.readInt();
+                    for (int i = 0; i < numOutstanding; i++) {
+                        long tid = raf.readLong();
+                        long first = raf.readLong();
+                        losers.put(tid, first);
+                        scanStart = Math.min(scanStart, first);
+                    }
+                    int numDirty = raf.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        long page = pageKey(raf.readInt(), raf.readInt());
+                        raf.readLong(); // recLSN
+                        long recOffset = raf.readLong();
+                        dirty.put(page, recOffset);
+                        scanStart = Math.min(scanStart, recOffset);
+                    }
+                }
+                scan(redoStart, raf.length(), updates, losers);
+
+                // records before the checkpoint of losers, to undo, and of
+                // pages in the dirty page table, to redo
+                if (scanStart < redoStart) {
+                    List<LoggedUpdate> early = new ArrayList<LoggedUpdate>();
+                    scan(scanStart, redoStart, early, null);
+                    updates.addAll(0, early);
+                }
+
+                tidToFirstLogRecord.clear();
+                dirtyPages.clear();
+                flushedOffset = raf.length();
+                currentOffset = flushedOffset;
+            }
+
+            // redo, starting from the pages on disk
+            Map<PageId, byte[]> pages = new HashMap<PageId, byte[]>();
+            Map<PageId, PageUpdate> lastUpdates = new HashMap<PageId, PageUpdate>();
+            int redone = 0;
+            for (LoggedUpdate logged : updates) {
+                PageUpdate update = logged.update;
+                if (logged.offset < redoStart) {
+                    Long recOffset = dirty.get(pageKey(update.pid.getTableId(), update.pid.pageNumber()));
+                    if (recOffset == null || logged.offset < recOffset)
+                        continue;
+                }
+                pages.put(update.pid, update.redo(current(pages, update)));
+                lastUpdates.put(update.pid, update);
+                redone++;
             }
+            for (Map.Entry<PageId, byte[]> e : pages.entrySet())
+                installPage(lastUpdates.get(e.getKey()).newPage(e.getValue()));
+
+            // undo the losers; CLRs only ever get redone
+            Map<PageId, byte[]> onDisk = new HashMap<PageId, byte[]>();
+            Map<PageId, byte[]> undone = new HashMap<PageId, byte[]>();
+            int undoCount = 0;
+            for (int i = updates.size() - 1; i >= 0; i--) {
+                LoggedUpdate logged = updates.get(i);
+                if (logged.clr || !losers.containsKey(logged.tid))
+                    continue;
+                PageUpdate update = logged.update;
+                if (!undone.containsKey(update.pid)) {
+                    byte[] data = pages.containsKey(update.pid) ? pages.get(update.pid) : update.readFromDisk();
+                    onDisk.put(update.pid, data);
+                    undone.put(update.pid, data.clone());
+                }
+                undone.put(update.pid, update.undo(undone.get(update.pid)));
+                lastUpdates.put(update.pid, update);
+                undoCount++;
+            }
+            compensate(losers.keySet(), onDisk, undone, lastUpdates, true);
+
+            recoveryMillis = (System.nanoTime() - begin) / 1000000;
+            recoveryRedone = redone;
+            recoveryUndone = undoCount;
+            recoveryLosers = losers.size();
+            Debug.log("RECOVERY TOOK " + recoveryMillis + " ms, redid " + redone + " and undid "
+                    + undoCount + " updates of " + losers.size() + " transactions");
          }
     }
 
+    // an update or CLR record read by recovery
+    private static class LoggedUpdate {
+        final long offset;
+        final long tid;
+        final boolean clr;
+        final PageUpdate update;
+
+        LoggedUpdate(long offset, long tid, boolean clr, PageUpdate update) {
+            this.offset = offset;
+            this.tid = tid;
+            this.clr = clr;
+            this.update = update;
+        }
+    }
+
+    // identifies a page in the dirty page table of a checkpoint record
+    private static long pageKey(int tableId, int pageNo) {
+        return ((long) tableId << 32) | (pageNo & 0xffffffffL);
+    }
+
+    // Read the records from offset start to end, adding update and CLR
+    // records to updates. If active is not null, track the transactions
+    // that begin and complete in it, mapped to their first record. A
+    // record torn by a crash at the end of the log is dropped. The caller
+    // holds the lock on this.
+    private void scan(long start, long end, List<LoggedUpdate> updates,
+            Map<Long, Long> active) throws IOException {
+        raf.seek(start);
+        long recordStart;
+        while ((recordStart = raf.getFilePointer()) < end) {
+            try {
+                int type = raf.readInt();
+                long lsn = raf.readLong();
+                long recordTid = raf.readLong();
+                switch (type) {
+                case UPDATE_RECORD:
+                case SLOT_UPDATE_RECORD:
+                case CLR_RECORD:
+                    updates.add(new LoggedUpdate(recordStart, recordTid, type == CLR_RECORD,
+                            readUpdate(type, raf)));
+                    break;
+                case BEGIN_RECORD:
+                    if (active != null)
+                        active.put(recordTid, recordStart);
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    if (active != null)
+                        active.remove(recordTid);
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = raf.readInt();
+                    raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                    int numDirty = raf.readInt();
+                    raf.skipBytes(numDirty * DIRTY_PAGE_SIZE);
+                    break;
+                }
+                raf.readLong();
+                lastLsn = Math.max(lastLsn, lsn);
+            } catch (EOFException e) {
+                // the last record was only partly written; drop it
+                raf.setLength(recordStart);
+                break;
+            }
+        }
+    }
+
+    // the data of the page an update applies to, as rebuilt so far or as on
+    // disk; null if the update does not need it
+    private static byte[] current(Map<PageId, byte[]> pages, PageUpdate update) {
+        byte[] data = pages.get(update.pid);
+        if (data == null && !update.isFullImage())
+            data = update.readFromDisk();
+        return data;
+    }
+
+    /** @return how long the last call to recover took, in milliseconds,
+        or -1 if recover was not called */
+    public long getLastRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /** @return the number of updates the last call to recover redid */
+    public int getLastRecoveryRedoCount() {
+        return recoveryRedone;
+    }
+
+    /** @return the number of updates the last call to recover undid */
+    public int getLastRecoveryUndoCount() {
+        return recoveryUndone;
+    }
+
+    /** @return the number of transactions the last call to recover
+        rolled back */
+    public int getLastRecoveryLoserCount() {
+        return recoveryLosers;
+    }
+
+    static String recordTypeName(int type) {
+        switch (type) {
+        case ABORT_RECORD: return "ABORT";
+        case COMMIT_RECORD: return "COMMIT";
+        case UPDATE_RECORD: return "UPDATE";
+        case SLOT_UPDATE_RECORD: return "SLOT_UPDATE";
+        case CLR_RECORD: return "CLR";
+        case BEGIN_RECORD: return "BEGIN";
+        case CHECKPOINT_RECORD: return "CHECKPOINT";
+        default: return "UNKNOWN(" + type + ")";
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            flushBuffer();
+            long length = raf.length();
+            if (length < LONG_SIZE) {
+                System.out.println("empty log");
+                return;
+            }
+            raf.seek(0);
+            long cp = raf.readLong();
+            System.out.println("log of " + length + " bytes, "
+                    + (cp == NO_CHECKPOINT_ID ? "no checkpoint" : "last checkpoint at offset " + cp));
+            long offset;
+            while ((offset = raf.getFilePointer()) < length) {
+                try {
+                    int type = raf.readInt();
+                    long lsn = raf.readLong();
+                    long tid = raf.readLong();
+                    StringBuilder line = new StringBuilder();
+                    line.append(offset).append(": LSN ").append(lsn).append(' ')
+                        .append(recordTypeName(type));
+                    if (type != CHECKPOINT_RECORD)
+                        line.append(" tid ").append(tid);
+                    switch (type) {
+                    case UPDATE_RECORD:
+                    case SLOT_UPDATE_RECORD:
+                    case CLR_RECORD:
+                        line.append(' ').append(readUpdate(type, raf));
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = raf.readInt();
+                        line.append(" active");
+                        if (numXactions == 0)
+                            line.append(" none");
+                        while (numXactions-- > 0)
+                            line.append(" tid ").append(raf.readLong())
+                                .append(" from ").append(raf.readLong());
+                        int numDirty = raf.readInt();
+                        line.append(", dirty");
+                        if (numDirty == 0)
+                            line.append(" none");
+                        while (numDirty-- > 0)
+                            line.append(" page ").append(raf.readInt()).append('/').append(raf.readInt())
+                                .append(" recLSN ").append(raf.readLong())
+                                .append(" from ").append(raf.readLong());
+                        break;
+                    }
+                    if (raf.readLong() != offset)
+                        line.append(" (bad start offset)");
+                    System.out.println(line);
+                } catch (EOFException e) {
+                    System.out.println(offset + ": torn record");
+                    break;
+                }
+            }
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force all records appended so far to disk. With group commit on,
+        this waits for the flusher thread to force them. */
+    public void force() throws IOException {
+        long lsn;
+        synchronized (this) {
+            if (flusher == null) {
+                forceNow();
+                return;
+            }
+            lsn = lastLsn;
+        }
+        awaitForce(lsn);
+    }
+
+    private synchronized void forceNow() throws IOException {
+        synchronized (forceLock) {
+            checkForceFailure();
+        }
+        flushBuffer();
+        try {
+            forceChannel(raf.getChannel());
+        } catch (IOException e) {
+            forceFailed(e);
+            throw e;
+        }
+        forces.incrementAndGet();
+        synchronized (forceLock) {
+            forcedLsn = Math.max(forcedLsn, lastLsn);
+            // commits waiting for the flusher may be durable now
+            forceLock.notifyAll();
+        }
+    }
+
+    private static void forceChannel(FileChannel channel) throws IOException {
+        Forcer f = forcer;
+        if (f != null)
+            f.force(channel);
+        else
+            channel.force(true);
+    }
+
+    // record that a force failed, and wake the threads waiting for one
+    private void forceFailed(IOException e) {
+        synchronized (forceLock) {
+            if (forceFailure == null)
+                forceFailure = e;
+            forceLock.notifyAll();
+        }
+    }
+
+    // caller holds forceLock
+    private void checkForceFailure() throws IOException {
+        if (forceFailure != null)
+            throw new IOException("the log could not be forced: " + forceFailure.getMessage(), forceFailure);
+    }
+
+    // wait until the records up to lsn are on disk
+    private void awaitForce(long lsn) throws IOException {
+        boolean interrupted = false;
+        try {
+            synchronized (forceLock) {
+                requested = Math.max(requested, lsn);
+                waiting++;
+                forceLock.notifyAll();
+                try {
+                    while (forcedLsn < lsn && forceFailure == null && flusher != null) {
+                        try {
+                            forceLock.wait();
+                        } catch (InterruptedException e) {
+                            // the records are already in the log, so the
+                            // caller has to wait for them to be durable anyway
+                            interrupted = true;
+                        }
+                    }
+                    if (forcedLsn >= lsn)
+                        return;
+                    checkForceFailure();
+                } finally {
+                    waiting--;
+                }
+            }
+            // group commit was turned off while we waited
+            forceNow();
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Turn group commit on or off. With group commit on, committing
+     * transactions do not force the log themselves: a background flusher
+     * thread waits for up to windowMicros microseconds after the first
+     * request (or until maxBatch threads are waiting), forces the log once,
+     * and wakes every transaction whose records are now on disk. Forces
+     * required by write-ahead logging before a page is written are batched
+     * the same way.
+     *
+     * @param enabled whether to use group commit
+     * @param windowMicros how long the flusher waits for more commits to
+     *            join a batch
+     * @param maxBatch force as soon as this many threads are waiting
+     */
+    public void setGroupCommit(boolean enabled, long windowMicros, int maxBatch) {
+        if (windowMicros < 0 || maxBatch < 1)
+            throw new IllegalArgumentException("invalid group commit window or batch size");
+        groupCommitWindowMicros = windowMicros;
+        groupCommitMaxBatch = maxBatch;
+        Thread old;
+        synchronized (this) {
+            old = flusher;
+            if (enabled == (old != null))
+                return;
+            if (enabled) {
+                flusher = new Thread(this::runFlusher, "log flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+                return;
+            }
+            flusher = null;
+        }
+        synchronized (forceLock) {
+            forceLock.notifyAll();
+        }
+        try {
+            old.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return true if group commit is on */
+    public boolean isGroupCommit() {
+        return flusher != null;
+    }
+
+    /** @return the number of COMMIT records written */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /** @return the number of times the log was forced to disk; together
+        with getCommitCount, tells how many commits share an fsync */
+    public long getForceCount() {
+        return forces.get();
+    }
+
+    private void runFlusher() {
+        Thread self = Thread.currentThread();
+        while (flusher == self) {
+            try {
+                synchronized (forceLock) {
+                    while ((requested <= forcedLsn || forceFailure != null) && flusher == self)
+                        forceLock.wait();
+                    if (flusher != self)
+                        break;
+                    // give more transactions a chance to join the batch
+                    long deadline = System.nanoTime() + groupCommitWindowMicros * 1000;
+                    long left;
+                    while (waiting < groupCommitMaxBatch
+                            && (left = deadline - System.nanoTime()) > 0)
+                        forceLock.wait(left / 1000000, (int) (left % 1000000));
+                }
+
+                long target;
+                while (true) {
+                    FileChannel channel;
+                    synchronized (this) {
+                        flushBuffer();
+                        channel = raf.getChannel();
+                        target = lastLsn;
+                    }
+                    try {
+                        forceChannel(channel);
+                        forces.incrementAndGet();
+                        break;
+                    } catch (ClosedChannelException e) {
+                        // logTruncate replaced the file; force the new one
+                    }
+                }
+                synchronized (forceLock) {
+                    forcedLsn = Math.max(forcedLsn, target);
+                    forceLock.notifyAll();
+                }
+            } catch (InterruptedException e) {
+                // only setGroupCommit stops the flusher
+            } catch (IOException e) {
+                // the waiting commits fail rather than wait for a force
+                // that may never succeed
+                forceFailed(e);
+            }
+        }
     }
 
 }
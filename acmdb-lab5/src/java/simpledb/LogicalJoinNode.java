@@ -23,6 +23,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The physical algorithm chosen by the optimizer to evaluate this join */
+    public JoinOptimizer.JoinAlgorithm algorithm = JoinOptimizer.JoinAlgorithm.NESTED_LOOP;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +66,14 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this LogicalJoinNode that will be evaluated with
+     * the given physical algorithm. */
+    public LogicalJoinNode withAlgorithm(JoinOptimizer.JoinAlgorithm alg) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = alg;
+        return j2;
+    }
+    
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
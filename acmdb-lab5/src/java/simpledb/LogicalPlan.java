@@ -5,6 +5,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.NoSuchElementException;
 
 /**
@@ -12,9 +15,8 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * Any number of aggregates can be computed over the groups.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,10 +31,9 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
+    private Vector<LogicalSelectListNode> aggregates;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
@@ -47,6 +48,8 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggregates = new Vector<LogicalSelectListNode>();
         this.query = "";
     }
 
@@ -186,23 +189,55 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+        addAggregate(op, afield);
+    }
+
+    /** Add an aggregate over the field to the query; all the aggregates
+        of a query are computed over the same groups.  Adding the same
+        aggregate twice has no effect.
+        @param op the aggregation operator
+        @param afield the field to aggregate over, or * to count tuples
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        afield=disambiguateName(afield);
+        if (afield.equals("*"))
+            afield="null.*";
+        if (aggregateIndex(op, afield) < 0)
+            aggregates.addElement(new LogicalSelectListNode(op, afield));
         hasAgg = true;
     }
 
+    /** Add a field to the GROUP BY list of the query.  Groups are formed
+        by all the fields added, in the order they were added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    // the index of the aggregate of op over fname in the aggregates, or -1
+    private int aggregateIndex(String op, String fname) {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode agg = aggregates.elementAt(i);
+            if (agg.aggOp.equalsIgnoreCase(op) && agg.fname.equals(fname))
+                return i;
+        }
+        return -1;
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -271,6 +306,172 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** The constant of a filter, as a field of the specified type */
+    private static Field filterConstant(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(c).intValue());
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
+    /** Replace the scans of tables in the subplan map with index scans
+        where that is cheaper.  The filters on the key field of a B+ tree,
+        or on the field of a {@link SecondaryIndex} of a table, that an
+        index scan can match are merged into one {@link IndexPredicate} by
+        {@link #indexPredicate}.  The cheapest of these index scans, costed
+        with {@link TableStats#estimateIndexScanCost} or {@link
+        TableStats#estimateSecondaryIndexScanCost}, is used if it costs less
+        than {@link TableStats#estimateScanCost scanning} the whole table.
+        @return the filters the index scans match
+    */
+    private HashSet<LogicalFilterNode> chooseIndexScans(TransactionId t, Map<String,TableStats> statsMap) {
+        HashSet<LogicalFilterNode> indexFilters = new HashSet<LogicalFilterNode>();
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null)
+                continue;
+            TupleDesc td = file.getTupleDesc();
+
+            DbIterator best = null;
+            HashSet<LogicalFilterNode> bestFilters = null;
+            String bestDescription = null;
+            double bestCost = s.estimateScanCost();
+            if (file instanceof BTreeFile) {
+                int keyField = ((BTreeFile) file).keyField();
+                HashSet<LogicalFilterNode> keyFilters = new HashSet<LogicalFilterNode>();
+                IndexPredicate ipred = indexPredicate(table.alias, td, keyField, keyFilters);
+                if (ipred != null) {
+                    double cost = s.estimateIndexScanCost(s.estimateSelectivity(keyField, ipred));
+                    if (cost < bestCost) {
+                        best = new BTreeScan(t, table.t, table.alias, ipred);
+                        bestFilters = keyFilters;
+                        bestDescription = td.getFieldName(keyField) + " " + ipred;
+                        bestCost = cost;
+                    }
+                }
+            }
+            // the indexes with filters, for a bitmap scan intersecting them
+            final HashMap<SecondaryIndex, Double> sels = new HashMap<SecondaryIndex, Double>();
+            HashMap<SecondaryIndex, IndexPredicate> preds = new HashMap<SecondaryIndex, IndexPredicate>();
+            HashMap<SecondaryIndex, HashSet<LogicalFilterNode>> filtersOf =
+                new HashMap<SecondaryIndex, HashSet<LogicalFilterNode>>();
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                HashSet<LogicalFilterNode> keyFilters = new HashSet<LogicalFilterNode>();
+                IndexPredicate ipred = indexPredicate(table.alias, td, index.getField(), keyFilters);
+                if (ipred == null)
+                    continue;
+                double sel = s.estimateSelectivity(index.getField(), ipred);
+                double cost = s.estimateSecondaryIndexScanCost(index, sel);
+                if (cost < bestCost) {
+                    best = new SecondaryIndexScan(t, index, table.alias, ipred);
+                    bestFilters = keyFilters;
+                    bestDescription = description(td, index, ipred);
+                    bestCost = cost;
+                }
+                sels.put(index, sel);
+                preds.put(index, ipred);
+                filtersOf.put(index, keyFilters);
+            }
+            // a bitmap scan intersects the n most selective indexes, for the
+            // cheapest n; a less selective index can cost more to look up
+            // than it saves in heap pages
+            ArrayList<SecondaryIndex> bySelectivity = new ArrayList<SecondaryIndex>(sels.keySet());
+            Collections.sort(bySelectivity, new Comparator<SecondaryIndex>() {
+                public int compare(SecondaryIndex a, SecondaryIndex b) {
+                    return Double.compare(sels.get(a), sels.get(b));
+                }
+            });
+            for (int n = 1; n <= bySelectivity.size(); n++) {
+                SecondaryIndex[] indexes = bySelectivity.subList(0, n).toArray(new SecondaryIndex[n]);
+                double[] indexSels = new double[n];
+                for (int i = 0; i < n; i++)
+                    indexSels[i] = sels.get(indexes[i]);
+                double cost = s.estimateBitmapHeapScanCost(indexes, indexSels);
+                if (cost >= bestCost)
+                    continue;
+                IndexPredicate[] indexPreds = new IndexPredicate[n];
+                bestFilters = new HashSet<LogicalFilterNode>();
+                bestDescription = "";
+                for (int i = 0; i < n; i++) {
+                    indexPreds[i] = preds.get(indexes[i]);
+                    bestFilters.addAll(filtersOf.get(indexes[i]));
+                    bestDescription += (i == 0 ? "" : " and ") + description(td, indexes[i], indexPreds[i]);
+                }
+                bestDescription += " (bitmap)";
+                best = new BitmapHeapScan(t, indexes, indexPreds, true, table.alias);
+                bestCost = cost;
+            }
+            if (best != null) {
+                System.out.println("Using index scan of " + table.alias + " for " + bestDescription);
+                subplanMap.put(table.alias, best);
+                indexFilters.addAll(bestFilters);
+            }
+        }
+        return indexFilters;
+    }
+
+    private static String description(TupleDesc td, SecondaryIndex index, IndexPredicate ipred) {
+        return td.getFieldName(index.getField()) + " " + ipred + " with index " + index.getName();
+    }
+
+    /** Merge the filters on an indexed field of a table into one index
+        predicate, bounded by the tightest lower and upper bounds among them.
+        @param alias the alias of the table
+        @param td the TupleDesc of the table
+        @param field the indexed field
+        @param keyFilters the filters merged are added to it
+        @return the merged predicate, or null if no filter on field can be
+        matched by an index scan
+    */
+    private IndexPredicate indexPredicate(String alias, TupleDesc td, int field,
+            HashSet<LogicalFilterNode> keyFilters) {
+        String keyName = alias + "." + td.getFieldName(field);
+        Type keyType = td.getFieldType(field);
+        Predicate.Op lowerOp = null, upperOp = null;
+        Field lower = null, upper = null;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.fieldQuantifiedName.equals(keyName) || !isIndexOp(lf.p))
+                continue;
+            keyFilters.add(lf);
+            Field c = filterConstant(keyType, lf.c);
+            // an equality bounds the key from both sides
+            if (lf.p != Predicate.Op.LESS_THAN && lf.p != Predicate.Op.LESS_THAN_OR_EQ) {
+                Predicate.Op op = lf.p == Predicate.Op.EQUALS ? Predicate.Op.GREATER_THAN_OR_EQ : lf.p;
+                if (lower == null || c.compare(Predicate.Op.GREATER_THAN, lower)
+                        || (c.equals(lower) && op == Predicate.Op.GREATER_THAN)) {
+                    lower = c;
+                    lowerOp = op;
+                }
+            }
+            if (lf.p != Predicate.Op.GREATER_THAN && lf.p != Predicate.Op.GREATER_THAN_OR_EQ) {
+                Predicate.Op op = lf.p == Predicate.Op.EQUALS ? Predicate.Op.LESS_THAN_OR_EQ : lf.p;
+                if (upper == null || c.compare(Predicate.Op.LESS_THAN, upper)
+                        || (c.equals(upper) && op == Predicate.Op.LESS_THAN)) {
+                    upper = c;
+                    upperOp = op;
+                }
+            }
+        }
+        if (keyFilters.isEmpty())
+            return null;
+        if (lower == null)
+            return new IndexPredicate(upperOp, upper);
+        if (upper == null)
+            return new IndexPredicate(lowerOp, lower);
+        if (lower.equals(upper) && lowerOp == Predicate.Op.GREATER_THAN_OR_EQ
+                && upperOp == Predicate.Op.LESS_THAN_OR_EQ)
+            return new IndexPredicate(Predicate.Op.EQUALS, lower);
+        return new IndexPredicate(lowerOp, lower, upperOp, upper);
+    }
+
+    /** @return true if a B+ tree index scan can match the operator */
+    private static boolean isIndexOp(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+            || op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN
+            || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -306,6 +507,8 @@ public class LogicalPlan {
 
         }
 
+        HashSet<LogicalFilterNode> indexFilters = chooseIndexScans(t, statsMap);
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,10 +526,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -334,7 +534,9 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // the index scan already returns only the tuples matching it
+            if (!indexFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -414,28 +616,25 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int agg = aggregateIndex(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list is not computed");
                 }
+                outFields.add(groupByFields.size() + agg);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,18 +659,35 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            int[] gfields = new int[groupByFields.size()];
+            int[] afields = new int[aggregates.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                for (int i = 0; i < afields.length; i++) {
+                    LogicalSelectListNode agg = aggregates.elementAt(i);
+                    aops[i] = getAggOp(agg.aggOp);
+                    if (agg.fname.equals("null.*")) {
+                        if (aops[i] != Aggregator.Op.COUNT)
+                            throw new ParsingException(agg.aggOp + "(*) is not supported");
+                        afields[i] = 0;
+                    } else {
+                        afields[i] = td.fieldNameToIndex(agg.fname);
+                    }
+                }
+                // a single aggregate over at most one group by field is what
+                // Aggregate computes; anything else needs a MultiAggregate
+                if (afields.length == 1 && gfields.length <= 1)
+                    node = new Aggregate(node, afields[0],
+                                         gfields.length == 0?Aggregator.NO_GROUPING:gfields[0], aops[0]);
+                else
+                    node = new MultiAggregate(node, afields, gfields, aops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
         }
 
         if (hasOrderBy) {
@@ -0,0 +1,38 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Evicts the least recently used evictable page.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    // in access order, least recently used first
+    private final LinkedHashMap<PageId, Boolean> pages =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    public void pageAdded(PageId pid) {
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public void pageAccessed(PageId pid) {
+        pages.get(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        pages.remove(pid);
+    }
+
+    public PageId victim(java.util.function.Predicate<PageId> evictable) {
+        // iterating the keys does not count as an access
+        for (PageId pid : pages.keySet()) {
+            if (evictable.test(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    public void pageEvicted(PageId pid) {
+        pages.remove(pid);
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Every page keeps the times
+ * of its last K references, and the victim is the page whose K-th most
+ * recent reference is oldest. Pages referenced fewer than K times have an
+ * infinite backward K-distance and go first, least recently used among them
+ * first, so pages touched once by a scan are evicted before pages that are
+ * used repeatedly.
+ * <p>
+ * The reference history of evicted pages is retained for a while, so that a
+ * page that is read again soon after being evicted is not treated as new.
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    private final int k;
+    private final int retained;
+    // logical clock, advanced on every reference
+    private long clock = 0;
+    // reference times of resident pages, most recent first; 0 means none
+    private final HashMap<PageId, long[]> resident = new HashMap<PageId, long[]>();
+    // histories of evicted pages, least recently evicted first
+    private final LinkedHashMap<PageId, long[]> history = new LinkedHashMap<PageId, long[]>();
+
+    /**
+     * @param k the number of references to remember per page
+     * @param retained the number of evicted pages whose history is kept
+     */
+    public LruKEvictionPolicy(int k, int retained) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+        this.retained = retained;
+    }
+
+    private void reference(long[] times) {
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = ++clock;
+    }
+
+    public void pageAdded(PageId pid) {
+        long[] times = history.remove(pid);
+        if (times == null)
+            times = new long[k];
+        reference(times);
+        resident.put(pid, times);
+    }
+
+    public void pageAccessed(PageId pid) {
+        long[] times = resident.get(pid);
+        if (times != null)
+            reference(times);
+    }
+
+    public void pageRemoved(PageId pid) {
+        resident.remove(pid);
+    }
+
+    public PageId victim(java.util.function.Predicate<PageId> evictable) {
+        PageId victim = null;
+        long[] victimTimes = null;
+        for (Map.Entry<PageId, long[]> e : resident.entrySet()) {
+            long[] times = e.getValue();
+            if (victimTimes != null && (times[k - 1] > victimTimes[k - 1]
+                    || (times[k - 1] == victimTimes[k - 1] && times[0] > victimTimes[0])))
+                continue;
+            if (!evictable.test(e.getKey()))
+                continue;
+            victim = e.getKey();
+            victimTimes = times;
+        }
+        return victim;
+    }
+
+    public void pageEvicted(PageId pid) {
+        long[] times = resident.remove(pid);
+        if (times == null)
+            return;
+        history.put(pid, times);
+        if (history.size() > retained) {
+            Iterator<PageId> it = history.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
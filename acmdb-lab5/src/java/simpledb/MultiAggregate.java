@@ -0,0 +1,352 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * MultiAggregate computes any number of aggregates, grouped by any number of
+ * columns, in one pass over its child: for
+ * <pre>
+ *     SELECT g, h, COUNT(x), SUM(y), MAX(y) FROM t GROUP BY g, h
+ * </pre>
+ * each group of (g, h) gets a COUNT, a SUM and a MAX. The output tuples are
+ * the group-by fields, in order, followed by one INT field per aggregate;
+ * without group-by fields there is always a single output tuple, with 0
+ * for every aggregate if the child is empty, as {@link IntegerAggregator}
+ * returns. MIN, MAX, SUM, AVG and COUNT are supported, COUNT also over
+ * string fields.
+ * <p>
+ * Every group keeps a running value and count per aggregate. At most
+ * maxGroups groups are kept in a hash table; when there are more, the
+ * groups in the table are written as partial aggregates to an
+ * {@link ExternalSort} on the group-by fields and the table starts over.
+ * The partial aggregates of a group then come out of the sort together,
+ * and are merged one group at a time.
+ */
+public class MultiAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int[] afields;
+    private final int[] gfields;
+    private final Aggregator.Op[] aops;
+    private final int maxGroups;
+
+    private TupleDesc td;
+    // the group-by fields followed by a (value, count) pair per aggregate
+    private TupleDesc partialTd;
+
+    private transient HashMap<List<Field>, int[]> groups = null;
+    private transient ArrayList<Tuple> results = null;
+    private transient ExternalSort sort = null;
+    private transient Iterator<Tuple> it = null;
+    private int spilledGroups = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which the aggregates are computed.
+     * @param gfields
+     *            The columns to group by, possibly none.
+     * @param aops
+     *            The aggregation operator of each of afields.
+     * @throws IllegalArgumentException
+     *             if afields and aops differ in length, or an operator is
+     *             not supported on its field
+     */
+    public MultiAggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, Aggregate.MAX_GROUPS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxGroups
+     *            The number of groups held in the hash table before they
+     *            are written to the sort
+     * @see #MultiAggregate(DbIterator, int[], int[], Aggregator.Op[])
+     */
+    public MultiAggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+            int maxGroups) {
+        if (afields.length != aops.length)
+            throw new IllegalArgumentException("every aggregate field needs an operator");
+        this.child = child;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+        this.maxGroups = maxGroups;
+
+        TupleDesc childTd = child.getTupleDesc();
+        for (int i = 0; i < aops.length; i++) {
+            switch (aops[i]) {
+            case MIN: case MAX: case SUM: case AVG:
+                if (childTd.getFieldType(afields[i]) != Type.INT_TYPE)
+                    throw new IllegalArgumentException(aops[i] + " is not supported on "
+                            + childTd.getFieldName(afields[i]));
+                break;
+            case COUNT:
+                break;
+            default:
+                throw new IllegalArgumentException(aops[i] + " is not supported");
+            }
+        }
+        setTupleDescs();
+    }
+
+    private void setTupleDescs() {
+        TupleDesc childTd = child.getTupleDesc();
+        int n = gfields.length + afields.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        Type[] partialTypes = new Type[n + afields.length];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = partialTypes[i] = childTd.getFieldType(gfields[i]);
+            names[i] = childTd.getFieldName(gfields[i]);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            types[gfields.length + i] = Type.INT_TYPE;
+            names[gfields.length + i] = childTd.getFieldName(afields[i]);
+            partialTypes[gfields.length + 2 * i] = Type.INT_TYPE;
+            partialTypes[gfields.length + 2 * i + 1] = Type.INT_TYPE;
+        }
+        td = new TupleDesc(types, names);
+        partialTd = new TupleDesc(partialTypes);
+    }
+
+    /** @return the group-by fields, in the <b>INPUT</b> tuples */
+    public int[] groupFields() {
+        return gfields.clone();
+    }
+
+    /** @return the aggregate fields, in the <b>INPUT</b> tuples */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /** @return the aggregation operators */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
+    }
+
+    /** @return the number of partial aggregates written to the sort since the last open */
+    public int numSpilledGroups() {
+        return spilledGroups;
+    }
+
+    // the fields of t at the specified positions
+    private static List<Field> key(Tuple t, int[] fields) {
+        List<Field> key = new ArrayList<Field>(fields.length);
+        for (int f : fields)
+            key.add(t.getField(f));
+        return key;
+    }
+
+    // the positions of the group-by fields in a partial aggregate
+    private int[] partialKey() {
+        int[] fields = new int[gfields.length];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = i;
+        return fields;
+    }
+
+    // merge a value, standing for count tuples, into aggregate i of state
+    private void merge(int[] state, int i, int value, int count) {
+        int v = 2 * i;
+        switch (aops[i]) {
+        case MIN:
+            state[v] = state[v + 1] == 0 ? value : Math.min(state[v], value);
+            break;
+        case MAX:
+            state[v] = state[v + 1] == 0 ? value : Math.max(state[v], value);
+            break;
+        case SUM: case AVG:
+            state[v] += value;
+            break;
+        default:
+            break;
+        }
+        state[v + 1] += count;
+    }
+
+    private Tuple result(List<Field> key, int[] state) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < key.size(); i++)
+            t.setField(i, key.get(i));
+        for (int i = 0; i < aops.length; i++) {
+            int value = state[2 * i];
+            int count = state[2 * i + 1];
+            int result = aops[i] == Aggregator.Op.COUNT ? count
+                    : aops[i] == Aggregator.Op.AVG ? (count == 0 ? 0 : value / count) : value;
+            t.setField(gfields.length + i, new IntField(result));
+        }
+        return t;
+    }
+
+    // write the groups in the table to the sort as partial aggregates
+    private void spill() throws DbException {
+        try {
+            if (sort == null) {
+                sort = new ExternalSort(partialTd, new KeyComparator(partialKey()),
+                        OrderBy.DEFAULT_MEMORY_PAGES);
+            }
+            for (Map.Entry<List<Field>, int[]> group : groups.entrySet()) {
+                Tuple t = new Tuple(partialTd);
+                List<Field> key = group.getKey();
+                for (int i = 0; i < key.size(); i++)
+                    t.setField(i, key.get(i));
+                int[] state = group.getValue();
+                for (int i = 0; i < state.length; i++)
+                    t.setField(key.size() + i, new IntField(state[i]));
+                sort.add(t);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not spill groups: " + e.getMessage());
+        }
+        spilledGroups += groups.size();
+        groups.clear();
+    }
+
+    private void aggregate() throws DbException, TransactionAbortedException {
+        groups = new HashMap<List<Field>, int[]>();
+        spilledGroups = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            List<Field> key = key(t, gfields);
+            int[] state = groups.get(key);
+            if (state == null) {
+                if (groups.size() >= maxGroups && gfields.length > 0)
+                    spill();
+                state = new int[2 * aops.length];
+                groups.put(key, state);
+            }
+            for (int i = 0; i < aops.length; i++) {
+                Field f = t.getField(afields[i]);
+                merge(state, i, f.getType() == Type.INT_TYPE ? ((IntField) f).getValue() : 0, 1);
+            }
+        }
+
+        // without grouping an empty child still yields its one group
+        if (gfields.length == 0 && groups.isEmpty())
+            groups.put(Collections.<Field>emptyList(), new int[2 * aops.length]);
+
+        if (sort == null) {
+            results = new ArrayList<Tuple>(groups.size());
+            for (Map.Entry<List<Field>, int[]> group : groups.entrySet())
+                results.add(result(group.getKey(), group.getValue()));
+        } else {
+            spill();
+        }
+        groups = null;
+        it = iterator();
+    }
+
+    private Iterator<Tuple> iterator() throws DbException {
+        if (sort == null)
+            return results.iterator();
+        final Iterator<Tuple> partials;
+        try {
+            partials = sort.iterator();
+        } catch (IOException e) {
+            throw new DbException("could not read spilled groups: " + e.getMessage());
+        }
+        final int[] keyFields = partialKey();
+
+        // the sorted partial aggregates, merged one group at a time
+        return new Iterator<Tuple>() {
+            private Tuple next = partials.hasNext() ? partials.next() : null;
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Tuple next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                List<Field> key = key(next, keyFields);
+                int[] state = new int[2 * aops.length];
+                do {
+                    for (int i = 0; i < aops.length; i++) {
+                        int v = keyFields.length + 2 * i;
+                        merge(state, i, ((IntField) next.getField(v)).getValue(),
+                                ((IntField) next.getField(v + 1)).getValue());
+                    }
+                    next = partials.hasNext() ? partials.next() : null;
+                } while (next != null && key(next, keyFields).equals(key));
+                return result(key, state);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        child.open();
+        aggregate();
+        super.open();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = iterator();
+    }
+
+    /**
+     * Returns the TupleDesc of this MultiAggregate: the group-by fields,
+     * followed by an INT field for each aggregate named after the field it
+     * aggregates.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        if (sort != null)
+            sort.close();
+        sort = null;
+        results = null;
+        it = null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+        setTupleDescs();
+    }
+
+    // orders tuples on several fields, in ascending order
+    private static class KeyComparator implements Comparator<Tuple> {
+        private final TupleComparator[] fields;
+
+        KeyComparator(int[] keyFields) {
+            fields = new TupleComparator[keyFields.length];
+            for (int i = 0; i < keyFields.length; i++)
+                fields[i] = new TupleComparator(keyFields[i], true);
+        }
+
+        public int compare(Tuple a, Tuple b) {
+            for (TupleComparator field : fields) {
+                int cmp = field.compare(a, b);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return 0;
+        }
+    }
+}
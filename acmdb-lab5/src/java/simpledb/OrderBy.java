@@ -1,20 +1,38 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The child's tuples are sorted with an {@link ExternalSort}, so an OrderBy
+ * keeps at most memoryPages pages of tuples in memory and writes sorted runs
+ * to disk when there are more. An OrderBy with a limit returns only the
+ * first limit tuples of the order, which it finds with a bounded priority
+ * queue of limit tuples instead of sorting all of them.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of pages of tuples an OrderBy keeps in memory */
+    public static final int DEFAULT_MEMORY_PAGES = BufferPool.DEFAULT_PAGES;
+
+    /** The limit of an OrderBy that returns all of its tuples */
+    public static final int NO_LIMIT = -1;
+
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private final int memoryPages;
+    private final int limit;
+
+    private transient ExternalSort sort = null;
+    private transient ArrayList<Tuple> top = null;
+    private transient Iterator<Tuple> it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +45,39 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, DEFAULT_MEMORY_PAGES, NO_LIMIT);
+    }
+
+    /**
+     * Creates a new OrderBy node that returns the first limit tuples of the
+     * order only.
+     *
+     * @param limit
+     *            the number of tuples to return, or NO_LIMIT for all.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int limit) {
+        this(orderbyField, asc, child, DEFAULT_MEMORY_PAGES, limit);
+    }
+
+    /**
+     * Creates a new OrderBy node with a memory budget.
+     *
+     * @param memoryPages
+     *            the number of pages of tuples to sort in memory before
+     *            spilling them to disk; at least 3.
+     * @param limit
+     *            the number of tuples to return, or NO_LIMIT for all.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int memoryPages, int limit) {
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("an OrderBy needs at least 3 pages of memory");
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryPages = memoryPages;
+        this.limit = limit;
     }
     
     public boolean isASC()
@@ -48,6 +94,16 @@ public class OrderBy extends Operator {
     {
 	return this.orderByFieldName;
     }
+
+    /** @return the number of tuples returned at most, or NO_LIMIT */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the number of sorted runs kept on disk since the last open */
+    public int numSpilledRuns() {
+        return sort == null ? 0 : sort.numRuns();
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -56,21 +112,86 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        Comparator<Tuple> comparator = new TupleComparator(orderByField, asc);
+        if (limit != NO_LIMIT) {
+            top = topN(comparator);
+        } else {
+            sort = new ExternalSort(td, comparator, memoryPages);
+            try {
+                while (child.hasNext())
+                    sort.add(child.next());
+            } catch (IOException e) {
+                sort.close();
+                throw new DbException("could not spill sorted run: " + e);
+            }
+        }
+        child.close();
+        rewind();
         super.open();
     }
 
+    // a tuple and the position the child returned it at
+    private static class Numbered {
+        final Tuple tuple;
+        final long seq;
+
+        Numbered(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    // the first limit tuples of the child in the order, keeping at most
+    // limit tuples in memory; ties go to the tuple read first
+    private ArrayList<Tuple> topN(final Comparator<Tuple> comparator)
+            throws DbException, TransactionAbortedException {
+        Comparator<Numbered> stable = new Comparator<Numbered>() {
+            public int compare(Numbered a, Numbered b) {
+                int cmp = comparator.compare(a.tuple, b.tuple);
+                return cmp != 0 ? cmp : Long.compare(a.seq, b.seq);
+            }
+        };
+        // the head is the last of the tuples kept so far
+        PriorityQueue<Numbered> kept = new PriorityQueue<Numbered>(Math.max(1, limit),
+                Collections.reverseOrder(stable));
+        long n = 0;
+        while (child.hasNext()) {
+            Numbered t = new Numbered(child.next(), n++);
+            if (kept.size() < limit) {
+                kept.add(t);
+            } else if (limit > 0 && stable.compare(t, kept.peek()) < 0) {
+                kept.poll();
+                kept.add(t);
+            }
+        }
+        ArrayList<Numbered> sorted = new ArrayList<Numbered>(kept);
+        Collections.sort(sorted, stable);
+        ArrayList<Tuple> result = new ArrayList<Tuple>(sorted.size());
+        for (Numbered t : sorted)
+            result.add(t.tuple);
+        return result;
+    }
+
     public void close() {
         super.close();
         it = null;
+        top = null;
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (top != null) {
+            it = top.iterator();
+            return;
+        }
+        try {
+            it = sort.iterator();
+        } catch (IOException e) {
+            throw new DbException("could not read sorted runs: " + e);
+        }
     }
 
     /**
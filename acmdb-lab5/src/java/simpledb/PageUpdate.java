@@ -0,0 +1,366 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The change to one page described by an update log record. It is either
+ * physical, the full before and after images of the page (UPDATE records),
+ * or physiological, the before and after contents of just the slots the
+ * update changed (SLOT_UPDATE records). Slot updates are used for pages
+ * with a slot layout (see SlottedPage) whose other bytes did not change, so
+ * inserting or deleting a tuple logs a few dozen bytes instead of two
+ * pages; structural changes, such as B+ tree splits and merges that change
+ * sibling and parent pointers, keep logging full images.
+ * <p>
+ * Slot contents are absolute, so undoing or redoing a slot update is
+ * idempotent and only needs the page it is applied to to hold the slots
+ * of the transaction that made the update, which page level locking
+ * guarantees.
+ */
+class PageUpdate {
+
+    final byte tag;
+    final PageId pid;
+    final int keyField;
+
+    // full page images, for UPDATE records
+    private final byte[] before;
+    private final byte[] after;
+
+    // slot changes, for SLOT_UPDATE records; a slot image is null if the
+    // slot is empty
+    private final int headerOffset;
+    private final int slotCount;
+    private final int slotSize;
+    private final int[] slots;
+    private final byte[][] beforeSlots;
+    private final byte[][] afterSlots;
+
+    private PageUpdate(byte tag, PageId pid, int keyField, byte[] before, byte[] after,
+            int headerOffset, int slotCount, int slotSize,
+            int[] slots, byte[][] beforeSlots, byte[][] afterSlots) {
+        this.tag = tag;
+        this.pid = pid;
+        this.keyField = keyField;
+        this.before = before;
+        this.after = after;
+        this.headerOffset = headerOffset;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.slots = slots;
+        this.beforeSlots = beforeSlots;
+        this.afterSlots = afterSlots;
+    }
+
+    private static PageUpdate fullImages(byte tag, PageId pid, int keyField, byte[] before, byte[] after) {
+        return new PageUpdate(tag, pid, keyField, before, after, 0, 0, 0, null, null, null);
+    }
+
+    /**
+     * @return the update that turns before into after, as slot changes if
+     *         the page has a slot layout and only slots changed, and as full
+     *         page images otherwise
+     */
+    static PageUpdate of(Page before, Page after) {
+        byte tag = pageTag(after);
+        int keyField = hasKeyField(tag) ? ((BTreePage) after).keyField : 0;
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        if (after instanceof SlottedPage && before.getClass() == after.getClass()) {
+            PageUpdate slotUpdate = slotChanges(tag, after.getId(), keyField, (SlottedPage) after,
+                    beforeData, afterData);
+            if (slotUpdate != null && slotUpdate.size() < 2 * beforeData.length)
+                return slotUpdate;
+        }
+        return fullImages(tag, after.getId(), keyField, beforeData, afterData);
+    }
+
+    // null if bytes outside the slots differ
+    private static PageUpdate slotChanges(byte tag, PageId pid, int keyField, SlottedPage page,
+            byte[] before, byte[] after) {
+        int headerOffset = page.slotHeaderOffset();
+        int slotCount = page.slotCount();
+        int slotSize = page.slotSize();
+        int firstSlot = headerOffset + headerSize(slotCount);
+        int end = firstSlot + slotCount * slotSize;
+        if (before.length != after.length || end > after.length
+                || !rangeEquals(before, after, 0, headerOffset)
+                || !rangeEquals(before, after, end, after.length - end))
+            return null;
+
+        ArrayList<Integer> changed = new ArrayList<Integer>();
+        for (int i = 0; i < slotCount; i++) {
+            if (isUsed(before, headerOffset, i) != isUsed(after, headerOffset, i)
+                    || !rangeEquals(before, after, firstSlot + i * slotSize, slotSize))
+                changed.add(i);
+        }
+        int[] slots = new int[changed.size()];
+        byte[][] beforeSlots = new byte[slots.length][];
+        byte[][] afterSlots = new byte[slots.length][];
+        for (int j = 0; j < slots.length; j++) {
+            int i = slots[j] = changed.get(j);
+            int from = firstSlot + i * slotSize;
+            if (isUsed(before, headerOffset, i))
+                beforeSlots[j] = Arrays.copyOfRange(before, from, from + slotSize);
+            if (isUsed(after, headerOffset, i))
+                afterSlots[j] = Arrays.copyOfRange(after, from, from + slotSize);
+        }
+        return new PageUpdate(tag, pid, keyField, null, null, headerOffset, slotCount, slotSize,
+                slots, beforeSlots, afterSlots);
+    }
+
+    private static int headerSize(int slotCount) {
+        return (slotCount + 7) / 8;
+    }
+
+    private static boolean isUsed(byte[] data, int headerOffset, int slot) {
+        return (data[headerOffset + slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int from, int length) {
+        for (int i = from; i < from + length; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** @return true if this update holds full page images */
+    boolean isFullImage() {
+        return slots == null;
+    }
+
+    /** @return the log record type for this update */
+    int recordType() {
+        return isFullImage() ? LogFile.UPDATE_RECORD : LogFile.SLOT_UPDATE_RECORD;
+    }
+
+    /**
+     * Undo this update.
+     *
+     * @param current the page data after the update; not needed (and may
+     *            be null) for full image updates
+     * @return the page data before the update
+     */
+    byte[] undo(byte[] current) {
+        return isFullImage() ? before.clone() : apply(current, beforeSlots);
+    }
+
+    /**
+     * Redo this update.
+     *
+     * @param current the page data before the update; not needed (and may
+     *            be null) for full image updates
+     * @return the page data after the update
+     */
+    byte[] redo(byte[] current) {
+        return isFullImage() ? after.clone() : apply(current, afterSlots);
+    }
+
+    private byte[] apply(byte[] data, byte[][] images) {
+        int firstSlot = headerOffset + headerSize(slotCount);
+        for (int j = 0; j < slots.length; j++) {
+            int i = slots[j];
+            int mask = 1 << (i % 8);
+            int from = firstSlot + i * slotSize;
+            if (images[j] == null) {
+                data[headerOffset + i / 8] &= ~mask;
+                Arrays.fill(data, from, from + slotSize, (byte) 0);
+            } else {
+                data[headerOffset + i / 8] |= mask;
+                System.arraycopy(images[j], 0, data, from, slotSize);
+            }
+        }
+        return data;
+    }
+
+    /** @return a page with the specified data and the id of the updated page */
+    Page newPage(byte[] data) throws IOException {
+        switch (tag) {
+        case LogFile.HEAP_PAGE:
+            return new HeapPage((HeapPageId) pid, data);
+        case LogFile.BTREE_ROOT_PTR_PAGE:
+            return new BTreeRootPtrPage((BTreePageId) pid, data);
+        case LogFile.BTREE_INTERNAL_PAGE:
+            return new BTreeInternalPage((BTreePageId) pid, data, keyField);
+        case LogFile.BTREE_LEAF_PAGE:
+            return new BTreeLeafPage((BTreePageId) pid, data, keyField);
+        case LogFile.BTREE_HEADER_PAGE:
+            return new BTreeHeaderPage((BTreePageId) pid, data);
+        default:
+            throw new IOException("unknown page type " + tag + " in log");
+        }
+    }
+
+    /** @return the data of the updated page on disk, all zeros if the page
+        is past the end of its file */
+    byte[] readFromDisk() {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            return new byte[BufferPool.getPageSize()];
+        }
+    }
+
+    static byte pageTag(Page p) {
+        if (p instanceof HeapPage)
+            return LogFile.HEAP_PAGE;
+        if (p instanceof BTreeRootPtrPage)
+            return LogFile.BTREE_ROOT_PTR_PAGE;
+        if (p instanceof BTreeInternalPage)
+            return LogFile.BTREE_INTERNAL_PAGE;
+        if (p instanceof BTreeLeafPage)
+            return LogFile.BTREE_LEAF_PAGE;
+        if (p instanceof BTreeHeaderPage)
+            return LogFile.BTREE_HEADER_PAGE;
+        throw new IllegalArgumentException("cannot log pages of " + p.getClass().getName());
+    }
+
+    static boolean hasKeyField(byte tag) {
+        return tag == LogFile.BTREE_INTERNAL_PAGE || tag == LogFile.BTREE_LEAF_PAGE;
+    }
+
+    static String pageTypeName(byte tag) {
+        switch (tag) {
+        case LogFile.HEAP_PAGE: return "HeapPage";
+        case LogFile.BTREE_ROOT_PTR_PAGE: return "BTreeRootPtrPage";
+        case LogFile.BTREE_INTERNAL_PAGE: return "BTreeInternalPage";
+        case LogFile.BTREE_LEAF_PAGE: return "BTreeLeafPage";
+        case LogFile.BTREE_HEADER_PAGE: return "BTreeHeaderPage";
+        default: return "unknown page type " + tag;
+        }
+    }
+
+    private static PageId pageId(byte tag, int tableId, int pageNo) {
+        switch (tag) {
+        case LogFile.HEAP_PAGE:
+            return new HeapPageId(tableId, pageNo);
+        case LogFile.BTREE_ROOT_PTR_PAGE:
+            return new BTreePageId(tableId, pageNo, BTreePageId.ROOT_PTR);
+        case LogFile.BTREE_INTERNAL_PAGE:
+            return new BTreePageId(tableId, pageNo, BTreePageId.INTERNAL);
+        case LogFile.BTREE_LEAF_PAGE:
+            return new BTreePageId(tableId, pageNo, BTreePageId.LEAF);
+        case LogFile.BTREE_HEADER_PAGE:
+            return new BTreePageId(tableId, pageNo, BTreePageId.HEADER);
+        default:
+            return null;
+        }
+    }
+
+    /** @return the number of bytes write() writes */
+    int size() {
+        int size = 1 + 2 * LogFile.INT_SIZE + (hasKeyField(tag) ? LogFile.INT_SIZE : 0);
+        if (isFullImage())
+            return size + LogFile.INT_SIZE + before.length + after.length;
+        size += 4 * LogFile.INT_SIZE;
+        for (int j = 0; j < slots.length; j++) {
+            size += LogFile.INT_SIZE + 1;
+            if (beforeSlots[j] != null)
+                size += slotSize;
+            if (afterSlots[j] != null)
+                size += slotSize;
+        }
+        return size;
+    }
+
+    /*
+     * An update is written as:
+     *   page type tag (byte), table id, page number,
+     *   key field (B+ tree internal and leaf pages only)
+     * followed, for full images, by
+     *   page data length, before image, after image
+     * and, for slot updates, by
+     *   header offset, slot count, slot size, number of changed slots
+     *   and for every changed slot: slot number, a byte whose bit 0 (1)
+     *   tells whether the slot is used before (after) the update, and the
+     *   slot contents before and after the update if it is used
+     */
+    void write(ByteBuffer out) {
+        out.put(tag);
+        out.putInt(pid.getTableId());
+        out.putInt(pid.pageNumber());
+        if (hasKeyField(tag))
+            out.putInt(keyField);
+        if (isFullImage()) {
+            out.putInt(before.length);
+            out.put(before);
+            out.put(after);
+            return;
+        }
+        out.putInt(headerOffset);
+        out.putInt(slotCount);
+        out.putInt(slotSize);
+        out.putInt(slots.length);
+        for (int j = 0; j < slots.length; j++) {
+            out.putInt(slots[j]);
+            out.put((byte) ((beforeSlots[j] != null ? 1 : 0) | (afterSlots[j] != null ? 2 : 0)));
+            if (beforeSlots[j] != null)
+                out.put(beforeSlots[j]);
+            if (afterSlots[j] != null)
+                out.put(afterSlots[j]);
+        }
+    }
+
+    /** Read an update written by write() as the body of a record of the
+        specified type. */
+    static PageUpdate read(int type, DataInput in) throws IOException {
+        byte tag = in.readByte();
+        int tableId = in.readInt();
+        int pageNo = in.readInt();
+        int keyField = hasKeyField(tag) ? in.readInt() : 0;
+        PageId pid = pageId(tag, tableId, pageNo);
+        if (pid == null)
+            throw new IOException("unknown page type " + tag + " in log");
+        if (type == LogFile.UPDATE_RECORD) {
+            int length = in.readInt();
+            byte[] before = new byte[length];
+            byte[] after = new byte[length];
+            in.readFully(before);
+            in.readFully(after);
+            return fullImages(tag, pid, keyField, before, after);
+        }
+
+        int headerOffset = in.readInt();
+        int slotCount = in.readInt();
+        int slotSize = in.readInt();
+        int[] slots = new int[in.readInt()];
+        byte[][] beforeSlots = new byte[slots.length][];
+        byte[][] afterSlots = new byte[slots.length][];
+        for (int j = 0; j < slots.length; j++) {
+            slots[j] = in.readInt();
+            byte used = in.readByte();
+            if ((used & 1) != 0) {
+                beforeSlots[j] = new byte[slotSize];
+                in.readFully(beforeSlots[j]);
+            }
+            if ((used & 2) != 0) {
+                afterSlots[j] = new byte[slotSize];
+                in.readFully(afterSlots[j]);
+            }
+        }
+        return new PageUpdate(tag, pid, keyField, null, null, headerOffset, slotCount, slotSize,
+                slots, beforeSlots, afterSlots);
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder(pageTypeName(tag));
+        s.append("(table ").append(pid.getTableId()).append(", page ").append(pid.pageNumber());
+        if (hasKeyField(tag))
+            s.append(", key field ").append(keyField);
+        s.append(')');
+        if (isFullImage())
+            return s.append(" full images of ").append(before.length).append(" bytes").toString();
+        int inserted = 0, deleted = 0;
+        for (int j = 0; j < slots.length; j++) {
+            if (beforeSlots[j] == null)
+                inserted++;
+            else if (afterSlots[j] == null)
+                deleted++;
+        }
+        return s.append(" slots: ").append(inserted).append(" inserted, ").append(deleted)
+            .append(" deleted, ").append(slots.length - inserted - deleted).append(" updated").toString();
+    }
+}
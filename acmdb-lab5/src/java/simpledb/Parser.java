@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -182,23 +184,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
+                lp.addGroupByField(groupByField);
             }
 
         }
@@ -207,8 +206,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +216,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,13 +237,10 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -427,6 +420,79 @@ public class Parser {
 
     }
 
+    // CREATE INDEX name ON table (field), which Zql does not parse
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*CREATE\\s+INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern CREATE_INDEX_START = Pattern.compile(
+            "\\s*CREATE\\s+INDEX\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Build a {@link SecondaryIndex} for a statement
+     * <tt>CREATE INDEX name ON table (field)</tt>. The index is stored in
+     * name.idx next to the file of the table, which must be a heap file.
+     */
+    public void handleCreateIndexStatement(String s, TransactionId tid)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        Matcher m = CREATE_INDEX.matcher(s);
+        if (!m.matches())
+            throw new simpledb.ParsingException(
+                    "Expected CREATE INDEX name ON table (field), got " + s.trim());
+        String name = m.group(1);
+        String table = m.group(2);
+        String field = m.group(3);
+        int id;
+        try {
+            id = Database.getCatalog().getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + table);
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(id);
+        int fieldIndex;
+        try {
+            fieldIndex = f.getTupleDesc().fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field " + field);
+        }
+        if (!(f instanceof HeapFile))
+            throw new simpledb.ParsingException(
+                    "Secondary indexes are only supported on heap files");
+        File indexFile = new File(((HeapFile) f).getFile().getAbsoluteFile()
+                .getParentFile(), name + ".idx");
+        SecondaryIndex.create(tid, name, id, fieldIndex, indexFile);
+        System.out.println("Created index " + name + " on " + table + "("
+                + field + ")");
+    }
+
+    /**
+     * @return the statement at the start of in if it is a CREATE INDEX,
+     *         which is consumed up to its ';'; otherwise null, and in is left
+     *         as it was
+     */
+    private static String readCreateIndex(BufferedInputStream in)
+            throws IOException {
+        final int peek = 256;
+        in.mark(peek);
+        byte[] start = new byte[peek];
+        int n = 0, r;
+        while (n < peek && (r = in.read(start, n, peek - n)) > 0)
+            n += r;
+        in.reset();
+        if (!CREATE_INDEX_START.matcher(new String(start, 0, n, "UTF-8"))
+                .matches())
+            return null;
+
+        ByteArrayOutputStream statement = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            statement.write(c);
+            if (c == ';')
+                break;
+        }
+        return statement.toString("UTF-8");
+    }
+
     public void handleTransactStatement(ZTransactStmt s)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -503,8 +569,10 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            BufferedInputStream in = new BufferedInputStream(is);
+            String createIndex = readCreateIndex(in);
+            ZStatement s = createIndex == null ? new ZqlParser(in)
+                    .readStatement() : null;
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +585,10 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (createIndex != null)
+                        handleCreateIndexStatement(createIndex,
+                                curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -530,7 +601,7 @@ public class Parser {
                         System.out
                                 .println("Can't parse "
                                         + s
-                                        + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
+                                        + "\n -- parser only handles SQL transactions, insert, delete, select and create index statements");
                     }
                     if (query != null)
                         query.execute();
@@ -581,7 +652,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on" };
 
     public static void main(String argv[]) throws IOException {
 
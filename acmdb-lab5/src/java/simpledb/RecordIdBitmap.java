@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A RecordIdBitmap is a set of the RecordIds of tuples of one heap file,
+ * kept as a bitmap of slots per page, with the pages in ascending order.
+ * Bitmaps from lookups of different predicates can be intersected and
+ * united, and the pages they hold visited in file order, each once.
+ */
+public class RecordIdBitmap {
+
+    private final int tableId;
+    private final TreeMap<Integer, BitSet> pages = new TreeMap<Integer, BitSet>();
+
+    /**
+     * @param tableId the heap file the RecordIds are in
+     */
+    public RecordIdBitmap(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /** @return the heap file the RecordIds are in */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * Add a RecordId to the set.
+     * @throws IllegalArgumentException if rid is not in the table of this bitmap
+     */
+    public void add(RecordId rid) {
+        if (rid.getPageId().getTableId() != tableId)
+            throw new IllegalArgumentException("the record is not in table " + tableId);
+        int page = rid.getPageId().pageNumber();
+        BitSet slots = pages.get(page);
+        if (slots == null) {
+            slots = new BitSet();
+            pages.put(page, slots);
+        }
+        slots.set(rid.tupleno());
+    }
+
+    public boolean contains(RecordId rid) {
+        BitSet slots = pages.get(rid.getPageId().pageNumber());
+        return rid.getPageId().getTableId() == tableId && slots != null && slots.get(rid.tupleno());
+    }
+
+    /**
+     * Keep only the RecordIds that are also in other.
+     * @return this bitmap
+     */
+    public RecordIdBitmap and(RecordIdBitmap other) {
+        Iterator<Map.Entry<Integer, BitSet>> it = pages.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, BitSet> page = it.next();
+            BitSet slots = other.pages.get(page.getKey());
+            if (slots != null)
+                page.getValue().and(slots);
+            if (slots == null || page.getValue().isEmpty())
+                it.remove();
+        }
+        return this;
+    }
+
+    /**
+     * Add the RecordIds of other.
+     * @return this bitmap
+     */
+    public RecordIdBitmap or(RecordIdBitmap other) {
+        for (Map.Entry<Integer, BitSet> page : other.pages.entrySet()) {
+            BitSet slots = pages.get(page.getKey());
+            if (slots == null)
+                pages.put(page.getKey(), (BitSet) page.getValue().clone());
+            else
+                slots.or(page.getValue());
+        }
+        return this;
+    }
+
+    /** @return the numbers of the pages holding a RecordId of the set, in ascending order */
+    public Set<Integer> pageNumbers() {
+        return Collections.unmodifiableSet(pages.keySet());
+    }
+
+    /** @return the slots of the RecordIds of the set on a page, possibly none */
+    public BitSet slots(int pageNumber) {
+        BitSet slots = pages.get(pageNumber);
+        return slots == null ? new BitSet() : (BitSet) slots.clone();
+    }
+
+    /** @return the number of pages holding a RecordId of the set */
+    public int numPages() {
+        return pages.size();
+    }
+
+    /** @return the number of RecordIds in the set */
+    public int size() {
+        int n = 0;
+        for (BitSet slots : pages.values())
+            n += slots.cardinality();
+        return n;
+    }
+}
@@ -0,0 +1,269 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A SecondaryIndex is a non-clustered index on one field of a {@link HeapFile}.
+ * It is a {@link BTreeFile} of entries (key, page, slot): the value of the
+ * indexed field of a tuple, and the page number and slot of its
+ * {@link RecordId}. The heap tuples stay where they are; a lookup finds the
+ * matching entries in the B+ tree and then fetches each tuple from its heap
+ * page.
+ * <p>
+ * The index is kept up to date by {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple}, which update the indexes the
+ * {@link Catalog} holds for a table along with the table itself.
+ */
+public class SecondaryIndex {
+
+    private final String name;
+    private final int tableId;
+    private final int field;
+    private final BTreeFile file;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the index; its B+ tree is in the catalog under it
+     * @param tableId the heap file the index is on
+     * @param field the indexed field of the heap file
+     * @param file the B+ tree of entries, with the TupleDesc of
+     *            {@link #entryDesc}, keyed on field 0
+     */
+    public SecondaryIndex(String name, int tableId, int field, BTreeFile file) {
+        this.name = name;
+        this.tableId = tableId;
+        this.field = field;
+        this.file = file;
+    }
+
+    /**
+     * Build an index on a field of a heap file from the tuples the file
+     * holds, and add it to the catalog. tid locks the whole table (see
+     * {@link BufferPool#lockTable}) before reading it, so tuples written by
+     * other transactions either are in the file when it is read, or are
+     * written after the index is in the catalog and get an entry then.
+     *
+     * @param tid the transaction reading the heap file; holds off writers
+     *            of the table until it completes
+     * @param name the name of the index; must not name a table yet
+     * @param tableId the heap file to index
+     * @param field the field to index
+     * @param indexFile the file to store the B+ tree in; it is overwritten
+     * @return the new index
+     * @throws DbException if the table is not a heap file, or the name is taken
+     */
+    public static SecondaryIndex create(TransactionId tid, String name, int tableId, int field,
+            File indexFile) throws DbException, TransactionAbortedException, IOException {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof HeapFile))
+            throw new DbException("secondary indexes are only supported on heap files");
+        try {
+            Database.getCatalog().getTableId(name);
+            throw new DbException("there already is a table or index named " + name);
+        } catch (NoSuchElementException e) {
+            // the name is free
+        }
+
+        // a file left by an earlier index of the same name is rebuilt
+        if (indexFile.exists() && !indexFile.delete())
+            throw new IOException("could not overwrite " + indexFile);
+        Database.getBufferPool().lockTable(tid, tableId, Permissions.READ_WRITE);
+        TupleDesc td = entryDesc(f.getTupleDesc(), field);
+        BTreeFile btree = new BTreeFile(indexFile, 0, td);
+        new BulkLoader().load(btree, name, new Entries(td, field, new SeqScan(tid, tableId)));
+
+        SecondaryIndex index = new SecondaryIndex(name, tableId, field, btree);
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index on field of td: the
+     *         indexed field, then the INT fields "page" and "slot"
+     */
+    public static TupleDesc entryDesc(TupleDesc td, int field) {
+        return new TupleDesc(new Type[] { td.getFieldType(field), Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { td.getFieldName(field), "page", "slot" });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** @return the id of the heap file the index is on */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the indexed field of the heap file */
+    public int getField() {
+        return field;
+    }
+
+    /** @return the B+ tree of entries */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    // the entry, with TupleDesc td, for field of heap tuple t, which must
+    // have a RecordId
+    private static Tuple entry(TupleDesc td, int field, Tuple t) {
+        Tuple e = new Tuple(td);
+        RecordId rid = t.getRecordId();
+        e.setField(0, t.getField(field));
+        e.setField(1, new IntField(rid.getPageId().pageNumber()));
+        e.setField(2, new IntField(rid.tupleno()));
+        return e;
+    }
+
+    /** @return the RecordId of the heap tuple an entry points to */
+    public RecordId recordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableId, ((IntField) entry.getField(1)).getValue()),
+                ((IntField) entry.getField(2)).getValue());
+    }
+
+    /**
+     * Add the entry of a tuple that was just inserted into the heap file.
+     *
+     * @param t the inserted tuple, with its RecordId set
+     * @return the pages of the index that were modified
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return file.insertTuple(tid, entry(file.getTupleDesc(), field, t));
+    }
+
+    /**
+     * Remove the entry of a tuple that is about to be deleted from the heap
+     * file.
+     *
+     * @param t the tuple, with its RecordId set
+     * @return the pages of the index that were modified
+     * @throws DbException if the index has no entry for t
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, t.getField(field)));
+        Tuple found = null;
+        it.open();
+        while (found == null && it.hasNext()) {
+            Tuple e = it.next();
+            if (recordId(e).equals(t.getRecordId()))
+                found = e;
+        }
+        it.close();
+        if (found == null)
+            throw new DbException("index " + name + " has no entry for " + t.getRecordId());
+        return file.deleteTuple(tid, found);
+    }
+
+    /**
+     * @return an iterator over the heap tuples whose indexed field matches
+     *         ipred, in the order of the index; each is read from its heap
+     *         page through the buffer pool
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return new LookupIterator(tid, file.indexIterator(tid, ipred));
+    }
+
+    /**
+     * @return the RecordIds of the heap tuples whose indexed field matches
+     *         ipred, read from the index alone
+     */
+    public RecordIdBitmap bitmap(TransactionId tid, IndexPredicate ipred)
+            throws DbException, TransactionAbortedException {
+        RecordIdBitmap bitmap = new RecordIdBitmap(tableId);
+        DbFileIterator entries = file.indexIterator(tid, ipred);
+        entries.open();
+        while (entries.hasNext())
+            bitmap.add(recordId(entries.next()));
+        entries.close();
+        return bitmap;
+    }
+
+    private class LookupIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final DbFileIterator entries;
+
+        LookupIterator(TransactionId tid, DbFileIterator entries) {
+            this.tid = tid;
+            this.entries = entries;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries.open();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (entries.hasNext()) {
+                RecordId rid = recordId(entries.next());
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        rid.getPageId(), Permissions.READ_ONLY);
+                Tuple t = page.getTuple(rid.tupleno());
+                if (t != null)
+                    return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            entries.close();
+        }
+    }
+
+    // the entries of the tuples of a heap scan
+    private static class Entries extends Operator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        private final int field;
+        private DbIterator child;
+
+        Entries(TupleDesc td, int field, DbIterator child) {
+            this.td = td;
+            this.field = field;
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!child.hasNext())
+                return null;
+            return entry(td, field, child.next());
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan is an operator which reads the tuples of a heap file
+ * that match an index predicate on a field with a {@link SecondaryIndex},
+ * in the order of that field.
+ */
+public class SecondaryIndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean isOpen = false;
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final String alias;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+
+    /**
+     * Creates a scan of the tuples of a heap file that the specified index
+     * finds for a predicate, as a part of the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to look the tuples up in
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields with name tableAlias.fieldName
+     * @param ipred
+     *            The index predicate on the indexed field to match
+     */
+    public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate ipred) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.alias = tableAlias;
+        this.it = index.iterator(tid, ipred);
+
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(index.getTableId());
+        Type[] types = new Type[tableTd.numFields()];
+        String[] names = new String[tableTd.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = tableTd.getFieldType(i);
+            names[i] = tableAlias + "." + tableTd.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the name in the catalog of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /** @return the alias of the table this operator scans */
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return the index the tuples are looked up in */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /** @return the index predicate the scan matches */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /** @return the transaction this scan reads the table for */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        it.open();
+        isOpen = true;
+    }
+
+    /**
+     * Returns the TupleDesc with field names from the indexed heap file,
+     * prefixed with the tableAlias string from the constructor.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
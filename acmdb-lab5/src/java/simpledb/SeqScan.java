@@ -93,6 +93,11 @@ public class SeqScan implements DbIterator {
         
     }
 
+    /** @return the transaction this scan reads the table for */
+    public TransactionId getTransactionId() {
+        return this.transactionId;
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
@@ -0,0 +1,20 @@
+package simpledb;
+
+/**
+ * A page whose serialized form (see Page#getPageData) holds a bitmap of used
+ * slots followed by fixed size tuple slots. Slot i is in use if bit i % 8 of
+ * header byte i / 8 is set, and an empty slot is all zeros. LogFile uses the
+ * layout to log the slots an update changed instead of the whole page.
+ */
+public interface SlottedPage extends Page {
+
+    /** @return the offset of the slot bitmap in the page data */
+    public int slotHeaderOffset();
+
+    /** @return the number of slots on the page; the bitmap takes
+        ceiling(slotCount() / 8) bytes and is followed by the slots */
+    public int slotCount();
+
+    /** @return the size of a slot in bytes */
+    public int slotSize();
+}
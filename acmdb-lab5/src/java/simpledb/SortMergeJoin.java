@@ -0,0 +1,183 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator implements an equality join by sorting both
+ * children on their join field and merging the two sorted runs.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate predicate;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final TupleDesc mergeTd;
+
+    private final ArrayList<Tuple> leftTups = new ArrayList<Tuple>();
+    private final ArrayList<Tuple> rightTups = new ArrayList<Tuple>();
+
+    // position of the current outer tuple
+    private int leftPos;
+    // [groupStart, groupEnd) is the run of inner tuples whose key equals the
+    // key of the current outer tuple; groupPos walks through that run
+    private int groupStart;
+    private int groupEnd;
+    private int groupPos;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be an
+     *            equality predicate
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("SortMergeJoin only supports equality predicates");
+        this.predicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.mergeTd = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.predicate;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.mergeTd;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.predicate.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.predicate.getField2());
+    }
+
+    // drain a child into list and sort it on the join field
+    private void loadSorted(DbIterator child, ArrayList<Tuple> list, int field)
+            throws DbException, TransactionAbortedException {
+        list.clear();
+        while (child.hasNext())
+            list.add(child.next());
+        Collections.sort(list, new TupleComparator(field, true));
+    }
+
+    private void resetMerge() {
+        leftPos = 0;
+        groupStart = 0;
+        groupEnd = 0;
+        groupPos = 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        loadSorted(child1, leftTups, predicate.getField1());
+        loadSorted(child2, rightTups, predicate.getField2());
+        resetMerge();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        leftTups.clear();
+        rightTups.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // both inputs are already materialized and sorted
+        resetMerge();
+    }
+
+    private Field leftKey(int i) {
+        return leftTups.get(i).getField(predicate.getField1());
+    }
+
+    private Field rightKey(int i) {
+        return rightTups.get(i).getField(predicate.getField2());
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        Tuple t = new Tuple(mergeTd);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples are produced in ascending order of the join key; as
+     * with {@link Join}, the output is the concatenation of the matching outer
+     * and inner tuples.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            // emit the rest of the current outer tuple's matching group
+            if (groupPos < groupEnd) {
+                return mergeTuples(leftTups.get(leftPos), rightTups.get(groupPos++));
+            }
+
+            if (groupStart < groupEnd) {
+                // done with this outer tuple; the next one may match the same group
+                leftPos++;
+                if (leftPos < leftTups.size()
+                        && leftKey(leftPos).compare(Predicate.Op.EQUALS, rightKey(groupStart))) {
+                    groupPos = groupStart;
+                    continue;
+                }
+                groupStart = groupEnd;
+                groupPos = groupEnd;
+            }
+
+            if (leftPos >= leftTups.size() || groupStart >= rightTups.size())
+                return null;
+
+            Field l = leftKey(leftPos);
+            Field r = rightKey(groupStart);
+            if (l.compare(Predicate.Op.LESS_THAN, r)) {
+                leftPos++;
+            } else if (l.compare(Predicate.Op.GREATER_THAN, r)) {
+                groupStart++;
+                groupEnd = groupStart;
+                groupPos = groupStart;
+            } else {
+                groupEnd = groupStart;
+                while (groupEnd < rightTups.size()
+                        && rightKey(groupEnd).compare(Predicate.Op.EQUALS, l))
+                    groupEnd++;
+                groupPos = groupStart;
+            }
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SpillFile is a temporary, append-only heap file that operators use to
+ * write intermediate tuples to disk when they do not fit in memory (e.g. the
+ * partitions of a {@link HashEquiJoin}).
+ * <p>
+ * Pages of a spill file are private to the operator that created it, so they
+ * are read and written directly through {@link HeapFile#readPage} and
+ * {@link HeapFile#writePage} rather than through the BufferPool; they are
+ * neither locked nor logged. The file is not registered in the catalog, so
+ * concurrent queries spilling do not contend on it and temporary files never
+ * show up among the tables; its pages are given the TupleDesc directly. It
+ * is deleted by {@link #close}.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private final HeapFile heapFile;
+
+    // the page currently being filled; it is not counted in numPages
+    private HeapPage current = null;
+    private int numPages = 0;
+    private int numTuples = 0;
+
+    /**
+     * Create an empty spill file in the system temporary directory.
+     *
+     * @param td the TupleDesc of the tuples that will be added
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".dat");
+        this.file.deleteOnExit();
+        this.heapFile = new HeapFile(file, td);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added to this file */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * Append a copy of t to this file; t itself (and its RecordId) is left
+     * untouched.
+     */
+    public void add(Tuple t) throws DbException, IOException {
+        if (current == null)
+            current = new HeapPage(new HeapPageId(heapFile.getId(), numPages),
+                    HeapPage.createEmptyPageData(), td);
+
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            copy.setField(i, t.getField(i));
+        current.insertTuple(copy);
+        numTuples++;
+
+        if (current.getNumEmptySlots() == 0) {
+            heapFile.writePage(current);
+            numPages++;
+            current = null;
+        }
+    }
+
+    /**
+     * @return an iterator over every tuple added so far, in insertion order.
+     *         Tuples added after this call may or may not be returned.
+     */
+    public Iterator<Tuple> iterator() throws IOException {
+        // write out the partially filled page, but keep filling it afterwards
+        final int pages = current == null ? numPages : numPages + 1;
+        if (current != null)
+            heapFile.writePage(current);
+
+        return new Iterator<Tuple>() {
+            private int pageNo = 0;
+            private Iterator<Tuple> pageIt = null;
+
+            public boolean hasNext() {
+                while (pageIt == null || !pageIt.hasNext()) {
+                    if (pageNo >= pages)
+                        return false;
+                    HeapPageId pid = new HeapPageId(heapFile.getId(), pageNo++);
+                    pageIt = ((HeapPage) heapFile.readPage(pid)).iterator();
+                }
+                return true;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return pageIt.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** @return the file on disk, which is gone after {@link #close} */
+    File getFile() {
+        return file;
+    }
+
+    /** @return true if the file is held open, as it is until {@link #close} */
+    boolean isOpen() {
+        return heapFile.isOpen();
+    }
+
+    /** Close this file and delete it from disk. */
+    public void close() {
+        current = null;
+        numPages = 0;
+        numTuples = 0;
+        // the channel must be closed first, or the deleted file keeps its
+        // disk space for as long as the descriptor is open
+        heapFile.close();
+        file.delete();
+    }
+}
@@ -54,6 +54,16 @@ public class StringAggregator implements Aggregator {
 
     }
 
+    /** @return the number of groups seen so far */
+    public int numGroups() {
+        return aggResult.size();
+    }
+
+    /** The partial aggregates of COUNT are the counts. */
+    public DbIterator partialIterator() {
+        return iterator();
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
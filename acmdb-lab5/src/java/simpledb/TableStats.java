@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -74,6 +75,9 @@ public class TableStats {
     private int pagesNum;
     private int tuplesNum;
     private int fieldsNum;
+    // for a B+ tree: the number of leaves, and of internal levels above them
+    private int leafPages;
+    private int indexHeight;
     
     // map between ith integer field and ith intHistogram
     private HashMap<Integer, IntHistogram> integerHashMap;
@@ -105,7 +109,12 @@ public class TableStats {
         this.tableId = tableid;
         this.ioCostPerPage = ioCostPerPage;
         this.dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        this.pagesNum = ((HeapFile) dbFile).numPages();
+        if (dbFile instanceof BTreeFile) {
+            this.pagesNum = ((BTreeFile) dbFile).numPages();
+            this.indexHeight = indexHeight((BTreeFile) dbFile);
+        } else {
+            this.pagesNum = ((HeapFile) dbFile).numPages();
+        }
         
         integerHashMap = new HashMap<>();
         stringHashMap = new HashMap<>();
@@ -175,8 +184,14 @@ public class TableStats {
             scan.open();
             // 获取每行的各个字段值写入
             // get and write each field data
+            PageId lastPage = null;
             while(scan.hasNext()){
                 Tuple tuple = scan.next();
+                // the tuples of a B+ tree come a leaf at a time
+                PageId page = tuple.getRecordId().getPageId();
+                if (!page.equals(lastPage))
+                    leafPages++;
+                lastPage = page;
                 // traverse each field
                 for (int i = 0; i < fieldsNum; i++) {
                     Field field = tuple.getField(i);
@@ -196,6 +211,35 @@ public class TableStats {
     }
       
     
+    // the number of internal levels of f, read down its leftmost path; the
+    // locks taken on the way are released whether or not that succeeds
+    private int indexHeight(BTreeFile f) {
+        if (f.getFile().length() == 0)
+            return 0;
+        TransactionId tid = new TransactionId();
+        int levels = 0;
+        try {
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                    tid, BTreeRootPtrPage.getId(tableId), Permissions.READ_ONLY);
+            BTreePageId pid = rootPtr.getRootId();
+            while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+                levels++;
+                BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+                        tid, pid, Permissions.READ_ONLY);
+                pid = page.iterator().next().getLeftChild();
+            }
+        } catch (DbException | TransactionAbortedException e) {
+            throw new RuntimeException("could not read the height of B+ tree " + tableId, e);
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return levels;
+    }
+
     private Type[] getTypes(TupleDesc td){
         int numField = td.numFields();
         Type[] types = new Type[numField];
@@ -225,6 +269,69 @@ public class TableStats {
         return pagesNum * ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of an index scan of a B+ tree file for a predicate
+     * on its key: reading the internal pages from the root down to the
+     * first matching leaf, and then the fraction of the leaves that hold
+     * the matching tuples, at least one.
+     *
+     * @param selectivity
+     *            The selectivity of the predicate on the key
+     * @return The estimated cost of the index scan, or
+     *         Double.POSITIVE_INFINITY if the table is not a B+ tree
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        if (!(dbFile instanceof BTreeFile))
+            return Double.POSITIVE_INFINITY;
+        return (indexHeight + Math.max(1.0, Math.ceil(selectivity * leafPages))) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of looking up the tuples matching a predicate in a
+     * secondary index on the table: reading the path to the first matching
+     * entry and the fraction of the index that holds the matching entries,
+     * and then one heap page per matching tuple, as the tuples are not
+     * stored in the order of the index.
+     *
+     * @param index
+     *            A secondary index on the table
+     * @param selectivity
+     *            The selectivity of the predicate on the indexed field
+     * @return The estimated cost of the lookup
+     */
+    public double estimateSecondaryIndexScanCost(SecondaryIndex index, double selectivity) {
+        double indexPages = Math.max(1.0, Math.ceil(selectivity * index.getFile().numPages()));
+        return (1 + indexPages + Math.ceil(selectivity * tuplesNum)) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of a {@link BitmapHeapScan} of the table: looking
+     * up the matching entries in each of the indexes, as for
+     * {@link #estimateSecondaryIndexScanCost}, and then reading each heap
+     * page that holds a tuple matching all the predicates once. The
+     * matching tuples are taken to be spread evenly over the pages, so n
+     * of them are expected on pagesNum * (1 - (1 - 1/pagesNum)^n) pages.
+     *
+     * @param indexes
+     *            Secondary indexes on the table
+     * @param selectivities
+     *            The selectivity of the predicate on the field of each index
+     * @return The estimated cost of the scan
+     */
+    public double estimateBitmapHeapScanCost(SecondaryIndex[] indexes, double[] selectivities) {
+        double cost = 0;
+        double selectivity = 1.0;
+        for (int i = 0; i < indexes.length; i++) {
+            cost += 1 + Math.max(1.0, Math.ceil(selectivities[i] * indexes[i].getFile().numPages()));
+            selectivity *= selectivities[i];
+        }
+        if (pagesNum > 0) {
+            double tuples = selectivity * tuplesNum;
+            cost += Math.ceil(pagesNum * (1 - Math.pow(1 - 1.0 / pagesNum, tuples)));
+        }
+        return cost * ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -285,6 +392,25 @@ public class TableStats {
 
     }
 
+    /**
+     * Estimate the selectivity of an index predicate on a field; a range
+     * matches the tuples that satisfy both of its bounds.
+     * 
+     * @param field
+     *            The field over which the predicate ranges
+     * @param ipred
+     *            The index predicate
+     * @return The estimated selectivity of the predicate
+     */
+    public double estimateSelectivity(int field, IndexPredicate ipred) {
+        double sel = estimateSelectivity(field, ipred.getOp(), ipred.getField());
+        if (ipred.getUpperOp() != null) {
+            double upper = estimateSelectivity(field, ipred.getUpperOp(), ipred.getUpperField());
+            sel = Math.max(0.0, sel + upper - 1.0);
+        }
+        return sel;
+    }
+
     /**
      * return the total number of tuples in this table
      * */
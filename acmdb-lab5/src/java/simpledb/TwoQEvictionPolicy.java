@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The full 2Q replacement algorithm of Johnson and Shasha. A page read for
+ * the first time goes into the FIFO queue A1in; pages evicted from A1in are
+ * remembered (without their data) in the ghost queue A1out. Only a page that
+ * is read again while it is remembered in A1out is considered hot and enters
+ * the LRU queue Am. A sequential scan therefore only cycles through A1in and
+ * cannot flush the hot pages in Am.
+ */
+public class TwoQEvictionPolicy implements EvictionPolicy {
+
+    // resident pages seen once, in FIFO order
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    // ids of pages recently evicted from a1in, in FIFO order
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    // resident hot pages, least recently used first
+    private final LinkedHashMap<PageId, Boolean> am =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    private final int kin;
+    private final int kout;
+
+    /**
+     * @param numPages the number of pages of the buffer pool; A1in is kept
+     *            at a quarter of it and A1out remembers half as many pages
+     *            as the pool holds, as suggested in the paper
+     */
+    public TwoQEvictionPolicy(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+    }
+
+    public void pageAdded(PageId pid) {
+        if (a1out.remove(pid))
+            am.put(pid, Boolean.TRUE);
+        else
+            a1in.add(pid);
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in a1in are likely correlated references and do not count
+        am.get(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    private static PageId victimIn(Set<PageId> queue,
+            java.util.function.Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    public PageId victim(java.util.function.Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty())
+            victim = victimIn(a1in, evictable);
+        if (victim == null)
+            victim = victimIn(am.keySet(), evictable);
+        if (victim == null)
+            victim = victimIn(a1in, evictable);
+        return victim;
+    }
+
+    // a victim from a1in is remembered in a1out
+    public void pageEvicted(PageId pid) {
+        if (!a1in.remove(pid)) {
+            am.remove(pid);
+            return;
+        }
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
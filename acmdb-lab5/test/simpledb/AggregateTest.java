@@ -5,6 +5,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.*;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -176,6 +178,78 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  // the results of it, sorted
+  private static List<String> results(DbIterator it) throws Exception {
+    List<String> results = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      results.add(it.next().toString());
+    it.close();
+    Collections.sort(results);
+    return results;
+  }
+
+  /**
+   * Unit test for Aggregate with more groups than fit in memory: the
+   * spilled partial aggregates give the same results as aggregating in memory.
+   */
+  @Test public void spilledAggregate() throws Exception {
+    Random r = new Random(0);
+    int[] data = new int[20000 * width1];
+    for (int i = 0; i < data.length; i += width1) {
+      data[i] = r.nextInt(5000);
+      data[i + 1] = r.nextInt(1000);
+    }
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.SUM_COUNT }) {
+      List<String> expected = results(new Aggregate(TestUtil.createTupleList(width1, data), 1, 0, op));
+      assertTrue(op.toString(), expected.size() > 4900);
+
+      Aggregate spilled = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0, op, 100);
+      assertEquals(op.toString(), expected, results(spilled));
+      // about 5000 groups in partitions of at most 100 take two levels
+      assertTrue(spilled.numSpilledPartitions() > Aggregate.NUM_PARTITIONS);
+    }
+
+    Aggregate spilled = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0,
+        Aggregator.Op.SUM, 100);
+    List<String> first = results(spilled);
+    spilled.open();
+    while (spilled.hasNext())
+      spilled.next();
+    spilled.rewind();
+    List<String> rewound = new ArrayList<String>();
+    while (spilled.hasNext())
+      rewound.add(spilled.next().toString());
+    spilled.close();
+    Collections.sort(rewound);
+    assertEquals(first, rewound);
+  }
+
+  /**
+   * Unit test for Aggregate with many groups of the same hash: partitioning
+   * cannot split them, so they are sorted instead.
+   */
+  @Test public void collidingGroups() throws Exception {
+    // "Aa" and "BB" have the same hash code, and so do all 64 strings of six of them
+    List<Object> data = new ArrayList<Object>();
+    for (int copy = 0; copy < 3; copy++) {
+      for (int i = 0; i < 64; i++) {
+        StringBuilder sb = new StringBuilder();
+        for (int bit = 0; bit < 6; bit++)
+          sb.append((i & (1 << bit)) != 0 ? "Aa" : "BB");
+        data.add(sb.toString());
+        data.add(copy);
+      }
+    }
+    Object[] tuples = data.toArray();
+    List<String> expected = results(new Aggregate(TestUtil.createTupleList(width1, tuples),
+        1, 0, Aggregator.Op.COUNT));
+    assertEquals(64, expected.size());
+    assertEquals(expected, results(new Aggregate(TestUtil.createTupleList(width1, tuples),
+        1, 0, Aggregator.Op.COUNT, 4)));
+  }
+
   /**
    * JUnit suite target
    */
@@ -201,6 +201,57 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.indexIterator() with a range predicate
+	 */
+	@Test public void rangeIndexIterator() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createBTreeFile(2, 5000, null, null, 0);
+		Field lower = new IntField(10);
+		Field upper = new IntField(20);
+
+		// 10 <= key < 20
+		IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, lower, Op.LESS_THAN, upper);
+		DbFileIterator it = bigFile.indexIterator(tid, ipred);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertTrue(ipred.matches(t.getField(0)));
+			count++;
+		}
+		assertEquals(10, count);
+		it.close();
+
+		// the scan stopped at the upper bound instead of reading every leaf
+		int leaves = 0;
+		for (int i = 1; i <= bigFile.numPages(); i++) {
+			if (Database.getBufferPool().holdsLock(tid, new BTreePageId(bigFile.getId(), i, BTreePageId.LEAF)))
+				leaves++;
+		}
+		assertEquals(1, leaves);
+
+		// 10 < key <= 20
+		ipred = new IndexPredicate(Op.GREATER_THAN, lower, Op.LESS_THAN_OR_EQ, upper);
+		it = bigFile.indexIterator(tid, ipred);
+		it.open();
+		count = 0;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertTrue(t.getField(0).compare(Op.GREATER_THAN, lower));
+			assertTrue(t.getField(0).compare(Op.LESS_THAN_OR_EQ, upper));
+			count++;
+		}
+		assertEquals(10, count);
+		it.close();
+
+		// an empty range
+		ipred = new IndexPredicate(Op.GREATER_THAN, upper, Op.LESS_THAN, lower);
+		it = bigFile.indexIterator(tid, ipred);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
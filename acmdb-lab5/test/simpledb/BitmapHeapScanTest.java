@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+// the table "orders" holds (i, i % 1000, i % 7) for every i < ROWS
+public class BitmapHeapScanTest extends TestUtil.CreateOrdersTable {
+
+    private static final int ROWS = 20000;
+
+    private SecondaryIndex c1;
+    private SecondaryIndex c2;
+
+    public BitmapHeapScanTest() {
+        super(ROWS, 3);
+    }
+
+    protected int value(int i, int f) {
+        return f == 1 ? i % 1000 : i % 7;
+    }
+
+    // an index on each of c1 and c2
+    @Before public void createIndexes() throws Exception {
+        TransactionId tid = new TransactionId();
+        c1 = createIndex(tid, 1);
+        c2 = createIndex(tid, 2);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static final IndexPredicate C1_IS_3 =
+            new IndexPredicate(Predicate.Op.EQUALS, new IntField(3));
+    private static final IndexPredicate C2_BELOW_2 =
+            new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(2));
+
+    /** The intersection of two lookups, in the order of the heap file. */
+    @Test public void and() throws Exception {
+        TransactionId tid = new TransactionId();
+        BitmapHeapScan scan = new BitmapHeapScan(tid, new SecondaryIndex[] { c1, c2 },
+                new IndexPredicate[] { C1_IS_3, C2_BELOW_2 }, true, "o");
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < ROWS; i++) {
+            if (i % 1000 == 3 && i % 7 < 2)
+                expected.add(i);
+        }
+        scan.open();
+        assertEquals(expected, ids(scan));
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The union of two lookups, in the order of the heap file. */
+    @Test public void or() throws Exception {
+        TransactionId tid = new TransactionId();
+        BitmapHeapScan scan = new BitmapHeapScan(tid, new SecondaryIndex[] { c1, c2 },
+                new IndexPredicate[] { C1_IS_3, C2_BELOW_2 }, false, "o");
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < ROWS; i++) {
+            if (i % 1000 == 3 || i % 7 < 2)
+                expected.add(i);
+        }
+        scan.open();
+        assertEquals(expected, ids(scan));
+        assertEquals(expected.size(), scan.getBitmap().size());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Each heap page holding a match is read once, also after a rewind. */
+    @Test public void pagesReadOnce() throws Exception {
+        TransactionId tid = new TransactionId();
+        BitmapHeapScan scan = new BitmapHeapScan(tid, new SecondaryIndex[] { c1 },
+                new IndexPredicate[] { C1_IS_3 }, true, "o");
+        scan.open();
+        List<Integer> ids = ids(scan);
+        assertEquals(ROWS / 1000, ids.size());
+        assertEquals(scan.getBitmap().numPages(), scan.numPagesRead());
+        assertTrue(scan.numPagesRead() <= ids.size());
+
+        scan.rewind();
+        assertEquals(ids, ids(scan));
+        assertEquals(scan.getBitmap().numPages(), scan.numPagesRead());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // the scan at the bottom of the plan of a query on orders, which must
+    // return the n tuples with c1 = 3 and c2 < 2 that match it
+    private BitmapHeapScan plannedScan(String query, int n) throws Exception {
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("orders", new TableStats(table.getId(), TableStats.IOCOSTPERPAGE));
+        TransactionId tid = new TransactionId();
+        DbIterator plan = new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+        DbIterator scan = plan;
+        while (scan instanceof Operator)
+            scan = ((Operator) scan).getChildren()[0];
+        assertTrue(scan instanceof BitmapHeapScan);
+
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            assertEquals(new IntField(3), t.getField(1));
+            assertTrue(((IntField) t.getField(2)).getValue() < 2);
+            n--;
+        }
+        plan.close();
+        assertEquals(0, n);
+        Database.getBufferPool().transactionComplete(tid);
+        return (BitmapHeapScan) scan;
+    }
+
+    /**
+     * Filters on indexed fields are looked up with a bitmap scan, which
+     * intersects an index only if that reads fewer pages.
+     */
+    @Test public void chosenByPlanner() throws Exception {
+        BitmapHeapScan scan = plannedScan("SELECT * FROM orders o WHERE o.c1 = 3 AND o.c2 = 0;", 3);
+        assertEquals(2, scan.getIndexes().length);
+
+        // looking up c2 < 2 reads more of its index than it saves heap pages
+        scan = plannedScan("SELECT * FROM orders o WHERE o.c1 = 3 AND o.c2 < 2;", 6);
+        assertArrayEquals(new SecondaryIndex[] { c1 }, scan.getIndexes());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BitmapHeapScanTest.class);
+    }
+}
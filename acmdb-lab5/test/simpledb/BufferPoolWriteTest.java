@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.After;
 import org.junit.Before;
@@ -133,6 +134,71 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A dirty page is not stolen while another thread of its transaction is
+     * in the middle of changing pages, since it might be half updated.
+     */
+    @Test public void noStealWhileWriting() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*2, null, null);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while(it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+
+        // fill the buffer pool with two pages dirtied by tid
+        Database.resetBufferPool(2);
+        Database.getBufferPool().deleteTuple(tid, tuples.get(0));
+        Database.getBufferPool().deleteTuple(tid, tuples.get(504));
+
+        // a file whose insertTuple stops halfway until it is released
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final HeapFile blocking = new HeapFile(empty.getFile(), empty.getTupleDesc()) {
+            @Override
+            public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new ArrayList<Page>();
+            }
+        };
+        Database.getCatalog().addTable(blocking, SystemTestUtil.getUUID());
+        final Exception[] error = new Exception[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().insertTuple(tid, blocking.getId(), Utility.getHeapTuple(1, 2));
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        writer.start();
+        entered.await();
+
+        TransactionId reader = new TransactionId();
+        HeapPageId pid = new HeapPageId(other.getId(), 0);
+        try {
+            Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY);
+            fail("a page was stolen while its transaction was writing");
+        } catch (DbException e) {
+            // expected
+        }
+
+        release.countDown();
+        writer.join();
+        assertNull(error[0]);
+        assertNotNull(Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY));
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
     /**
      * JUnit suite target
      */
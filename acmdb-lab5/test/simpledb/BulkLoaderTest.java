@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+
+    // a scan of a new heap file holding rows random tuples, which are added to tuples
+    private static DbIterator source(int rows, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+        return new SeqScan(new TransactionId(), f.getId(), "");
+    }
+
+    @After public void resetPageSize() {
+        BufferPool.resetPageSize();
+    }
+
+    private static File emptyFile() throws Exception {
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /** A heap file is loaded with full pages and added to the catalog. */
+    @Test public void loadHeapFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        DbIterator child = source(5000, tuples);
+        HeapFile f = new HeapFile(emptyFile(), Utility.getTupleDesc(2));
+        BulkLoader loader = new BulkLoader();
+        loader.load(f, "bulk_heap", child);
+
+        assertEquals(5000, loader.getTuplesLoaded());
+        assertTrue(loader.getTuplesPerSecond() > 0);
+        assertEquals(f.getId(), Database.getCatalog().getTableId("bulk_heap"));
+        int perPage = (BufferPool.getPageSize() * 8) / (2 * Type.INT_TYPE.getLen() * 8 + 1);
+        assertEquals((5000 + perPage - 1) / perPage, f.numPages());
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * A B+ tree is built from more tuples than its sort may keep in memory,
+     * and is a valid tree that later inserts go into as usual.
+     */
+    @Test public void loadBTreeFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        DbIterator child = source(20000, tuples);
+        BTreeFile f = new BTreeFile(emptyFile(), 0, Utility.getTupleDesc(2));
+        // 3 pages of memory: many runs, merged two at a time
+        BulkLoader loader = new BulkLoader(3);
+        loader.load(f, "bulk_btree", child);
+        assertEquals(20000, loader.getTuplesLoaded());
+        assertEquals(f.getId(), Database.getCatalog().getTableId("bulk_btree"));
+        assertEquals(f.getTupleDesc().getFieldName(0), Database.getCatalog().getPrimaryKey(f.getId()));
+
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), true);
+        SystemTestUtil.matchTuples(f, tid, tuples);
+
+        // the leaves are in key order
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int last = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            int key = ((IntField) it.next().getField(0)).getValue();
+            assertTrue(key >= last);
+            last = key;
+        }
+        it.close();
+
+        // an index lookup finds every copy of a key
+        int key = tuples.get(1234).get(0);
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) == key)
+                expected++;
+        }
+        it = f.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        int found = 0;
+        while (it.hasNext()) {
+            assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+            found++;
+        }
+        it.close();
+        assertEquals(expected, found);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), true);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A tree small enough for one leaf has just a root leaf. */
+    @Test public void loadSmallBTreeFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = new BTreeFile(emptyFile(), 1, Utility.getTupleDesc(2));
+        new BulkLoader().load(f, "bulk_small", source(10, tuples));
+        assertEquals(1, f.numPages());
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), false);
+        SystemTestUtil.matchTuples(f, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** With small pages the tree gets several levels of internal pages. */
+    @Test public void loadDeepBTreeFile() throws Exception {
+        BufferPool.setPageSize(256);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = new BTreeFile(emptyFile(), 0, Utility.getTupleDesc(2));
+        new BulkLoader(10).load(f, "bulk_deep", source(20000, tuples));
+
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = f.getRootPtrPage(tid, new HashMap<PageId, Page>());
+        BTreeInternalPage root = (BTreeInternalPage) f.getPage(tid, new HashMap<PageId, Page>(),
+                rootPtr.getRootId(), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+        BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), true);
+        SystemTestUtil.matchTuples(f, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Only empty tables can be bulk loaded. */
+    @Test(expected = DbException.class) public void nonEmptyTable() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        new BulkLoader().load(f, "bulk_full", source(10, null));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
@@ -0,0 +1,266 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.systemtest.AbortEvictionTest;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Runs transactions in a child JVM that halts right after the n-th update
+ * record is appended to the log, before the log is forced, and checks that
+ * recovery keeps exactly the transactions the child saw commit.
+ */
+public class CrashRecoveryTest extends SimpleDbTestBase {
+
+    private static final int ROWS_PER_TRANSACTION = 2000;
+    private static final int TRANSACTIONS = 4;
+
+    /**
+     * The child: inserts ROWS_PER_TRANSACTION rows, more than a page, in
+     * each of TRANSACTIONS transactions through a small buffer pool, and
+     * prints "committed" after each commit.
+     * Arguments: the table file and the number of log writes to crash after.
+     */
+    public static class Crasher {
+        public static void main(String[] args) throws Exception {
+            HeapFile f = Utility.openHeapFile(2, new File(args[0]));
+            final int crashAfter = Integer.parseInt(args[1]);
+            Database.resetBufferPool(3);
+            LogFile.afterLogWrite = new Runnable() {
+                int writes = 0;
+                public void run() {
+                    if (++writes == crashAfter)
+                        Runtime.getRuntime().halt(1);
+                }
+            };
+            for (int i = 0; i < TRANSACTIONS; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                AbortEvictionTest.insertRows(f, t, ROWS_PER_TRANSACTION);
+                t.commit();
+                System.out.println("committed");
+                System.out.flush();
+            }
+        }
+    }
+
+    // run the child; returns the number of transactions it committed
+    private static int runCrasher(File table, int crashAfter) throws Exception {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.add("-classpath");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(Crasher.class.getName());
+        cmd.add(table.getAbsolutePath());
+        cmd.add(Integer.toString(crashAfter));
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        int committed = 0;
+        String line;
+        while ((line = out.readLine()) != null) {
+            if (line.equals("committed"))
+                committed++;
+            else
+                System.out.println("CrashRecoveryTest child: " + line);
+        }
+        p.waitFor();
+        return committed;
+    }
+
+    private static int recoverAndCount(File table) throws Exception {
+        Database.reset();
+        HeapFile f = Utility.openHeapFile(2, table);
+        LogFile log = Database.getLogFile();
+        log.recover();
+        System.out.println("CrashRecoveryTest restart took " + log.getLastRecoveryMillis()
+                + " ms, redid " + log.getLastRecoveryRedoCount() + " updates and undid "
+                + log.getLastRecoveryUndoCount());
+        Transaction t = new Transaction();
+        t.start();
+        int rows = AbortEvictionTest.countRows(f, t);
+        t.commit();
+        return rows;
+    }
+
+    /**
+     * Crashes after a growing number of log writes: in the first
+     * transaction, between transactions and late in the run. Recovering a
+     * second time, as after a crash during recovery, changes nothing.
+     */
+    @Test public void testCrashBetweenLogWriteAndForce() throws Exception {
+        for (int crashAfter : new int[]{1, 4, 8, 12}) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+            File table = f.getFile();
+            Database.reset();
+
+            int committed = runCrasher(table, crashAfter);
+            System.out.println("CrashRecoveryTest crashed after " + crashAfter
+                    + " log writes, " + committed + " commits");
+            assertTrue(committed < TRANSACTIONS);
+            int expected = 100 + committed * ROWS_PER_TRANSACTION;
+            assertEquals("crash after " + crashAfter + " writes", expected, recoverAndCount(table));
+            // the running transaction is only known if its BEGIN was forced
+            assertTrue(Database.getLogFile().getLastRecoveryLoserCount() <= 1);
+            assertEquals(expected, recoverAndCount(table));
+            assertEquals(0, Database.getLogFile().getLastRecoveryLoserCount());
+        }
+    }
+
+    /**
+     * A checkpoint taken between logging the update of a page and writing
+     * the page lists the page as dirty, so recovery redoes the update even
+     * though it was logged before the checkpoint.
+     */
+    @Test public void testFuzzyCheckpointRedoesDirtyPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        File table = f.getFile();
+        byte[] before = java.nio.file.Files.readAllBytes(table.toPath());
+        final LogFile log = Database.getLogFile();
+        LogFile.afterLogWrite = new Runnable() {
+            public void run() {
+                LogFile.afterLogWrite = null;
+                try {
+                    log.logCheckpoint();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            AbortEvictionTest.insertRows(f, t, 300);
+            t.commit();
+        } finally {
+            LogFile.afterLogWrite = null;
+        }
+        assertEquals(1, log.getCheckpointCount());
+
+        // lose the page write, as in a crash right after the checkpoint
+        java.nio.file.Files.write(table.toPath(), before);
+        assertEquals(400, recoverAndCount(table));
+    }
+
+    /** A checkpoint does not wait for the buffer pool. */
+    @Test(timeout = 10000) public void testCheckpointDoesNotLockBufferPool() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRows(f, t, 300);
+
+        final java.util.concurrent.CountDownLatch locked = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(1);
+        Thread holder = new Thread() {
+            public void run() {
+                synchronized (Database.getBufferPool()) {
+                    locked.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        // just release the lock
+                    }
+                }
+            }
+        };
+        holder.start();
+        locked.await();
+        Database.getLogFile().logCheckpoint();
+        done.countDown();
+        holder.join();
+        t.commit();
+    }
+
+    /**
+     * With group commit on, a commit whose log force fails fails too rather
+     * than wait for the force forever, and the log stays failed after the
+     * disk works again.
+     */
+    @Test(timeout = 10000) public void testFailedGroupCommitForce() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(true, 0, 1);
+        LogFile.forcer = new LogFile.Forcer() {
+            public void force(java.nio.channels.FileChannel channel) throws IOException {
+                throw new IOException("injected force failure");
+            }
+        };
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            AbortEvictionTest.insertRows(f, t, 1);
+            try {
+                t.commit();
+                fail("a commit succeeded although the log could not be forced");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            LogFile.forcer = null;
+        }
+        try {
+            log.force();
+            fail("a force succeeded after an earlier one failed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A transaction can log and commit while a checkpoint truncates the log,
+     * and its records are kept in the truncated log.
+     */
+    @Test(timeout = 20000) public void testLogWhileTruncating() throws Exception {
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        File table = f.getFile();
+        byte[] before = java.nio.file.Files.readAllBytes(table.toPath());
+        final Exception[] failure = new Exception[1];
+        LogFile.duringTruncate = new Runnable() {
+            public void run() {
+                LogFile.duringTruncate = null;
+                Thread other = new Thread() {
+                    public void run() {
+                        try {
+                            Transaction t = new Transaction();
+                            t.start();
+                            AbortEvictionTest.insertRows(f, t, 300);
+                            t.commit();
+                        } catch (Exception e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                other.start();
+                try {
+                    other.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            Database.getLogFile().logCheckpoint();
+        } finally {
+            LogFile.duringTruncate = null;
+        }
+        assertNull(failure[0]);
+
+        // lose the page writes; recovery redoes them from the new log
+        java.nio.file.Files.write(table.toPath(), before);
+        assertEquals(400, recoverAndCount(table));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CrashRecoveryTest.class);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    private static final java.util.function.Predicate<PageId> ANY = pid -> true;
+
+    /**
+     * Every policy skips pages that may not be evicted, forgets removed pages
+     * and returns null once nothing is evictable.
+     */
+    @Test public void commonBehavior() {
+        for (EvictionPolicy.Kind kind : EvictionPolicy.Kind.values()) {
+            EvictionPolicy policy = kind.create(8);
+            for (int i = 0; i < 4; i++)
+                policy.pageAdded(page(i));
+            policy.pageRemoved(page(2));
+
+            Set<PageId> evicted = new HashSet<PageId>();
+            PageId victim;
+            while ((victim = policy.evict(pid -> !pid.equals(page(0)))) != null)
+                assertTrue(kind + " evicted " + victim + " twice", evicted.add(victim));
+            assertEquals(kind.toString(), new HashSet<PageId>(Arrays.asList(page(1), page(3))), evicted);
+
+            // the pinned page is still tracked
+            assertEquals(kind.toString(), page(0), policy.evict(ANY));
+            assertNull(kind.toString(), policy.evict(ANY));
+        }
+    }
+
+    @Test public void lru() {
+        EvictionPolicy policy = EvictionPolicy.Kind.LRU.create(8);
+        for (int i = 0; i < 3; i++)
+            policy.pageAdded(page(i));
+        policy.pageAccessed(page(0));
+        assertEquals(page(1), policy.evict(ANY));
+        assertEquals(page(2), policy.evict(ANY));
+        assertEquals(page(0), policy.evict(ANY));
+    }
+
+    @Test public void clockGivesSecondChance() {
+        EvictionPolicy policy = EvictionPolicy.Kind.CLOCK.create(8);
+        for (int i = 0; i < 3; i++)
+            policy.pageAdded(page(i));
+        // the first sweep clears all reference bits and evicts page 0
+        assertEquals(page(0), policy.evict(ANY));
+        policy.pageAccessed(page(1));
+        assertEquals(page(2), policy.evict(ANY));
+        assertEquals(page(1), policy.evict(ANY));
+    }
+
+    /**
+     * A scan of many pages that are read once does not push out pages that
+     * are read repeatedly.
+     */
+    @Test public void scanResistance() {
+        EvictionPolicy.Kind[] kinds = {EvictionPolicy.Kind.TWO_Q, EvictionPolicy.Kind.LRU_K};
+        for (EvictionPolicy.Kind kind : kinds) {
+            int capacity = 8;
+            EvictionPolicy policy = kind.create(capacity);
+            Set<PageId> cached = new HashSet<PageId>();
+            int next = 0;
+            // two hot pages, read a few times with cold pages in between
+            for (int round = 0; round < 3; round++) {
+                for (int hot = 0; hot < 2; hot++)
+                    read(policy, cached, capacity, page(hot));
+                for (int i = 0; i < capacity / 2; i++)
+                    read(policy, cached, capacity, page(100 + next++));
+            }
+            for (int i = 0; i < 10 * capacity; i++)
+                read(policy, cached, capacity, page(100 + next++));
+            assertTrue(kind.toString(), cached.contains(page(0)));
+            assertTrue(kind.toString(), cached.contains(page(1)));
+        }
+    }
+
+    // add pages 0 to n - 1, then choose a victim that is not evicted after
+    // all, as a dirty page whose write fails, and return the order in which
+    // the pages are evicted from then on
+    private static List<PageId> evictionOrderAfterVictim(EvictionPolicy policy, int n,
+            PageId expectedVictim, PageId accessed) {
+        for (int i = 0; i < n; i++)
+            policy.pageAdded(page(i));
+        assertEquals(expectedVictim, policy.victim(ANY));
+        if (accessed != null)
+            policy.pageAccessed(accessed);
+        List<PageId> order = new ArrayList<PageId>();
+        PageId victim;
+        while ((victim = policy.evict(ANY)) != null)
+            order.add(victim);
+        return order;
+    }
+
+    /** A victim that stays cached keeps its place as least recently used. */
+    @Test public void lruVictimKeepsPlace() {
+        assertEquals(Arrays.asList(page(0), page(1), page(2)),
+                evictionOrderAfterVictim(EvictionPolicy.Kind.LRU.create(8), 3, page(0), null));
+    }
+
+    /** A victim that stays cached keeps its slot with its reference bit clear. */
+    @Test public void clockVictimKeepsPlace() {
+        // the sweep for the victim clears every bit; page 1 is referenced
+        // again, so the hand passes it and page 0 goes before it
+        assertEquals(Arrays.asList(page(2), page(0), page(1)),
+                evictionOrderAfterVictim(EvictionPolicy.Kind.CLOCK.create(8), 3, page(0), page(1)));
+    }
+
+    /** A victim that stays cached is not counted as referenced again. */
+    @Test public void lruKVictimKeepsPlace() {
+        assertEquals(Arrays.asList(page(0), page(1), page(2)),
+                evictionOrderAfterVictim(EvictionPolicy.Kind.LRU_K.create(8), 3, page(0), null));
+    }
+
+    /** A victim that stays cached stays in A1in, rather than becoming hot. */
+    @Test public void twoQVictimKeepsPlace() {
+        assertEquals(Arrays.asList(page(0), page(1), page(2), page(3)),
+                evictionOrderAfterVictim(EvictionPolicy.Kind.TWO_Q.create(8), 4, page(0), null));
+    }
+
+    private static void read(EvictionPolicy policy, Set<PageId> cached, int capacity, PageId pid) {
+        if (cached.contains(pid)) {
+            policy.pageAccessed(pid);
+            return;
+        }
+        if (cached.size() >= capacity)
+            assertTrue(cached.remove(policy.evict(ANY)));
+        cached.add(pid);
+        policy.pageAdded(pid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
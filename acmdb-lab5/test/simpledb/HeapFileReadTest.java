@@ -121,6 +121,61 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for the memory mapped read path of HeapFile.iterator()
+     */
+    @Test
+    public void memoryMappedIterator() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1200, null, tuples);
+        f.setMemoryMapped(true);
+        assertTrue(f.isMemoryMapped());
+
+        SystemTestUtil.matchTuples(f, tid, tuples);
+        // the scan must still lock every page it reads
+        for (int i = 0; i < f.numPages(); i++)
+            assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(f.getId(), i)));
+
+        // rewinding rereads the mapping
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.rewind();
+        while (it.hasNext()) {
+            assertNotNull(it.next().getRecordId());
+            count++;
+        }
+        it.close();
+        assertEquals(2 * tuples.size(), count);
+    }
+
+    /**
+     * Dirty pages in the buffer pool win over the mapping, and pages appended
+     * by insertTuple are picked up.
+     */
+    @Test
+    public void memoryMappedSeesBufferPool() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20, null, tuples);
+        f.setMemoryMapped(true);
+        SystemTestUtil.matchTuples(f, tid, tuples);
+
+        // fill the first page and spill onto a second one
+        for (int i = 0; i < 600; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(-i);
+            tuples.add(tuple);
+            Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[]{i, -i}));
+        }
+        assertEquals(2, f.numPages());
+        SystemTestUtil.matchTuples(f, tid, tuples);
+    }
+
     /**
      * JUnit suite target
      */
@@ -43,6 +43,35 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserting into a table of full pages goes straight to a new page
+     * instead of reading every page, and a slot freed by a delete is reused.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        HeapFile f = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 50, null, null);
+        assertEquals(50, f.numPages());
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        f.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(51, f.numPages());
+        assertEquals(1, pool.getMissCount());
+
+        // free a slot in the middle of the table
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        Tuple victim = null;
+        for (int i = 0; i <= 504 * 20 && it.hasNext(); i++)
+            victim = it.next();
+        it.close();
+        PageId freed = victim.getRecordId().getPageId();
+        f.deleteTuple(tid, victim);
+
+        Tuple t = Utility.getHeapTuple(2, 2);
+        f.insertTuple(tid, t);
+        assertEquals(freed, t.getRecordId().getPageId());
+        assertEquals(51, f.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    private static final int KEYS = 5000;
+
+    private int tableId;
+    private TransactionId tid;
+
+    // a B+ tree on c0 holding (i % KEYS, i) for every i < 2 * KEYS, so that
+    // every key is there twice
+    @Before public void createTable() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2, "c");
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 2 * KEYS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i % KEYS));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        File file = File.createTempFile("probed", ".dat");
+        file.deleteOnExit();
+        BTreeFile f = new BTreeFile(file, 0, td);
+        new BulkLoader().load(f, "probed", new TupleIterator(td, tuples));
+        tableId = f.getId();
+        tid = new TransactionId();
+    }
+
+    private void finish() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // the outer relation: a single field holding keys
+    private static TupleIterator outer(List<Integer> keys) {
+        int[] data = new int[keys.size()];
+        for (int i = 0; i < data.length; i++)
+            data[i] = keys.get(i);
+        return TestUtil.createTupleList(1, data);
+    }
+
+    // the tuples of op, as sorted strings
+    private static List<String> results(DbIterator op) throws Exception {
+        List<String> results = new ArrayList<String>();
+        while (op.hasNext())
+            results.add(op.next().toString());
+        Collections.sort(results);
+        return results;
+    }
+
+    // the result of joining keys with inner using a hash join
+    private static List<String> expected(List<Integer> keys, DbIterator inner) throws Exception {
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                outer(keys), inner);
+        join.open();
+        List<String> expected = results(join);
+        join.close();
+        return expected;
+    }
+
+    /** Keys in ascending order are found from the leaf of the previous key. */
+    @Test public void sortedOuter() throws Exception {
+        List<Integer> keys = new ArrayList<Integer>();
+        keys.add(-1);
+        for (int k = 0; k < KEYS; k += 7)
+            keys.add(k);
+        keys.add(KEYS);
+
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer(keys), new SeqScan(tid, tableId));
+        join.open();
+        List<String> actual = results(join);
+        assertEquals(2 * (keys.size() - 2), actual.size());
+        assertEquals(expected(keys, new SeqScan(tid, tableId)), actual);
+        assertEquals(keys.size(), join.numProbes());
+        assertTrue(join.numDescents() < join.numProbes() / 4);
+        join.close();
+        finish();
+    }
+
+    /** Repeated keys in any order match every time; the join can be rewound. */
+    @Test public void unsortedOuter() throws Exception {
+        Random r = new Random(0);
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 500; i++) {
+            int k = r.nextInt(KEYS + 100);
+            keys.add(k);
+            if (i % 10 == 0)
+                keys.add(k);
+        }
+
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer(keys), new SeqScan(tid, tableId));
+        List<String> expected = expected(keys, new SeqScan(tid, tableId));
+        join.open();
+        assertEquals(expected, results(join));
+        assertTrue(join.numProbes() < keys.size());
+        join.rewind();
+        assertEquals(expected, results(join));
+        join.close();
+        finish();
+    }
+
+    /** The filters and the index predicate of the inner child apply to the probed tuples. */
+    @Test public void innerFilters() throws Exception {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int k = 0; k < KEYS; k += 3)
+            keys.add(k);
+
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer(keys), inner());
+        join.open();
+        List<String> actual = results(join);
+        assertEquals(expected(keys, inner()), actual);
+        assertEquals(1000, actual.size());
+        join.close();
+        finish();
+    }
+
+    // the tuples with c0 < 3000 and c1 >= KEYS
+    private DbIterator inner() {
+        return new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(KEYS)),
+                new BTreeScan(tid, tableId, "t",
+                        new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(3000))));
+    }
+
+    /** The inner child must be keyed on the join field. */
+    @Test public void notKeyedOnJoinField() throws Exception {
+        assertFalse(IndexNestedLoopJoin.canProbe(new SeqScan(tid, tableId), 1));
+        assertFalse(IndexNestedLoopJoin.canProbe(outer(Arrays.asList(1, 2)), 0));
+        try {
+            new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                    outer(Arrays.asList(1, 2)), new SeqScan(tid, tableId));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        finish();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
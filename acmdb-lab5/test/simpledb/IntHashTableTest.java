@@ -0,0 +1,75 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    private IntHashTable table;
+
+    @Before public void createTable() {
+        table = new IntHashTable();
+    }
+
+    /**
+     * Unit test for IntHashTable.getOrAdd()
+     */
+    @Test public void getOrAdd() {
+        assertEquals(0, table.getOrAdd(42));
+        assertEquals(1, table.getOrAdd(-7));
+        assertEquals(0, table.getOrAdd(42));
+        assertEquals(2, table.getOrAdd(0));
+        assertEquals(3, table.size());
+        assertEquals(42, table.key(0));
+        assertEquals(-7, table.key(1));
+        assertEquals(0, table.key(2));
+    }
+
+    /**
+     * Unit test for IntHashTable.get()
+     */
+    @Test public void get() {
+        table.getOrAdd(5);
+        assertEquals(0, table.get(5));
+        assertEquals(-1, table.get(6));
+        assertEquals(-1, table.get(Integer.MIN_VALUE));
+    }
+
+    /**
+     * Entry ids must survive the table growing
+     */
+    @Test public void grow() {
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i, table.getOrAdd(i * 16));
+        assertEquals(10000, table.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, table.get(i * 16));
+            assertEquals(i * 16, table.key(i));
+        }
+        assertEquals(-1, table.get(1));
+    }
+
+    /**
+     * Unit test for IntHashTable.clear()
+     */
+    @Test public void clear() {
+        table.getOrAdd(1);
+        table.getOrAdd(2);
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.get(1));
+        assertEquals(0, table.getOrAdd(2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
@@ -126,6 +126,51 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test SUM_COUNT, and SC_AVG over its results
+   */
+  @Test public void mergeSumCount() throws Exception {
+    scan1.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3,
+        new int[] { 1, 12, 3, 3, 12, 3, 5, 7, 1 }), it);
+
+    IntegerAggregator scAvg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    it.rewind();
+    while (it.hasNext())
+      scAvg.mergeTupleIntoGroup(it.next());
+    it = scAvg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
+  /**
+   * Test merging the partial aggregates of two aggregators over an avg
+   */
+  @Test public void mergePartialAvg() throws Exception {
+    scan1.open();
+    IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    for (int i = 0; scan1.hasNext(); i++)
+      (i % 2 == 0 ? first : second).mergeTupleIntoGroup(scan1.next());
+
+    IntegerAggregator merged = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG, true);
+    for (IntegerAggregator agg : new IntegerAggregator[] { first, second }) {
+      DbIterator it = agg.partialIterator();
+      it.open();
+      while (it.hasNext())
+        merged.mergeTupleIntoGroup(it.next());
+    }
+    assertEquals(3, merged.numGroups());
+    DbIterator it = merged.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for DbIterator behaviour
    */
@@ -3,6 +3,7 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
@@ -186,6 +187,90 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A read lock request must queue behind a waiting write request instead of
+   * starving it.
+   */
+  @Test public void readWaitsBehindQueuedWrite() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, writer.acquired());
+
+    grabLock(tid3, p0, Permissions.READ_ONLY, false);
+    writer.stop();
+  }
+
+  /**
+   * Unit test for BufferPool.holdsLock()
+   */
+  @Test public void holdsLock() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    assertEquals(true, bp.holdsLock(tid1, p0));
+    assertEquals(true, bp.holdsLock(tid1, p1));
+    assertEquals(false, bp.holdsLock(tid1, p2));
+    assertEquals(false, bp.holdsLock(tid2, p0));
+
+    bp.releasePage(tid1, p0);
+    assertEquals(false, bp.holdsLock(tid1, p0));
+
+    bp.transactionComplete(tid1);
+    assertEquals(false, bp.holdsLock(tid1, p1));
+    metaLockTester(tid2, p1, Permissions.READ_WRITE,
+                   tid2, p0, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Two transactions that each wait for a page the other holds form a
+   * deadlock, which must be broken right away by aborting the victim
+   * chosen by the deadlock policy, rather than by a lock timeout.
+   */
+  public void deadlockTester(BufferPool.DeadlockPolicy policy,
+      boolean tid2HoldsMore, boolean tid2IsVictim) throws Exception {
+    bp.setDeadlockPolicy(policy);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    if (tid2HoldsMore)
+      bp.getPage(tid2, p2, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber lg1 = new TestUtil.LockGrabber(tid1, p1, Permissions.READ_WRITE);
+    lg1.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber lg2 = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2.start();
+    Thread.sleep(TIMEOUT);
+
+    // a victim that has aborted releases its locks, so the other proceeds
+    TestUtil.LockGrabber winner = tid2IsVictim ? lg1 : lg2;
+    TestUtil.LockGrabber loser = tid2IsVictim ? lg2 : lg1;
+    assertEquals(1, bp.getDeadlockCount());
+    assertEquals(0, bp.getLockTimeoutCount());
+    assertNotNull(loser.getError());
+    assertEquals(true, winner.acquired());
+    lg1.stop();
+    lg2.stop();
+  }
+
+  /**
+   * Unit test for deadlock detection; the younger transaction is aborted.
+   */
+  @Test public void deadlockAbortsYoungest() throws Exception {
+    deadlockTester(BufferPool.DeadlockPolicy.YOUNGEST, true, true);
+  }
+
+  /**
+   * Unit test for deadlock detection; the transaction holding the fewest
+   * locks is aborted.
+   */
+  @Test public void deadlockAbortsFewestLocks() throws Exception {
+    deadlockTester(BufferPool.DeadlockPolicy.FEWEST_LOCKS, true, false);
+  }
+
   /**
    * JUnit suite target
    */
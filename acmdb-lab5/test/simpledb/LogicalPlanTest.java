@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+
+    private Map<String, TableStats> stats;
+
+    // a B+ tree table "indexed" on c0 holding (i, i % 100) for every i < ROWS
+    @Before public void createTable() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2, "c");
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(i % 100));
+            tuples.add(t);
+        }
+        File file = File.createTempFile("indexed", ".dat");
+        file.deleteOnExit();
+        BTreeFile f = new BTreeFile(file, 0, td);
+        new BulkLoader().load(f, "indexed", new TupleIterator(td, tuples));
+        stats = new HashMap<String, TableStats>();
+        stats.put("indexed", new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+    }
+
+    private DbIterator plan(TransactionId tid, String query) throws Exception {
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+    }
+
+    // the number of tuples of plan
+    private static int count(DbIterator plan) throws Exception {
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        return n;
+    }
+
+    /** A selective filter on the key of a B+ tree is answered by an index scan. */
+    @Test public void indexScanForKeyFilter() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "SELECT * FROM indexed t WHERE t.c0 = 1234;");
+        DbIterator scan = ((Operator) plan).getChildren()[0];
+        assertTrue(scan instanceof BTreeScan);
+        assertEquals(Predicate.Op.EQUALS, ((BTreeScan) scan).getIndexPredicate().getOp());
+        assertEquals(1, count(plan));
+
+        // the index scan takes the key filter, the other one stays a Filter
+        plan = plan(tid, "SELECT * FROM indexed t WHERE t.c1 = 7 AND t.c0 < 500;");
+        Filter filter = (Filter) ((Operator) plan).getChildren()[0];
+        assertEquals(1, filter.getPredicate().getField());
+        assertTrue(filter.getChildren()[0] instanceof BTreeScan);
+        assertEquals(5, count(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Filters bounding the key from both sides are answered by one range scan. */
+    @Test public void rangeScanForKeyFilters() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "SELECT * FROM indexed t WHERE t.c0 >= 100 AND t.c0 < 300 AND t.c0 < 5000;");
+        DbIterator scan = ((Operator) plan).getChildren()[0];
+        assertTrue(scan instanceof BTreeScan);
+        IndexPredicate ipred = ((BTreeScan) scan).getIndexPredicate();
+        assertEquals(Predicate.Op.GREATER_THAN_OR_EQ, ipred.getOp());
+        assertEquals(new IntField(100), ipred.getField());
+        assertEquals(Predicate.Op.LESS_THAN, ipred.getUpperOp());
+        assertEquals(new IntField(300), ipred.getUpperField());
+        assertEquals(200, count(plan));
+
+        // an equality and a range on the key leave the equality
+        plan = plan(tid, "SELECT * FROM indexed t WHERE t.c0 > 10 AND t.c0 = 42;");
+        scan = ((Operator) plan).getChildren()[0];
+        assertEquals(Predicate.Op.EQUALS, ((BTreeScan) scan).getIndexPredicate().getOp());
+        assertEquals(1, count(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A filter on a field that is not the key needs a scan of the whole table. */
+    @Test public void seqScanForOtherFields() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "SELECT * FROM indexed t WHERE t.c1 = 7;");
+        Filter filter = (Filter) ((Operator) plan).getChildren()[0];
+        assertTrue(filter.getChildren()[0] instanceof SeqScan);
+        assertEquals(ROWS / 100, count(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // the first operator of plan that is not a Project
+    private static DbIterator underProject(DbIterator plan) {
+        return plan instanceof Project ? ((Operator) plan).getChildren()[0] : plan;
+    }
+
+    /** A few outer tuples joined on the key of a large B+ tree probe the index. */
+    @Test public void indexJoinForSmallOuter() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 5; i++)
+            rows.add(new ArrayList<Integer>(Arrays.asList(i * 1000, i)));
+        File file = File.createTempFile("small", ".dat");
+        file.deleteOnExit();
+        HeapFileEncoder.convert(rows, file, BufferPool.getPageSize(), 2);
+        HeapFile small = new HeapFile(file, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(small, "small");
+        stats.put("small", new TableStats(small.getId(), TableStats.IOCOSTPERPAGE));
+
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "SELECT * FROM small s, indexed t WHERE s.c0 = t.c0;");
+        assertTrue(underProject(plan) instanceof IndexNestedLoopJoin);
+        assertEquals(5, count(plan));
+
+        // a join on a field that is not the key cannot probe the index
+        plan = plan(tid, "SELECT * FROM small s, indexed t WHERE s.c1 = t.c1;");
+        assertFalse(underProject(plan) instanceof IndexNestedLoopJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MultiAggregateTest extends SimpleDbTestBase {
+
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG };
+
+    private int[] data;
+
+    // rows of (g, h, x) with 50 groups of (g, h)
+    @Before public void createData() {
+        Random r = new Random(0);
+        data = new int[3 * 2000];
+        for (int i = 0; i < data.length; i += 3) {
+            data[i] = r.nextInt(10);
+            data[i + 1] = r.nextInt(5);
+            data[i + 2] = r.nextInt(1000);
+        }
+    }
+
+    // the expected output for OPS over x, grouped by g and h
+    private TupleIterator expected() {
+        TreeMap<List<Integer>, List<Integer>> groups = new TreeMap<List<Integer>, List<Integer>>(
+                new Comparator<List<Integer>>() {
+                    public int compare(List<Integer> a, List<Integer> b) {
+                        int cmp = a.get(0).compareTo(b.get(0));
+                        return cmp != 0 ? cmp : a.get(1).compareTo(b.get(1));
+                    }
+                });
+        for (int i = 0; i < data.length; i += 3) {
+            List<Integer> key = Arrays.asList(data[i], data[i + 1]);
+            if (!groups.containsKey(key))
+                groups.put(key, new ArrayList<Integer>());
+            groups.get(key).add(data[i + 2]);
+        }
+        int[] rows = new int[groups.size() * 7];
+        int i = 0;
+        for (Map.Entry<List<Integer>, List<Integer>> group : groups.entrySet()) {
+            List<Integer> values = group.getValue();
+            int sum = 0;
+            for (int v : values)
+                sum += v;
+            rows[i++] = group.getKey().get(0);
+            rows[i++] = group.getKey().get(1);
+            rows[i++] = values.size();
+            rows[i++] = sum;
+            rows[i++] = Collections.min(values);
+            rows[i++] = Collections.max(values);
+            rows[i++] = sum / values.size();
+        }
+        return TestUtil.createTupleList(7, rows);
+    }
+
+    private MultiAggregate aggregate(int maxGroups) {
+        return new MultiAggregate(TestUtil.createTupleList(3, data), new int[] { 2, 2, 2, 2, 2 },
+                new int[] { 0, 1 }, OPS, maxGroups);
+    }
+
+    /** All the aggregates are computed over groups of two fields. */
+    @Test public void groupByTwoFields() throws Exception {
+        MultiAggregate op = aggregate(Aggregate.MAX_GROUPS);
+        assertEquals(7, op.getTupleDesc().numFields());
+        op.open();
+        TestUtil.matchAllTuples(expected(), op);
+        assertEquals(0, op.numSpilledGroups());
+        op.rewind();
+        TestUtil.matchAllTuples(expected(), op);
+        op.close();
+    }
+
+    /** More groups than the hash table holds are merged from the sort. */
+    @Test public void spilledGroups() throws Exception {
+        MultiAggregate op = aggregate(7);
+        op.open();
+        assertTrue(op.numSpilledGroups() > 50);
+        TestUtil.matchAllTuples(expected(), op);
+        op.rewind();
+        TestUtil.matchAllTuples(expected(), op);
+        op.close();
+    }
+
+    /** Without group by fields there is one result. */
+    @Test public void noGrouping() throws Exception {
+        MultiAggregate op = new MultiAggregate(TestUtil.createTupleList(3, data),
+                new int[] { 0, 2 }, new int[0],
+                new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.MIN }, 1);
+        op.open();
+        int min = Integer.MAX_VALUE;
+        for (int i = 2; i < data.length; i += 3)
+            min = Math.min(min, data[i]);
+        TestUtil.matchAllTuples(TestUtil.createTupleList(2, new int[] { 2000, min }), op);
+        op.close();
+    }
+
+    /** Without group by fields an empty child gives one result of zeros, as Aggregate does. */
+    @Test public void noGroupingEmpty() throws Exception {
+        MultiAggregate op = new MultiAggregate(TestUtil.createTupleList(3, new int[0]),
+                new int[] { 2, 2, 2, 2, 2 }, new int[0], OPS);
+        op.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(5, new int[] { 0, 0, 0, 0, 0 }), op);
+        op.rewind();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(5, new int[] { 0, 0, 0, 0, 0 }), op);
+        op.close();
+    }
+
+    /** Only COUNT is computed over string fields. */
+    @Test(expected = IllegalArgumentException.class) public void sumOfStrings() {
+        new MultiAggregate(TestUtil.createTupleList(2, new Object[] { 1, "a" }),
+                new int[] { 1 }, new int[] { 0 }, new Aggregator.Op[] { Aggregator.Op.SUM });
+    }
+
+    /** A query with several aggregates and group by fields is planned with a MultiAggregate. */
+    @Test public void parseQuery() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < data.length; i += 3)
+            rows.add(new ArrayList<Integer>(Arrays.asList(data[i], data[i + 1], data[i + 2])));
+        File file = File.createTempFile("grouped", ".dat");
+        file.deleteOnExit();
+        HeapFileEncoder.convert(rows, file, BufferPool.getPageSize(), 3);
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(3, "c"));
+        String name = "grouped";
+        Database.getCatalog().addTable(f, name);
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(f.getId(), 1));
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT t.c0, t.c1, COUNT(*), SUM(t.c2), "
+                + "MIN(t.c2), MAX(t.c2), AVG(t.c2) FROM " + name
+                + " t GROUP BY t.c0, t.c1;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof MultiAggregate);
+        plan.open();
+        TestUtil.matchAllTuples(expected(), plan);
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiAggregateTest.class);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    // rows tuples (random key, row number)
+    private static TupleIterator randomTuples(int rows) {
+        Random r = new Random(0);
+        int[] data = new int[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = r.nextInt(1000);
+            data[2 * i + 1] = i;
+        }
+        return TestUtil.createTupleList(2, data);
+    }
+
+    private static int field(Tuple t, int i) {
+        return ((IntField) t.getField(i)).getValue();
+    }
+
+    // check op returns n tuples sorted on field 0, ties in the order of field 1
+    private static void checkSorted(DbIterator op, int n, boolean asc) throws Exception {
+        int count = 0;
+        Tuple last = null;
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            if (last != null) {
+                int cmp = Integer.compare(field(last, 0), field(t, 0));
+                assertTrue(asc ? cmp <= 0 : cmp >= 0);
+                if (cmp == 0)
+                    assertTrue(field(last, 1) < field(t, 1));
+            }
+            last = t;
+            count++;
+        }
+        assertEquals(n, count);
+    }
+
+    /** Tuples that fit in memory are sorted without spilling. */
+    @Test public void sortInMemory() throws Exception {
+        OrderBy op = new OrderBy(0, false, randomTuples(1000));
+        op.open();
+        assertEquals(0, op.numSpilledRuns());
+        checkSorted(op, 1000, false);
+        op.close();
+    }
+
+    /**
+     * More tuples than the memory budget are sorted in runs on disk, merged
+     * in more than one pass; the sort is stable and can be rewound. The runs
+     * are not tables of the catalog.
+     */
+    @Test public void externalSort() throws Exception {
+        // a page holds 504 tuples, so 3 pages of memory give runs of 1512
+        OrderBy op = new OrderBy(0, true, randomTuples(20000), 3, OrderBy.NO_LIMIT);
+        op.open();
+        assertTrue(op.numSpilledRuns() > 1);
+        assertFalse(Database.getCatalog().tableIdIterator().hasNext());
+        checkSorted(op, 20000, true);
+        op.rewind();
+        checkSorted(op, 20000, true);
+        op.close();
+    }
+
+    /** A limit returns the first tuples of the order only. */
+    @Test public void topN() throws Exception {
+        OrderBy all = new OrderBy(0, true, randomTuples(5000));
+        OrderBy top = new OrderBy(0, true, randomTuples(5000), 25);
+        assertEquals(25, top.getLimit());
+        all.open();
+        top.open();
+        for (int i = 0; i < 25; i++)
+            assertTrue(TestUtil.compareTuples(all.next(), top.next()));
+        assertTrue(TestUtil.checkExhausted(top));
+        top.rewind();
+        checkSorted(top, 25, true);
+        all.close();
+        top.close();
+
+        OrderBy none = new OrderBy(0, true, randomTuples(10), 0);
+        none.open();
+        assertFalse(none.hasNext());
+        none.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
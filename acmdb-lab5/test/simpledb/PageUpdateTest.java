@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageUpdateTest extends SimpleDbTestBase {
+
+    @Before public void addTable() throws IOException {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    // write the update as a log record body and read it back
+    private static PageUpdate roundTrip(PageUpdate update) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(update.size());
+        update.write(buf);
+        assertFalse(buf.hasRemaining());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array()));
+        PageUpdate read = PageUpdate.read(update.recordType(), in);
+        assertEquals(-1, in.read());
+        assertEquals(update.pid, read.pid);
+        return read;
+    }
+
+    /**
+     * Inserting and deleting tuples of a heap page logs just the changed
+     * slots, and undoing and redoing them gives back the page images.
+     */
+    @Test public void heapPageSlotUpdate() throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(-1, -1), HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.deleteTuple(page.iterator().next());
+
+        PageUpdate update = roundTrip(PageUpdate.of(before, page));
+        assertFalse(update.isFullImage());
+        assertEquals(LogFile.SLOT_UPDATE_RECORD, update.recordType());
+        assertTrue(update.size() < 100);
+
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = page.getPageData();
+        assertArrayEquals(afterData, update.redo(beforeData.clone()));
+        assertArrayEquals(beforeData, update.undo(afterData.clone()));
+        // applying an update twice changes nothing
+        assertArrayEquals(afterData, update.redo(update.redo(beforeData.clone())));
+        assertTrue(contains((HeapPage) update.newPage(afterData), 7));
+    }
+
+    private static boolean contains(HeapPage page, int value) {
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == value)
+                return true;
+        }
+        return false;
+    }
+
+    /** Changing the entries of a B+ tree leaf logs slots too. */
+    @Test public void leafPageSlotUpdate() throws Exception {
+        BTreeLeafPage page = new BTreeLeafPage(new BTreePageId(-1, -1, BTreePageId.LEAF),
+                BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        BTreeLeafPage before = page.getBeforeImage();
+        page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{20000, 1}));
+
+        PageUpdate update = roundTrip(PageUpdate.of(before, page));
+        assertFalse(update.isFullImage());
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = page.getPageData();
+        assertArrayEquals(afterData, update.redo(beforeData.clone()));
+        assertArrayEquals(beforeData, update.undo(afterData.clone()));
+        assertEquals(page.getNumTuples(), ((BTreeLeafPage) update.newPage(afterData)).getNumTuples());
+    }
+
+    /** A change of the sibling pointers of a leaf, as in a split, logs full images. */
+    @Test public void leafPointerChangeLogsFullImages() throws Exception {
+        BTreeLeafPage page = new BTreeLeafPage(new BTreePageId(-1, -1, BTreePageId.LEAF),
+                BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        BTreeLeafPage before = page.getBeforeImage();
+        page.setRightSiblingId(new BTreePageId(-1, 5, BTreePageId.LEAF));
+
+        PageUpdate update = roundTrip(PageUpdate.of(before, page));
+        assertTrue(update.isFullImage());
+        assertEquals(LogFile.UPDATE_RECORD, update.recordType());
+        assertArrayEquals(page.getPageData(), update.redo(null));
+        assertArrayEquals(before.getPageData(), update.undo(null));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageUpdateTest.class);
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+// the table "orders" holds (i, i % KEYS) for every i < ROWS
+public class SecondaryIndexTest extends TestUtil.CreateOrdersTable {
+
+    private static final int ROWS = 50000;
+    private static final int KEYS = 5000;
+
+    public SecondaryIndexTest() {
+        super(ROWS, 2);
+    }
+
+    protected int value(int i, int f) {
+        return i % KEYS;
+    }
+
+    // the ids of the rows with c1 = key
+    private static List<Integer> expectedIds(int key) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = key; i < ROWS; i += KEYS)
+            ids.add(i);
+        return ids;
+    }
+
+    /** A lookup returns the heap tuples whose indexed field matches. */
+    @Test public void lookup() throws Exception {
+        TransactionId tid = new TransactionId();
+        SecondaryIndex index = createIndex(tid, 1);
+        assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(table.getId()));
+
+        assertEquals(expectedIds(7), sortedIds(index.iterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(7)))));
+        List<Integer> range = sortedIds(index.iterator(tid, new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(10), Predicate.Op.LESS_THAN, new IntField(12))));
+        assertEquals(2 * ROWS / KEYS, range.size());
+        assertTrue(range.containsAll(expectedIds(11)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Inserts and deletes through the buffer pool keep the index up to date. */
+    @Test public void maintainedByBufferPool() throws Exception {
+        TransactionId tid = new TransactionId();
+        SecondaryIndex index = createIndex(tid, 1);
+        IndexPredicate seven = new IndexPredicate(Predicate.Op.EQUALS, new IntField(7));
+
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(ROWS));
+        t.setField(1, new IntField(7));
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        List<Integer> expected = expectedIds(7);
+        expected.add(ROWS);
+        assertEquals(expected, sortedIds(index.iterator(tid, seven)));
+
+        DbFileIterator it = index.iterator(tid, seven);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(tid, first);
+        expected.remove(Integer.valueOf(((IntField) first.getField(0)).getValue()));
+        assertEquals(expected, sortedIds(index.iterator(tid, seven)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An insert by another transaction waits for the index build, then gets an entry. */
+    @Test public void insertDuringCreate() throws Exception {
+        TransactionId tid = new TransactionId();
+        SecondaryIndex index = createIndex(tid, 1);
+
+        final TransactionId writer = new TransactionId();
+        final Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(ROWS));
+        t.setField(1, new IntField(7));
+        final Exception[] error = new Exception[1];
+        Thread insert = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().insertTuple(writer, table.getId(), t);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        insert.start();
+        insert.join(200);
+        assertTrue(insert.isAlive());
+
+        Database.getBufferPool().transactionComplete(tid);
+        insert.join();
+        assertNull(error[0]);
+        Database.getBufferPool().transactionComplete(writer);
+
+        tid = new TransactionId();
+        List<Integer> expected = expectedIds(7);
+        expected.add(ROWS);
+        assertEquals(expected, sortedIds(index.iterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(7)))));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** CREATE INDEX builds an index that the planner uses for selective filters. */
+    @Test public void createIndexStatement() throws Exception {
+        Parser p = new Parser();
+        p.processNextStatement("CREATE INDEX orders_c1 ON orders (c1);");
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(table.getId());
+        assertEquals(1, indexes.size());
+        assertEquals(1, indexes.get(0).getField());
+        indexes.get(0).getFile().getFile().deleteOnExit();
+
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("orders", new TableStats(table.getId(), TableStats.IOCOSTPERPAGE));
+        TransactionId tid = new TransactionId();
+        DbIterator plan = p.generateLogicalPlan(tid, "SELECT * FROM orders o WHERE o.c1 = 42;")
+                .physicalPlan(tid, stats, false);
+        // the matches are few enough to look up one at a time, or to read
+        // their pages in order with a bitmap scan
+        DbIterator scan = ((Operator) plan).getChildren()[0];
+        if (scan instanceof BitmapHeapScan)
+            assertArrayEquals(indexes.toArray(), ((BitmapHeapScan) scan).getIndexes());
+        else
+            assertEquals(indexes.get(0), ((SecondaryIndexScan) scan).getIndex());
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            assertEquals(new IntField(42), plan.next().getField(1));
+            n++;
+        }
+        plan.close();
+        assertEquals(ROWS / KEYS, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SpillFileTest extends SimpleDbTestBase {
+
+    private static final int TUPLES = 1000;
+
+    /** Tuples come back in the order they were added, also from the page being filled. */
+    @Test public void addAndIterate() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        SpillFile spill = new SpillFile(td);
+        for (int i = 0; i < TUPLES; i++)
+            spill.add(Utility.getHeapTuple(new int[] { i, -i }));
+        assertEquals(TUPLES, spill.numTuples());
+
+        Iterator<Tuple> it = spill.iterator();
+        for (int i = 0; i < TUPLES; i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new IntField(-i), t.getField(1));
+        }
+        assertFalse(it.hasNext());
+        spill.close();
+    }
+
+    /** Every spill run releases its file and its descriptor when it is closed. */
+    @Test public void closeReleasesFile() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        for (int run = 0; run < 500; run++) {
+            SpillFile spill = new SpillFile(td);
+            for (int i = 0; i < TUPLES; i++)
+                spill.add(Utility.getHeapTuple(new int[] { run, i }));
+            Iterator<Tuple> it = spill.iterator();
+            while (it.hasNext())
+                it.next();
+            assertTrue(spill.isOpen());
+
+            spill.close();
+            assertFalse(spill.isOpen());
+            assertFalse(spill.getFile().exists());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SpillFileTest.class);
+    }
+}
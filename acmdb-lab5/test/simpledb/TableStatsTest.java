@@ -100,6 +100,23 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Assert.assertEquals(0, s.estimateTableCardinality(0.0));
 	}
 	
+	/**
+	 * Verify that an index scan of a B+ tree costs the internal levels plus
+	 * the fraction of the leaves selected, and that a heap file has no index
+	 */
+	@Test public void estimateIndexScanCostTest() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+		TableStats s = new TableStats(bf.getId(), IO_COST);
+		double point = s.estimateIndexScanCost(0.0);
+		Assert.assertTrue(point >= 2 * IO_COST);
+		Assert.assertTrue(point < s.estimateIndexScanCost(0.1));
+		Assert.assertTrue(s.estimateIndexScanCost(0.1) < s.estimateScanCost());
+		Assert.assertTrue(s.estimateIndexScanCost(1.0) <= s.estimateScanCost());
+
+		Assert.assertEquals(Double.POSITIVE_INFINITY,
+				new TableStats(this.tableId, IO_COST).estimateIndexScanCost(0.0), 0.0);
+	}
+
 	/**
 	 * Verify that selectivity estimates do something reasonable.
 	 * Don't bother splitting this into N different functions for
@@ -3,6 +3,10 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 
+import org.junit.Before;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
 import static org.junit.Assert.*;
 
 public class TestUtil {
@@ -394,4 +398,65 @@ public class TestUtil {
         protected HeapFile empty;
         private final File emptyFile;
     }
+
+    /**
+     * JUnit fixture for tests of {@link SecondaryIndex}es: before each test,
+     * creates a heap file "orders" of INT fields c0, c1, ... holding a row
+     * for every i < numRows, with c0 = i and the other fields given by value.
+     */
+    public static abstract class CreateOrdersTable extends SimpleDbTestBase {
+        protected final int numRows;
+        private final int width;
+        protected HeapFile table;
+
+        protected CreateOrdersTable(int numRows, int width) {
+            this.numRows = numRows;
+            this.width = width;
+        }
+
+        /** @return field f, at least 1, of row i */
+        protected abstract int value(int i, int f);
+
+        @Before public void createTable() throws Exception {
+            ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+            for (int i = 0; i < numRows; i++) {
+                ArrayList<Integer> row = new ArrayList<Integer>(width);
+                row.add(i);
+                for (int f = 1; f < width; f++)
+                    row.add(value(i, f));
+                rows.add(row);
+            }
+            File file = File.createTempFile("orders", ".dat");
+            file.deleteOnExit();
+            HeapFileEncoder.convert(rows, file, BufferPool.getPageSize(), width);
+            table = new HeapFile(file, Utility.getTupleDesc(width, "c"));
+            Database.getCatalog().addTable(table, "orders");
+        }
+
+        /** @return a new index named orders_c&lt;field&gt; on field of the table */
+        protected SecondaryIndex createIndex(TransactionId tid, int field) throws Exception {
+            File file = File.createTempFile("orders_c" + field, ".idx");
+            file.deleteOnExit();
+            return SecondaryIndex.create(tid, "orders_c" + field, table.getId(), field, file);
+        }
+
+        /** @return field 0 of the tuples an open iterator returns, in its order */
+        protected static List<Integer> ids(DbIterator it) throws Exception {
+            List<Integer> ids = new ArrayList<Integer>();
+            while (it.hasNext())
+                ids.add(((IntField) it.next().getField(0)).getValue());
+            return ids;
+        }
+
+        /** @return field 0 of the tuples it returns, sorted; it is opened and closed */
+        protected static List<Integer> sortedIds(DbFileIterator it) throws Exception {
+            List<Integer> ids = new ArrayList<Integer>();
+            it.open();
+            while (it.hasNext())
+                ids.add(((IntField) it.next().getField(0)).getValue());
+            it.close();
+            Collections.sort(ids);
+            return ids;
+        }
+    }
 }
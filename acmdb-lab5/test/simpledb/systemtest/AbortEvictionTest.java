@@ -1,6 +1,7 @@
 package simpledb.systemtest;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 import simpledb.*;
 
@@ -38,6 +39,71 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** Inserts rows tuples (i, -i) into f and returns the number inserted. */
+    public static int insertRows(HeapFile f, Transaction t, int rows)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Utility.getHeapTuple(new int[]{i, -i}));
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), tuples), f.getId());
+        insert.open();
+        int inserted = ((IntField) insert.next().getField(0)).getValue();
+        insert.close();
+        return inserted;
+    }
+
+    public static int countRows(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        return count;
+    }
+
+    /** A transaction dirtying more pages than the buffer pool holds commits. */
+    @Test public void testLargeTransactionCommits()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Database.resetBufferPool(3);
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(5000, insertRows(f, t, 5000));
+        t.commit();
+        assertTrue(f.numPages() > 3);
+
+        t = new Transaction();
+        t.start();
+        assertEquals(5100, countRows(f, t));
+        t.commit();
+    }
+
+    /**
+     * Aborts a transaction some of whose dirty pages were evicted and written
+     * to disk; they must be restored from the log.
+     */
+    @Test public void testAbortUndoesStolenPages()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*4, null, null);
+        Database.resetBufferPool(3);
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(f, t, 5000);
+        assertEquals(512*4 + 5000, countRows(f, t));
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertEquals(512*4, countRows(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
@@ -40,6 +40,93 @@ public class EvictionTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Runs a mixed workload against each eviction policy: a few hot pages are
+     * read over and over, interleaved with short runs of cold pages, and
+     * between those bursts a large table is scanned. LRU loses the hot pages
+     * to every scan; the scan resistant policies should keep them.
+     *
+     * @return the number of buffer pool hits
+     */
+    private long mixedWorkload(EvictionPolicy.Kind kind, HeapFile hot, HeapFile cold)
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool pool = Database.resetBufferPool(BUFFER_PAGES, kind);
+        int hotPages = hot.numPages();
+        long requests = 0;
+        for (int round = 0; round < 5; round++) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 4 * hotPages; i++) {
+                pool.getPage(tid, new HeapPageId(cold.getId(), i), Permissions.READ_ONLY);
+                pool.getPage(tid, new HeapPageId(hot.getId(), i % hotPages), Permissions.READ_ONLY);
+                requests += 2;
+            }
+            for (int i = 0; i < cold.numPages(); i++) {
+                pool.getPage(tid, new HeapPageId(cold.getId(), i), Permissions.READ_ONLY);
+                requests++;
+            }
+            pool.transactionComplete(tid);
+        }
+        assertEquals(kind.toString(), requests, pool.getHitCount() + pool.getMissCount());
+        return pool.getHitCount();
+    }
+
+    @Test public void testScanResistantPolicies() throws IOException, DbException, TransactionAbortedException {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 4 * 504, null, null);
+        HeapFile cold = SystemTestUtil.createRandomHeapFile(2, 10 * BUFFER_PAGES * 504, null, null);
+        assertEquals(4, hot.numPages());
+
+        long lru = mixedWorkload(EvictionPolicy.Kind.LRU, hot, cold);
+        mixedWorkload(EvictionPolicy.Kind.CLOCK, hot, cold);
+        long twoQ = mixedWorkload(EvictionPolicy.Kind.TWO_Q, hot, cold);
+        long lruK = mixedWorkload(EvictionPolicy.Kind.LRU_K, hot, cold);
+        assertTrue("2Q hits " + twoQ + ", LRU hits " + lru, twoQ > lru);
+        assertTrue("LRU-K hits " + lruK + ", LRU hits " + lru, lruK > lru);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Several threads scan the same table through a small sharded buffer
+     * pool at once; every scan must see every tuple.
+     */
+    @Test public void testConcurrentScansOfShardedPool() throws Exception {
+        final int rows = 40 * 504;
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        final BufferPool pool = Database.resetBufferPool(BUFFER_PAGES, EvictionPolicy.Kind.CLOCK, 4);
+
+        final int threads = 8;
+        final int[] counts = new int[threads];
+        final Throwable[] errors = new Throwable[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        SeqScan scan = new SeqScan(tid, f.getId(), "");
+                        scan.open();
+                        while (scan.hasNext()) {
+                            scan.next();
+                            counts[id]++;
+                        }
+                        scan.close();
+                        Database.getBufferPool().transactionComplete(tid);
+                    } catch (Throwable e) {
+                        errors[id] = e;
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            assertNull(errors[i]);
+            assertEquals(rows, counts[i]);
+        }
+        assertTrue(pool.getMissCount() >= f.numPages());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
     public static void insertRow(HeapFile f, Transaction t) throws DbException,
             TransactionAbortedException {
         // Create a row to insert
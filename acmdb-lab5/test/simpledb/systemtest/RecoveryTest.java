@@ -0,0 +1,255 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Crashes the database (by dropping the Database instance without
+ * completing the running transactions) and checks that LogFile.recover
+ * keeps the updates of committed transactions and undoes the ones of
+ * transactions that did not complete, including pages that were written
+ * to disk before the crash.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+
+    // restart the database on the same table file and recover from the log
+    private static HeapFile crashAndRecover(HeapFile f) throws IOException {
+        File file = f.getFile();
+        Database.reset();
+        HeapFile reopened = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        return reopened;
+    }
+
+    @Test public void testUncommittedUpdatesAreUndone()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Database.resetBufferPool(3);
+
+        Transaction committed = new Transaction();
+        committed.start();
+        AbortEvictionTest.insertRows(f, committed, 300);
+        committed.commit();
+
+        // enough rows that dirty pages have to be written out
+        Transaction loser = new Transaction();
+        loser.start();
+        AbortEvictionTest.insertRows(f, loser, 3000);
+
+        f = crashAndRecover(f);
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(400, AbortEvictionTest.countRows(f, t));
+        t.commit();
+    }
+
+    @Test public void testAbortedTransactionStaysAborted()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Database.resetBufferPool(3);
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        AbortEvictionTest.insertRows(f, aborted, 3000);
+        aborted.abort();
+
+        Transaction committed = new Transaction();
+        committed.start();
+        AbortEvictionTest.insertRows(f, committed, 1000);
+        committed.commit();
+
+        f = crashAndRecover(f);
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(1100, AbortEvictionTest.countRows(f, t));
+        t.commit();
+    }
+
+    private static int countTuples(DbFile f, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator it = f.iterator(tid);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private static void insertTuples(BTreeFile f, TransactionId tid, int rows, int seed)
+            throws DbException, IOException, TransactionAbortedException {
+        java.util.Random r = new java.util.Random(seed);
+        for (int i = 0; i < rows; i++)
+            Database.getBufferPool().insertTuple(tid, f.getId(),
+                    BTreeUtility.getBTreeTuple(new int[]{r.nextInt(BTreeUtility.MAX_RAND_VALUE), i}));
+    }
+
+    /**
+     * B+ tree inserts are logged as slot updates of leaves and as full
+     * images of the pages split; recovery keeps the committed ones and
+     * undoes the others.
+     */
+    @Test public void testBTreeRecovery() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+        Database.resetBufferPool(8);
+
+        Transaction committed = new Transaction();
+        committed.start();
+        insertTuples(f, committed.getId(), 2000, 1);
+        committed.commit();
+
+        Transaction loser = new Transaction();
+        loser.start();
+        insertTuples(f, loser.getId(), 2000, 2);
+
+        File file = f.getFile();
+        Database.reset();
+        f = BTreeUtility.openBTreeFile(2, file, 0);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(3000, countTuples(f, t.getId()));
+        t.commit();
+    }
+
+    /**
+     * LSNs keep increasing across a checkpoint, which rewrites the log, and
+     * across recovery; the log can be printed at any point.
+     */
+    @Test public void testLsnsSurviveCheckpointAndRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Database.resetBufferPool(3);
+        LogFile log = Database.getLogFile();
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRows(f, t, 1000);
+        t.commit();
+        long committed = log.getLastLsn();
+        assertTrue(committed > 0);
+
+        // a transaction running across the checkpoint keeps its records
+        Transaction loser = new Transaction();
+        loser.start();
+        AbortEvictionTest.insertRows(f, loser, 1000);
+        log.logCheckpoint();
+        long checkpointed = log.getLastLsn();
+        assertTrue(checkpointed > committed);
+        log.print();
+
+        f = crashAndRecover(f);
+        // recovery logs CLRs and an ABORT for the loser after the old records
+        long recovered = Database.getLogFile().getLastLsn();
+        assertTrue(recovered > checkpointed);
+        t = new Transaction();
+        t.start();
+        assertTrue(Database.getLogFile().getLastLsn() > recovered);
+        assertEquals(1100, AbortEvictionTest.countRows(f, t));
+        t.commit();
+    }
+
+    /**
+     * Checkpoints are taken (and the log truncated) in the background while
+     * transactions run; recovery from the last one keeps the committed rows
+     * only.
+     */
+    @Test public void testBackgroundCheckpoints() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Database.resetBufferPool(3);
+        LogFile log = Database.getLogFile();
+        log.setCheckpointInterval(5);
+
+        int rows = 100;
+        for (int i = 0; i < 20 || log.getCheckpointCount() < 2; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            rows += AbortEvictionTest.insertRows(f, t, 300);
+            t.commit();
+            Thread.sleep(1);
+        }
+        Transaction loser = new Transaction();
+        loser.start();
+        AbortEvictionTest.insertRows(f, loser, 1000);
+        Thread.sleep(50);
+        log.setCheckpointInterval(0);
+        assertTrue(log.getCheckpointCount() >= 2);
+
+        f = crashAndRecover(f);
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(rows, AbortEvictionTest.countRows(f, t));
+        t.commit();
+    }
+
+    /**
+     * Several threads commit small transactions at once with group commit on;
+     * commits share fsyncs, and every one of them survives a crash.
+     */
+    @Test public void testGroupCommitIsDurable() throws Exception {
+        final int threads = 8;
+        final int commits = 20;
+        final HeapFile[] files = new HeapFile[threads];
+        for (int i = 0; i < threads; i++)
+            files[i] = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(true, 2000, threads);
+        long commitsBefore = log.getCommitCount();
+        long forcesBefore = log.getForceCount();
+
+        final Throwable[] errors = new Throwable[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int c = 0; c < commits; c++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            AbortEvictionTest.insertRows(files[id], t, 1);
+                            t.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors[id] = e;
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            assertNull(errors[i]);
+        }
+        long committed = log.getCommitCount() - commitsBefore;
+        long forced = log.getForceCount() - forcesBefore;
+        assertEquals(threads * commits, committed);
+        assertTrue(committed + " commits, " + forced + " fsyncs", forced < committed);
+
+        File[] tables = new File[threads];
+        for (int i = 0; i < threads; i++)
+            tables[i] = files[i].getFile();
+        Database.reset();
+        for (int i = 0; i < threads; i++)
+            files[i] = Utility.openHeapFile(2, tables[i]);
+        Database.getLogFile().recover();
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < threads; i++)
+            assertEquals(commits, AbortEvictionTest.countRows(files[i], t));
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}